@@ -0,0 +1,187 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.arff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.dm.commons.ArffMeta;
+
+/**
+ * Benchmarks writing a complete ARFF file (open, write every row, write the
+ * header and append the data) for the sample data sets. Columns whose values
+ * all parse as numbers are written as numeric attributes, the rest as nominal.
+ * Each operation writes the whole file; the counters report rows/s and MB/s.
+ * 
+ * @author Mark Hall (mhall{[at]}pentaho.org)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArffEndToEndBenchmark {
+
+  @Param({ "pendigits.csv", "hypothyroid.csv" })
+  public String m_dataSet;
+
+  @Param({ "", "UTF-8" })
+  public String m_encoding;
+
+  /** Counts rows and megabytes written */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long rows;
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      rows = 0;
+      megabytes = 0;
+    }
+  }
+
+  private RowMetaInterface m_rowMeta;
+  private ArffMeta[] m_arffMeta;
+  private int[] m_indexes;
+  private List<Object[]> m_rows;
+  private File m_file;
+
+  @Setup
+  public void setup() throws Exception {
+    InputStream in = getClass().getClassLoader().getResourceAsStream(
+        m_dataSet);
+    if (in == null) {
+      throw new IllegalArgumentException("Unknown data set: " + m_dataSet);
+    }
+
+    List<String[]> lines = new ArrayList<String[]>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    String[] names;
+    try {
+      names = br.readLine().split(",", -1);
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.length() > 0) {
+          lines.add(line.split(",", -1));
+        }
+      }
+    } finally {
+      br.close();
+    }
+
+    // numeric if every non-missing value parses as a number
+    boolean[] numeric = new boolean[names.length];
+    for (int i = 0; i < names.length; i++) {
+      numeric[i] = true;
+      for (String[] vals : lines) {
+        if (!isMissing(vals[i])) {
+          try {
+            Double.parseDouble(vals[i]);
+          } catch (NumberFormatException ex) {
+            numeric[i] = false;
+            break;
+          }
+        }
+      }
+    }
+
+    m_rowMeta = new RowMeta();
+    m_arffMeta = new ArffMeta[names.length];
+    m_indexes = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      ValueMetaInterface vm = new ValueMeta();
+      vm.setName(names[i]);
+      vm.setType(numeric[i] ? ValueMetaInterface.TYPE_NUMBER
+          : ValueMetaInterface.TYPE_STRING);
+      m_rowMeta.addValueMeta(vm);
+      m_arffMeta[i] = new ArffMeta(names[i], vm.getType(),
+          numeric[i] ? ArffMeta.NUMERIC : ArffMeta.NOMINAL);
+      m_indexes[i] = i;
+    }
+
+    m_rows = new ArrayList<Object[]>(lines.size());
+    for (String[] vals : lines) {
+      Object[] row = new Object[names.length];
+      for (int i = 0; i < names.length; i++) {
+        if (isMissing(vals[i])) {
+          row[i] = null;
+        } else if (numeric[i]) {
+          row[i] = new Double(vals[i]);
+        } else {
+          row[i] = vals[i];
+        }
+      }
+      m_rows.add(row);
+    }
+
+    m_file = File.createTempFile("bench", ".arff");
+  }
+
+  private static boolean isMissing(String val) {
+    return val.length() == 0 || "?".equals(val);
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_file.delete();
+  }
+
+  @Benchmark
+  public void writeFile(Counters counters) throws Exception {
+    ArffOutputData data = new ArffOutputData();
+    data.setOutputRowMeta(m_rowMeta);
+    data.setOutputFieldIndexes(m_indexes, m_arffMeta);
+    data.setHasEncoding(m_encoding.length() > 0);
+    if (m_encoding.length() > 0) {
+      data.setBinaryNewLine("\n".getBytes(m_encoding));
+      data.setBinarySeparator(",".getBytes(m_encoding));
+      data.setBinaryMissing("?".getBytes(m_encoding));
+    }
+
+    data.openFiles(m_file.getAbsolutePath());
+    for (Object[] row : m_rows) {
+      data.writeRow(row, m_encoding);
+    }
+    data.finishOutput(m_dataSet, m_encoding);
+
+    counters.rows += m_rows.size();
+    counters.megabytes += m_file.length() / 1000000.0;
+  }
+}
@@ -0,0 +1,250 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.arff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.dm.commons.ArffMeta;
+
+/**
+ * Benchmarks the ARFF writer with synthetic rows. The row shape (numeric
+ * heavy, nominal heavy or an even mix), the cardinality of nominal fields,
+ * sparse vs dense output and whether an explicit encoding is used are all
+ * swept. Rows are written to a stream that just counts bytes, so the numbers
+ * reflect formatting cost rather than disk speed.
+ * 
+ * @author Mark Hall (mhall{[at]}pentaho.org)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArffWriterBenchmark {
+
+  /** Number of fields in each row */
+  static final int NUM_FIELDS = 50;
+
+  /** Number of distinct rows to cycle through */
+  static final int ROW_POOL_SIZE = 4096;
+
+  @Param({ "numeric", "nominal", "mixed" })
+  public String m_shape;
+
+  @Param({ "10", "1000", "100000" })
+  public int m_cardinality;
+
+  @Param({ "false", "true" })
+  public boolean m_sparse;
+
+  @Param({ "", "UTF-8" })
+  public String m_encoding;
+
+  /**
+   * Counts rows and megabytes written, so that throughput is reported as
+   * rows/s and MB/s
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long rows;
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      rows = 0;
+      megabytes = 0;
+    }
+  }
+
+  /** OutputStream that discards everything but counts the bytes */
+  static class CountingOutputStream extends OutputStream {
+    long m_count;
+
+    @Override
+    public void write(int b) {
+      m_count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      m_count += len;
+    }
+  }
+
+  private ArffOutputData m_data;
+  private CountingOutputStream m_out;
+  private RowMetaInterface m_rowMeta;
+  private ArffMeta[] m_arffMeta;
+  private Object[][] m_rows;
+  private int m_next;
+  private int m_nextField;
+
+  @Setup
+  public void setup() throws Exception {
+    Random r = new Random(1);
+    m_rowMeta = new RowMeta();
+    m_arffMeta = new ArffMeta[NUM_FIELDS];
+    int[] indexes = new int[NUM_FIELDS];
+    for (int i = 0; i < NUM_FIELDS; i++) {
+      ValueMetaInterface vm = new ValueMeta();
+      vm.setName("field" + i);
+      if (isNominal(i)) {
+        vm.setType(ValueMetaInterface.TYPE_STRING);
+        m_arffMeta[i] = new ArffMeta(vm.getName(),
+            ValueMetaInterface.TYPE_STRING, ArffMeta.NOMINAL);
+
+        // sparse output needs to know the zero'th value up front
+        m_arffMeta[i].setNominalVals("v0");
+      } else {
+        vm.setType(ValueMetaInterface.TYPE_NUMBER);
+        m_arffMeta[i] = new ArffMeta(vm.getName(),
+            ValueMetaInterface.TYPE_NUMBER, ArffMeta.NUMERIC);
+      }
+      m_rowMeta.addValueMeta(vm);
+      indexes[i] = i;
+    }
+
+    m_rows = new Object[ROW_POOL_SIZE][];
+    for (int j = 0; j < m_rows.length; j++) {
+      Object[] row = new Object[NUM_FIELDS];
+      for (int i = 0; i < NUM_FIELDS; i++) {
+        // sparse data sets are mostly zeros (or the first nominal value)
+        boolean zero = m_sparse && r.nextDouble() < 0.9;
+        if (isNominal(i)) {
+          row[i] = zero ? "v0" : "v" + r.nextInt(m_cardinality);
+        } else {
+          row[i] = zero ? new Double(0) : new Double(r.nextDouble() * 1000.0);
+        }
+      }
+      m_rows[j] = row;
+    }
+
+    m_data = new ArffOutputData();
+    m_data.setOutputRowMeta(m_rowMeta);
+    m_data.setOutputFieldIndexes(indexes, m_arffMeta);
+    m_data.setOutputSparseInstances(m_sparse);
+    m_data.setHasEncoding(m_encoding.length() > 0);
+    if (m_encoding.length() > 0) {
+      m_data.setBinaryNewLine("\n".getBytes(m_encoding));
+      m_data.setBinarySeparator(",".getBytes(m_encoding));
+      m_data.setBinaryMissing("?".getBytes(m_encoding));
+    }
+
+    m_out = new CountingOutputStream();
+    m_data.m_dataOut = m_out;
+  }
+
+  private boolean isNominal(int field) {
+    if ("numeric".equals(m_shape)) {
+      return false;
+    }
+    if ("nominal".equals(m_shape)) {
+      return true;
+    }
+    return field % 2 == 1;
+  }
+
+  private Object[] nextRow() {
+    Object[] row = m_rows[m_next];
+    m_next = (m_next + 1) % m_rows.length;
+    return row;
+  }
+
+  private int nextField() {
+    int field = m_nextField;
+    m_nextField = (m_nextField + 1) % NUM_FIELDS;
+    return field;
+  }
+
+  @Benchmark
+  public void writeRow(Counters counters) throws IOException,
+      KettleStepException {
+    long before = m_out.m_count;
+    m_data.writeRow(nextRow(), m_encoding);
+    counters.rows++;
+    counters.megabytes += (m_out.m_count - before) / 1000000.0;
+  }
+
+  @Benchmark
+  public byte[] formatField() throws Exception {
+    int field = nextField();
+    return m_data.formatField(field, m_rowMeta.getValueMeta(field),
+        nextRow()[field], m_encoding);
+  }
+
+  @Benchmark
+  public boolean checkSparseWrite() throws Exception {
+    int field = nextField();
+    return m_data.checkSparseWrite(field, m_rowMeta.getValueMeta(field),
+        nextRow()[field]);
+  }
+
+  /**
+   * Benchmarks writing the header and appending the data once all rows have
+   * been written. Each invocation writes a fresh file.
+   */
+  @State(Scope.Thread)
+  public static class FinishState {
+    ArffWriterBenchmark m_writer;
+    File m_file;
+
+    @Setup(Level.Invocation)
+    public void setup(ArffWriterBenchmark writer) throws Exception {
+      m_writer = writer;
+      m_file = File.createTempFile("bench", ".arff");
+      writer.m_data.openFiles(m_file.getAbsolutePath());
+      for (int i = 0; i < ROW_POOL_SIZE; i++) {
+        writer.m_data.writeRow(writer.nextRow(), writer.m_encoding);
+      }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      m_file.delete();
+      m_writer.m_data.m_dataOut = m_writer.m_out;
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void finishOutput(FinishState state) throws Exception {
+    m_data.finishOutput("benchmark", m_encoding);
+  }
+}
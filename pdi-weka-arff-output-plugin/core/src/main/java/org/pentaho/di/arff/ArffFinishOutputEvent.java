@@ -0,0 +1,50 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.arff;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for writing the ARFF header and appending the
+ * temporary data file to it.
+ * 
+ * @author Mark Hall (mhall{[at]}pentaho.org)
+ */
+@Name("org.pentaho.di.arff.FinishOutput")
+@Label("ARFF Finish Output")
+@Category({ "Pentaho", "ARFF Output" })
+@Description("Writing of the ARFF header and appending of the data")
+class ArffFinishOutputEvent extends jdk.jfr.Event {
+
+  @Label("ARFF File")
+  String file;
+
+  @Label("Attributes")
+  int attributes;
+
+  @Label("Rows")
+  long rows;
+
+  @Label("Header Size")
+  @DataAmount
+  long headerBytes;
+
+  @Label("Data Size")
+  @DataAmount
+  long dataBytes;
+}
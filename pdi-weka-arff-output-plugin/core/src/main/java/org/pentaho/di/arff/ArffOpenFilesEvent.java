@@ -0,0 +1,34 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.arff;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for opening the ARFF header and temporary data files.
+ * 
+ * @author Mark Hall (mhall{[at]}pentaho.org)
+ */
+@Name("org.pentaho.di.arff.OpenFiles")
+@Label("ARFF Open Files")
+@Category({ "Pentaho", "ARFF Output" })
+@Description("Opening of the ARFF file and its temporary data file")
+class ArffOpenFilesEvent extends jdk.jfr.Event {
+
+  @Label("ARFF File")
+  String file;
+}
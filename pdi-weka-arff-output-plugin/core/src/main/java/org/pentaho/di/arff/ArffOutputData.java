@@ -86,6 +86,9 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
   // Is there a specific character encoding being used?
   protected boolean m_hasEncoding;
 
+  /** Number of rows written to the temporary file */
+  protected long m_rowsWritten;
+
   // byte buffer for fast copy
   static final int BUFF_SIZE = 100000;
   static final byte[] m_buffer = new byte[BUFF_SIZE];
@@ -220,6 +223,20 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
    * @exception IOException if an error occurs
    */
   public void openFiles(String filename) throws IOException {
+    ArffOpenFilesEvent event = new ArffOpenFilesEvent();
+    event.begin();
+    try {
+      createFiles(filename);
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.file = filename;
+        event.commit();
+      }
+    }
+  }
+
+  private void createFiles(String filename) throws IOException {
     if (filename.startsWith("file:")) {
       try {
         filename.replace(" ", "%20");
@@ -242,6 +259,7 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
     m_tempFile = File.createTempFile(tempPrefix, null);
     OutputStream os2 = new FileOutputStream(m_tempFile);
     m_dataOut = new BufferedOutputStream(os2);
+    m_rowsWritten = 0;
   }
 
   /**
@@ -319,6 +337,7 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
     }
 
     m_dataOut.write(m_newLine);
+    m_rowsWritten++;
   }
 
   private void writeWeight(int index, Object value, String encoding)
@@ -392,7 +411,7 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
     return true;
   }
 
-  private boolean checkSparseWrite(int index, ValueMetaInterface v, Object value)
+  boolean checkSparseWrite(int index, ValueMetaInterface v, Object value)
       throws KettleValueException {
 
     if (m_arffMeta[index].getArffType() == ArffMeta.NOMINAL
@@ -430,7 +449,8 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
   }
 
   /**
-   * Format a Kettle value for writing.
+   * Format a Kettle value for writing. Package-private so that it can be
+   * benchmarked.
    * 
    * @param index the index of the value to format
    * @param v <code>ValueMetaInterface</code> for the field in question
@@ -439,7 +459,7 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
    * @return the formatted value as an array of bytes
    * @exception KettleValueException if an error occurs
    */
-  private byte[] formatField(int index, ValueMetaInterface v, Object value,
+  byte[] formatField(int index, ValueMetaInterface v, Object value,
       String encoding) throws KettleValueException {
 
     // Check for missing value (null or empty string)
@@ -521,6 +541,28 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
       return;
     }
 
+    ArffFinishOutputEvent event = new ArffFinishOutputEvent();
+    event.begin();
+    try {
+      writeHeaderAndData(relationName, encoding, event);
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.file = m_headerFile.getPath();
+        event.rows = m_rowsWritten;
+        for (int index : m_outputFieldIndexes) {
+          if (index >= 0) {
+            event.attributes++;
+          }
+        }
+        event.commit();
+      }
+    }
+  }
+
+  private void writeHeaderAndData(String relationName, String encoding,
+      ArffFinishOutputEvent event) throws KettleStepException {
+
     relationName = Utils.quote(relationName);
     relationName = "@relation " + relationName;
     byte[] rn = null;
@@ -586,6 +628,11 @@ public class ArffOutputData extends BaseStepData implements StepDataInterface {
       }
     }
 
+    if (event.isEnabled()) {
+      event.headerBytes = m_headerFile.length();
+      event.dataBytes = m_tempFile.length();
+    }
+
     // now append the temporary file to the header file
     InputStream is = null;
     OutputStream os = null;
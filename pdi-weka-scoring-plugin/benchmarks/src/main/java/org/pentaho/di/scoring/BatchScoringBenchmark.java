@@ -0,0 +1,121 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.variables.Variables;
+
+/**
+ * Benchmarks scoring a batch of rows, as the step does for models that are
+ * batch predictors. Models that aren't batch predictors score the batch one
+ * row at a time, which is what the step does for them. Each operation is one
+ * batch; the rows counter reports rows per second.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class BatchScoringBenchmark {
+
+  @Param( { "nbIris.model", "emIris.model", "j48_pen.model", "naiveBayes_pen.model", "kmeans_pen.model" } )
+  public String m_model;
+
+  @Param( { "false", "true" } )
+  public boolean m_outputProbabilities;
+
+  @Param( { "0", "64" } )
+  public int m_extraFields;
+
+  @Param( { "10", "100", "1000" } )
+  public int m_batchSize;
+
+  /**
+   * Counts the rows scored, so that throughput is reported in rows as well as
+   * batches
+   */
+  @State( Scope.Thread )
+  @AuxCounters( AuxCounters.Type.OPERATIONS )
+  public static class RowCounter {
+    public long rows;
+
+    @Setup( Level.Iteration )
+    public void reset() {
+      rows = 0;
+    }
+  }
+
+  private WekaScoringMeta m_meta;
+  private WekaScoringData m_data;
+  private RowMetaInterface m_inputMeta;
+  private RowMetaInterface m_outputMeta;
+  private boolean m_batchPredictor;
+  private List<Object[]> m_batch;
+
+  @Setup
+  public void setup() throws Exception {
+    WekaScoringModel model = BenchmarkModels.load( m_model );
+    m_meta = BenchmarkModels.stepMeta( model, m_outputProbabilities );
+    m_batchPredictor = model.isBatchPredictor();
+
+    m_inputMeta = BenchmarkModels.inputRowMeta( model.getHeader(), m_extraFields );
+    m_outputMeta = m_inputMeta.clone();
+    m_meta.getFields( m_outputMeta, null, null, null, new Variables() );
+
+    m_data = new WekaScoringData();
+    m_data.setModel( model );
+    m_data.setOutputRowMeta( m_outputMeta );
+    m_data.mapIncomingRowMetaData( model.getHeader(), m_inputMeta, false, null );
+
+    Object[][] rows = BenchmarkModels.rows( model.getHeader(), m_inputMeta, 1L );
+    m_batch = new ArrayList<Object[]>( m_batchSize );
+    for ( int i = 0; i < m_batchSize; i++ ) {
+      m_batch.add( rows[i % rows.length] );
+    }
+  }
+
+  @Benchmark
+  public Object[][] generatePredictions( RowCounter counter ) throws Exception {
+    counter.rows += m_batch.size();
+    if ( m_batchPredictor ) {
+      return m_data.generatePredictions( m_inputMeta, m_outputMeta, m_batch, m_meta );
+    }
+
+    Object[][] result = new Object[m_batch.size()][];
+    for ( int i = 0; i < result.length; i++ ) {
+      result[i] = m_data.generatePrediction( m_inputMeta, m_outputMeta, m_batch.get( i ), m_meta );
+    }
+    return result;
+  }
+}
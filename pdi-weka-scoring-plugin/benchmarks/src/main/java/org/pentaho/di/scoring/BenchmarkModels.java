@@ -0,0 +1,219 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.Variables;
+
+import weka.classifiers.trees.RandomForest;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.converters.CSVLoader;
+
+/**
+ * Models and synthetic data shared by the benchmarks. The models are the ones
+ * used by the unit tests and the samples that ship with the step; they are
+ * bundled as resources and copied out to temporary files so that they can be
+ * loaded the same way the step loads them.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+final class BenchmarkModels {
+
+  /**
+   * number of distinct synthetic rows that the benchmarks cycle through
+   */
+  static final int ROW_POOL_SIZE = 1024;
+
+  /**
+   * name of a random forest that is trained on the bundled pendigits data
+   * when it is loaded, so that ensembles can be benchmarked without shipping
+   * a large model
+   */
+  static final String RANDOM_FOREST_PEN = "randomForest_pen"; //$NON-NLS-1$
+
+  private static final Map<String, File> s_resourceFiles = new HashMap<String, File>();
+
+  private BenchmarkModels() {
+  }
+
+  /**
+   * Get a file holding one of the bundled models
+   *
+   * @param name the name of the model (e.g. nbIris.model)
+   * @return the file
+   * @throws Exception if the model can't be copied out
+   */
+  static File modelFile( String name ) throws Exception {
+    return resourceFile( name, "Unknown model: " ); //$NON-NLS-1$
+  }
+
+  /**
+   * Get a file holding one of the bundled data sets
+   *
+   * @param name the name of the data set (e.g. pendigits.csv)
+   * @return the file
+   * @throws Exception if the data set can't be copied out
+   */
+  static File dataFile( String name ) throws Exception {
+    return resourceFile( name, "Unknown data file: " ); //$NON-NLS-1$
+  }
+
+  private static synchronized File resourceFile( String name, String unknown ) throws Exception {
+    File f = s_resourceFiles.get( name );
+    if ( f == null ) {
+      InputStream in = BenchmarkModels.class.getClassLoader().getResourceAsStream( name );
+      if ( in == null ) {
+        throw new IllegalArgumentException( unknown + name );
+      }
+
+      f = File.createTempFile( "bench", "_" + name ); //$NON-NLS-1$ //$NON-NLS-2$
+      f.deleteOnExit();
+      OutputStream out = new FileOutputStream( f );
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ( ( n = in.read( buf ) ) > 0 ) {
+          out.write( buf, 0, n );
+        }
+      } finally {
+        out.close();
+        in.close();
+      }
+      s_resourceFiles.put( name, f );
+    }
+    return f;
+  }
+
+  /**
+   * Load one of the bundled models
+   *
+   * @param name the name of the model
+   * @return the model
+   * @throws Exception if the model can't be loaded
+   */
+  static WekaScoringModel load( String name ) throws Exception {
+    if ( RANDOM_FOREST_PEN.equals( name ) ) {
+      return trainRandomForest();
+    }
+    return WekaScoringData.loadSerializedModel( modelFile( name ).getAbsolutePath(), null, new Variables() );
+  }
+
+  /**
+   * Trains a random forest on the bundled pendigits data
+   *
+   * @return the model
+   * @throws Exception if the model can't be trained
+   */
+  private static WekaScoringModel trainRandomForest() throws Exception {
+    CSVLoader loader = new CSVLoader();
+    loader.setNominalAttributes( "last" ); //$NON-NLS-1$
+    loader.setSource( dataFile( "pendigits.csv" ) ); //$NON-NLS-1$
+    Instances data = loader.getDataSet();
+    data.setClassIndex( data.numAttributes() - 1 );
+
+    RandomForest forest = new RandomForest();
+    forest.setSeed( 1 );
+    forest.buildClassifier( data );
+
+    WekaScoringModel model = WekaScoringModel.createScorer( forest );
+    model.setHeader( new Instances( data, 0 ) );
+    return model;
+  }
+
+  /**
+   * Builds the incoming row format for a model: one field per (non-class)
+   * attribute followed by a number of pass-through fields that the model
+   * doesn't use, to vary the width of the rows.
+   *
+   * @param header      the model's header
+   * @param extraFields number of pass-through fields
+   * @return the row format
+   */
+  static RowMetaInterface inputRowMeta( Instances header, int extraFields ) {
+    RowMetaInterface rmi = new RowMeta();
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      if ( i == header.classIndex() ) {
+        continue;
+      }
+      Attribute a = header.attribute( i );
+      ValueMetaInterface vm = new ValueMeta();
+      vm.setName( a.name() );
+      vm.setType( a.isNumeric() ? ValueMetaInterface.TYPE_NUMBER : ValueMetaInterface.TYPE_STRING );
+      rmi.addValueMeta( vm );
+    }
+    for ( int i = 0; i < extraFields; i++ ) {
+      ValueMetaInterface vm = new ValueMeta();
+      vm.setName( "passthrough_" + i ); //$NON-NLS-1$
+      vm.setType( ValueMetaInterface.TYPE_STRING );
+      rmi.addValueMeta( vm );
+    }
+    return rmi;
+  }
+
+  /**
+   * Generates rows of random values in the supplied format
+   *
+   * @param header the model's header
+   * @param rmi    the row format (from inputRowMeta())
+   * @param seed   random seed
+   * @return ROW_POOL_SIZE rows
+   */
+  static Object[][] rows( Instances header, RowMetaInterface rmi, long seed ) {
+    Random r = new Random( seed );
+    Object[][] rows = new Object[ROW_POOL_SIZE][];
+    for ( int i = 0; i < rows.length; i++ ) {
+      Object[] row = new Object[rmi.size()];
+      for ( int j = 0; j < rmi.size(); j++ ) {
+        Attribute a = header.attribute( rmi.getValueMeta( j ).getName() );
+        if ( a == null ) {
+          row[j] = "value " + r.nextInt( 1000 ); //$NON-NLS-1$
+        } else if ( a.isNumeric() ) {
+          row[j] = new Double( r.nextDouble() * 100.0 );
+        } else if ( a.isNominal() ) {
+          row[j] = a.value( r.nextInt( a.numValues() ) );
+        } else {
+          row[j] = "value " + r.nextInt( 1000 ); //$NON-NLS-1$
+        }
+      }
+      rows[i] = row;
+    }
+    return rows;
+  }
+
+  /**
+   * Get the meta data for a step scoring with the supplied model
+   *
+   * @param model              the model
+   * @param outputProbabilities true to output probabilities
+   * @return the step meta data
+   */
+  static WekaScoringMeta stepMeta( WekaScoringModel model, boolean outputProbabilities ) {
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel( model );
+    meta.setOutputProbabilities( outputProbabilities );
+    return meta;
+  }
+}
@@ -0,0 +1,110 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Compares scoring an instance (or a batch of instances) for its full
+ * distribution with the label-only path the step takes when probabilities are
+ * not output. Instances are constructed up front so that only the model is
+ * measured. The random forest shows the effect of ensembles stopping their
+ * vote early, for single instances and batches.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LabelScoringBenchmark {
+
+  /**
+   * number of instances in a batch
+   */
+  private static final int BATCH_SIZE = 100;
+
+  @Param( { "nbIris.model", "j48_pen.model", "naiveBayes_pen.model", BenchmarkModels.RANDOM_FOREST_PEN } )
+  public String m_model;
+
+  private WekaScoringModel m_scoringModel;
+  private Instance[] m_instances;
+  private Instances m_batch;
+  private int m_next;
+
+  @Setup
+  public void setup() throws Exception {
+    m_scoringModel = BenchmarkModels.load( m_model );
+
+    RowMetaInterface inputMeta = BenchmarkModels.inputRowMeta( m_scoringModel.getHeader(), 0 );
+    WekaScoringData data = new WekaScoringData();
+    data.setModel( m_scoringModel );
+    data.mapIncomingRowMetaData( m_scoringModel.getHeader(), inputMeta, false, null );
+
+    Object[][] rows = BenchmarkModels.rows( m_scoringModel.getHeader(), inputMeta, 1L );
+    m_instances = new Instance[rows.length];
+    for ( int i = 0; i < rows.length; i++ ) {
+      m_instances[i] = data.constructInstance( inputMeta, rows[i], data.getMapping(), m_scoringModel, true );
+    }
+
+    m_batch = new Instances( m_scoringModel.getHeader(), BATCH_SIZE );
+    for ( int i = 0; i < BATCH_SIZE; i++ ) {
+      m_batch.add( m_instances[i % m_instances.length] );
+    }
+  }
+
+  private Instance nextInstance() {
+    Instance inst = m_instances[m_next];
+    m_next = ( m_next + 1 ) % m_instances.length;
+    return inst;
+  }
+
+  @Benchmark
+  public double[] distributionForInstance() throws Exception {
+    return m_scoringModel.distributionForInstance( nextInstance() );
+  }
+
+  @Benchmark
+  public double[] labelDistributionForInstance() throws Exception {
+    return m_scoringModel.labelDistributionForInstance( nextInstance(), null );
+  }
+
+  @Benchmark
+  public double[][] distributionsForBatch() throws Exception {
+    return WekaScoringData.distributions( m_scoringModel, m_batch );
+  }
+
+  @Benchmark
+  public double[][] labelDistributionsForBatch() throws Exception {
+    return m_scoringModel.labelDistributionsForInstances( m_batch, null );
+  }
+}
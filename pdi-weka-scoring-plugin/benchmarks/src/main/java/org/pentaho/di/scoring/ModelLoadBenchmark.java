@@ -0,0 +1,68 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.variables.Variables;
+
+/**
+ * Benchmarks loading a serialized model from file, as the step does on the
+ * first row (or for each new file name when model file names come from a
+ * field).
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ModelLoadBenchmark {
+
+  @Param( { "nbIris.model", "emIris.model", "j48_pen.model", "naiveBayes_pen.model", "kmeans_pen.model" } )
+  public String m_model;
+
+  private String m_modelPath;
+
+  private Variables m_space;
+
+  @Setup
+  public void setup() throws Exception {
+    m_modelPath = BenchmarkModels.modelFile( m_model ).getAbsolutePath();
+    m_space = new Variables();
+  }
+
+  @Benchmark
+  public WekaScoringModel loadSerializedModel() throws Exception {
+    return WekaScoringData.loadSerializedModel( m_modelPath, null, m_space );
+  }
+
+  @Benchmark
+  public WekaScoringModelHeader loadModelHeader() throws Exception {
+    return WekaScoringData.loadModelHeader( m_modelPath, null, m_space );
+  }
+}
@@ -0,0 +1,101 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.variables.Variables;
+
+import weka.core.Instance;
+
+/**
+ * Benchmarks the per-row scoring path: converting an incoming row to an
+ * Instance and generating the output row with the prediction(s). Swept across
+ * the bundled models, probability output on/off and the number of pass-through
+ * fields in the incoming rows.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ScoringBenchmark {
+
+  @Param( { "nbIris.model", "emIris.model", "j48_pen.model", "naiveBayes_pen.model", "kmeans_pen.model" } )
+  public String m_model;
+
+  @Param( { "false", "true" } )
+  public boolean m_outputProbabilities;
+
+  @Param( { "0", "64", "512" } )
+  public int m_extraFields;
+
+  private WekaScoringModel m_scoringModel;
+  private WekaScoringMeta m_meta;
+  private WekaScoringData m_data;
+  private RowMetaInterface m_inputMeta;
+  private RowMetaInterface m_outputMeta;
+  private ScoringMapping m_mapping;
+  private Object[][] m_rows;
+  private int m_next;
+
+  @Setup
+  public void setup() throws Exception {
+    m_scoringModel = BenchmarkModels.load( m_model );
+    m_meta = BenchmarkModels.stepMeta( m_scoringModel, m_outputProbabilities );
+
+    m_inputMeta = BenchmarkModels.inputRowMeta( m_scoringModel.getHeader(), m_extraFields );
+    m_outputMeta = m_inputMeta.clone();
+    m_meta.getFields( m_outputMeta, null, null, null, new Variables() );
+
+    m_data = new WekaScoringData();
+    m_data.setModel( m_scoringModel );
+    m_data.setOutputRowMeta( m_outputMeta );
+    m_data.mapIncomingRowMetaData( m_scoringModel.getHeader(), m_inputMeta, false, null );
+    m_mapping = m_data.getMapping();
+
+    m_rows = BenchmarkModels.rows( m_scoringModel.getHeader(), m_inputMeta, 1L );
+  }
+
+  private Object[] nextRow() {
+    Object[] row = m_rows[m_next];
+    m_next = ( m_next + 1 ) % m_rows.length;
+    return row;
+  }
+
+  @Benchmark
+  public Instance constructInstance() {
+    return m_data.constructInstance( m_inputMeta, nextRow(), m_mapping, m_scoringModel, false );
+  }
+
+  @Benchmark
+  public Object[] generatePrediction() throws Exception {
+    return m_data.generatePrediction( m_inputMeta, m_outputMeta, nextRow(), m_meta );
+  }
+}
@@ -0,0 +1,43 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for scoring and outputting a batch of rows.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+@Name( "org.pentaho.di.scoring.BatchScoring" )
+@Label( "Weka Batch Scoring" )
+@Category( { "Pentaho", "Weka Scoring" } )
+@Description( "Scoring and output of a batch of rows by a batch predictor" )
+class BatchScoringEvent extends jdk.jfr.Event {
+
+  @Label( "Step" )
+  String step;
+
+  @Label( "Step Copy" )
+  int copy;
+
+  @Label( "Model Class" )
+  String modelClass;
+
+  @Label( "Rows" )
+  int rows;
+}
@@ -0,0 +1,459 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pentaho.di.core.logging.KettleLogStore;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.variables.Variables;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Scores a CSV or ARFF file with a model from the command line, without going
+ * through the Kettle row pipeline. The data section of the file is memory
+ * mapped in chunks (split on line boundaries) that are parsed and scored in
+ * parallel; predictions are written in the order of the input.
+ * <p>
+ * CSV files must have a header line naming the fields; fields are matched to
+ * the model's attributes by name. ARFF files must be in dense format. Each
+ * output line is the input line followed by the prediction (and, optionally,
+ * the predicted distribution), comma separated.
+ * <p>
+ * Usage:
+ * <pre>
+ * BulkScorer -model &lt;model file&gt; -input &lt;csv or arff file&gt; -output &lt;file&gt;
+ *     [-threads &lt;n&gt;] [-chunk-size &lt;KB&gt;] [-probs]
+ * </pre>
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class BulkScorer {
+
+  public static final int DEFAULT_CHUNK_SIZE_KB = 4096;
+
+  private final ScoringEngine m_engine;
+  private final int m_threads;
+  private final int m_chunkSize;
+  private final boolean m_outputProbs;
+
+  /**
+   * Creates a new <code>BulkScorer</code> instance.
+   *
+   * @param engine      the engine to score with
+   * @param threads     the number of threads to parse and score with
+   * @param chunkSize   the approximate size (in bytes) of the chunks that the
+   *                    input is split into
+   * @param outputProbs true to write the predicted distribution as well as
+   *                    the prediction
+   */
+  public BulkScorer( ScoringEngine engine, int threads, int chunkSize, boolean outputProbs ) {
+    m_engine = engine;
+    m_threads = Math.max( threads, 1 );
+    m_chunkSize = Math.max( chunkSize, 1 );
+    m_outputProbs = outputProbs;
+  }
+
+  /**
+   * Score a CSV or ARFF file (determined by the extension)
+   *
+   * @param input  the file to score
+   * @param output the file to write to
+   * @return the number of rows scored
+   * @throws Exception if a problem occurs
+   */
+  public long score( File input, File output ) throws Exception {
+    FileChannel channel = FileChannel.open( input.toPath(), StandardOpenOption.READ );
+    ExecutorService pool = Executors.newFixedThreadPool( m_threads );
+    Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( output ), StandardCharsets.UTF_8 ),
+        1 << 16 );
+    try {
+      boolean arff = input.getName().toLowerCase().endsWith( ".arff" ); //$NON-NLS-1$
+
+      // read the header and work out where the data starts
+      final ScoringSchema schema;
+      final char[] quotes;
+      long position = 0;
+      String outputHeader;
+      if ( arff ) {
+        StringBuilder header = new StringBuilder();
+        String line;
+        do {
+          line = readLine( channel, position );
+          if ( line == null ) {
+            throw new IOException( "No @data section in " + input ); //$NON-NLS-1$
+          }
+          position += line.getBytes( StandardCharsets.UTF_8 ).length + 1;
+          header.append( line ).append( '\n' );
+        } while ( !line.trim().toLowerCase().startsWith( "@data" ) ); //$NON-NLS-1$
+
+        Instances arffHeader = new Instances( new StringReader( header.toString() ) );
+        schema = ScoringSchema.forHeader( arffHeader );
+        quotes = new char[] { '\'', '"' };
+        StringBuilder names = new StringBuilder();
+        for ( int i = 0; i < schema.size(); i++ ) {
+          names.append( i > 0 ? "," : "" ).append( schema.getName( i ) ); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        outputHeader = names.toString();
+      } else {
+        String line = readLine( channel, 0 );
+        if ( line == null ) {
+          throw new IOException( "No header line in " + input ); //$NON-NLS-1$
+        }
+        position = line.getBytes( StandardCharsets.UTF_8 ).length + 1;
+        quotes = new char[] { '"' };
+        List<String> names = split( stripCarriageReturn( line ), quotes );
+        schema = schemaFor( names, m_engine.getHeader() );
+        outputHeader = stripCarriageReturn( line );
+      }
+
+      out.write( outputHeader );
+      out.write( predictionColumns() );
+      out.write( '\n' );
+
+      final ScoringMapping mapping = m_engine.compile( schema );
+      if ( !mapping.isAnyMapped() ) {
+        throw new IOException( "None of the model's attributes are in " + input ); //$NON-NLS-1$
+      }
+
+      // chunks are scored in parallel, but written in order. Only a few
+      // chunks are kept in flight so that memory use stays bounded
+      Deque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+      long rows = 0;
+      long size = channel.size();
+      while ( position < size || !inFlight.isEmpty() ) {
+        while ( position < size && inFlight.size() < m_threads * 2 ) {
+          long end = chunkEnd( channel, position, size );
+          inFlight.add( pool.submit( new ChunkScorer( channel, position, end, schema, mapping, quotes ) ) );
+          position = end;
+        }
+
+        Chunk done = inFlight.removeFirst().get();
+        out.write( done.m_output.toString() );
+        rows += done.m_rows;
+      }
+
+      return rows;
+    } finally {
+      out.close();
+      pool.shutdownNow();
+      channel.close();
+    }
+  }
+
+  /**
+   * Names for the prediction columns, in the style of the scoring step
+   */
+  private String predictionColumns() throws Exception {
+    StringBuilder b = new StringBuilder();
+    if ( m_engine.isSupervisedLearningModel() ) {
+      Attribute classAtt = m_engine.getHeader().classAttribute();
+      b.append( ',' ).append( classAtt.name() ).append( "_predicted" ); //$NON-NLS-1$
+      if ( m_outputProbs && classAtt.numValues() > 1 ) {
+        for ( int i = 0; i < classAtt.numValues(); i++ ) {
+          b.append( ',' ).append( classAtt.name() ).append( ':' ).append( classAtt.value( i ) )
+              .append( "_predicted_prob" ); //$NON-NLS-1$
+        }
+      }
+    } else {
+      b.append( ",cluster#_predicted" ); //$NON-NLS-1$
+      int numClusters = m_engine.numberOfClusters();
+      if ( m_outputProbs && numClusters > 1 ) {
+        for ( int i = 0; i < numClusters; i++ ) {
+          b.append( ",cluster_" ).append( i ).append( "_predicted_prob" ); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * Types CSV fields by the type of the attribute with the same name
+   */
+  private static ScoringSchema schemaFor( List<String> names, Instances header ) {
+    String[] fieldNames = names.toArray( new String[names.size()] );
+    int[] types = new int[fieldNames.length];
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      fieldNames[i] = fieldNames[i].trim();
+      Attribute att = header.attribute( fieldNames[i] );
+      if ( att != null && att.isNumeric() ) {
+        types[i] = ScoringSchema.TYPE_NUMBER;
+      } else if ( att != null && ( att.isNominal() || att.isString() ) ) {
+        types[i] = ScoringSchema.TYPE_STRING;
+      } else {
+        types[i] = ScoringSchema.TYPE_OTHER;
+      }
+    }
+    return new ScoringSchema( fieldNames, types );
+  }
+
+  /**
+   * Find the end of the chunk that starts at a position: the start of the
+   * first line at least chunk size bytes on (or the end of the file)
+   */
+  private long chunkEnd( FileChannel channel, long start, long size ) throws IOException {
+    long end = start + m_chunkSize;
+    if ( end >= size ) {
+      return size;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate( 8192 );
+    while ( end < size ) {
+      buffer.clear();
+      int n = channel.read( buffer, end );
+      if ( n <= 0 ) {
+        return size;
+      }
+      for ( int i = 0; i < n; i++ ) {
+        if ( buffer.get( i ) == '\n' ) {
+          return end + i + 1;
+        }
+      }
+      end += n;
+    }
+    return size;
+  }
+
+  /**
+   * Read the line starting at a position (without the line terminator)
+   */
+  private static String readLine( FileChannel channel, long position ) throws IOException {
+    if ( position >= channel.size() ) {
+      return null;
+    }
+
+    long end = position;
+    ByteBuffer buffer = ByteBuffer.allocate( 8192 );
+    outer:
+    while ( end < channel.size() ) {
+      buffer.clear();
+      int n = channel.read( buffer, end );
+      if ( n <= 0 ) {
+        break;
+      }
+      for ( int i = 0; i < n; i++ ) {
+        if ( buffer.get( i ) == '\n' ) {
+          end += i;
+          break outer;
+        }
+      }
+      end += n;
+    }
+
+    ByteBuffer line = ByteBuffer.allocate( (int) ( end - position ) );
+    channel.read( line, position );
+    line.flip();
+    return StandardCharsets.UTF_8.decode( line ).toString();
+  }
+
+  private static String stripCarriageReturn( String line ) {
+    return line.endsWith( "\r" ) ? line.substring( 0, line.length() - 1 ) : line; //$NON-NLS-1$
+  }
+
+  /**
+   * Split a line on commas, allowing values to be quoted
+   */
+  static List<String> split( String line, char[] quotes ) {
+    List<String> values = new ArrayList<String>();
+    StringBuilder current = new StringBuilder();
+    char quote = 0;
+    for ( int i = 0; i < line.length(); i++ ) {
+      char c = line.charAt( i );
+      if ( quote != 0 ) {
+        if ( c == '\\' && i + 1 < line.length() ) {
+          current.append( line.charAt( ++i ) );
+        } else if ( c == quote ) {
+          quote = 0;
+        } else {
+          current.append( c );
+        }
+      } else if ( c == ',' ) {
+        values.add( current.toString() );
+        current.setLength( 0 );
+      } else if ( isQuote( c, quotes ) && current.toString().trim().length() == 0 ) {
+        quote = c;
+        current.setLength( 0 );
+      } else {
+        current.append( c );
+      }
+    }
+    values.add( current.toString() );
+    return values;
+  }
+
+  private static boolean isQuote( char c, char[] quotes ) {
+    for ( char q : quotes ) {
+      if ( c == q ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The result of scoring a chunk
+   */
+  private static class Chunk {
+    final StringBuilder m_output;
+    final int m_rows;
+
+    Chunk( StringBuilder output, int rows ) {
+      m_output = output;
+      m_rows = rows;
+    }
+  }
+
+  /**
+   * Maps, parses and scores one chunk of the input
+   */
+  private class ChunkScorer implements Callable<Chunk> {
+    private final FileChannel m_channel;
+    private final long m_start;
+    private final long m_end;
+    private final ScoringSchema m_schema;
+    private final ScoringMapping m_mapping;
+    private final char[] m_quotes;
+
+    ChunkScorer( FileChannel channel, long start, long end, ScoringSchema schema, ScoringMapping mapping,
+        char[] quotes ) {
+      m_channel = channel;
+      m_start = start;
+      m_end = end;
+      m_schema = schema;
+      m_mapping = mapping;
+      m_quotes = quotes;
+    }
+
+    public Chunk call() throws Exception {
+      MappedByteBuffer mapped = m_channel.map( FileChannel.MapMode.READ_ONLY, m_start, m_end - m_start );
+      CharBuffer text = StandardCharsets.UTF_8.decode( mapped );
+
+      List<String> lines = new ArrayList<String>();
+      List<Object[]> rows = new ArrayList<Object[]>();
+      int lineStart = 0;
+      for ( int i = 0; i <= text.length(); i++ ) {
+        if ( i == text.length() || text.charAt( i ) == '\n' ) {
+          String line = stripCarriageReturn( text.subSequence( lineStart, i ).toString() );
+          lineStart = i + 1;
+          String trimmed = line.trim();
+          if ( trimmed.length() == 0 || trimmed.startsWith( "%" ) ) { //$NON-NLS-1$
+            continue;
+          }
+          if ( trimmed.startsWith( "{" ) ) { //$NON-NLS-1$
+            throw new IOException( "Sparse ARFF data is not supported" ); //$NON-NLS-1$
+          }
+          lines.add( line );
+          rows.add( parse( line ) );
+        }
+      }
+
+      double[][] preds = m_engine.scoreBatch( m_mapping, rows );
+
+      StringBuilder output = new StringBuilder( ( m_end - m_start ) > Integer.MAX_VALUE / 2
+          ? Integer.MAX_VALUE / 2 : (int) ( ( m_end - m_start ) * 2 ) );
+      for ( int i = 0; i < preds.length; i++ ) {
+        output.append( lines.get( i ) ).append( ',' );
+        m_engine.appendPrediction( preds[i], m_outputProbs, output );
+        output.append( '\n' );
+      }
+      return new Chunk( output, preds.length );
+    }
+
+    private Object[] parse( String line ) {
+      List<String> values = split( line, m_quotes );
+      Object[] row = new Object[m_schema.size()];
+      for ( int i = 0; i < row.length && i < values.size(); i++ ) {
+        String value = values.get( i ).trim();
+        if ( value.length() == 0 || "?".equals( value ) ) { //$NON-NLS-1$
+          continue;
+        }
+        switch ( m_schema.getType( i ) ) {
+          case ScoringSchema.TYPE_NUMBER:
+            try {
+              row[i] = Double.valueOf( value );
+            } catch ( NumberFormatException ex ) {
+              // leave as missing
+            }
+            break;
+          case ScoringSchema.TYPE_STRING:
+            row[i] = value;
+            break;
+          default:
+            // not used by the model
+        }
+      }
+      return row;
+    }
+  }
+
+  /**
+   * Run from the command line
+   *
+   * @param args the options (see the class documentation)
+   */
+  public static void main( String[] args ) {
+    try {
+      String model = Utils.getOption( "model", args ); //$NON-NLS-1$
+      String input = Utils.getOption( "input", args ); //$NON-NLS-1$
+      String output = Utils.getOption( "output", args ); //$NON-NLS-1$
+      if ( model.length() == 0 || input.length() == 0 || output.length() == 0 ) {
+        System.err.println( "Usage: BulkScorer -model <model file> -input <csv or arff file> -output <file> " //$NON-NLS-1$
+            + "[-threads <n>] [-chunk-size <KB>] [-probs]" ); //$NON-NLS-1$
+        System.exit( 1 );
+      }
+
+      String threads = Utils.getOption( "threads", args ); //$NON-NLS-1$
+      String chunk = Utils.getOption( "chunk-size", args ); //$NON-NLS-1$
+      boolean probs = Utils.getFlag( "probs", args ); //$NON-NLS-1$
+
+      long start = System.currentTimeMillis();
+      KettleLogStore.init();
+      ScoringEngine engine = new ScoringEngine(
+          WekaScoringData.loadSerializedModel( model, new LogChannel( "BulkScorer" ), new Variables() ) ); //$NON-NLS-1$
+      BulkScorer scorer = new BulkScorer( engine,
+          threads.length() > 0 ? Integer.parseInt( threads ) : Runtime.getRuntime().availableProcessors(),
+          ( chunk.length() > 0 ? Integer.parseInt( chunk ) : DEFAULT_CHUNK_SIZE_KB ) * 1024, probs );
+      long rows = scorer.score( new File( input ), new File( output ) );
+
+      System.err.println( "Scored " + rows + " rows in " //$NON-NLS-1$ //$NON-NLS-2$
+          + ( System.currentTimeMillis() - start ) + " ms" ); //$NON-NLS-1$
+    } catch ( Exception ex ) {
+      ex.printStackTrace();
+      System.exit( 1 );
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.meta.Vote;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+
+/**
+ * Predicts class labels with an ensemble (Bagging, RandomForest or Vote) by
+ * evaluating its members in order and stopping as soon as the votes still to
+ * come cannot change the winning class. Every member adds at most 1 to the
+ * score of each class (a probability when averaging, a vote when majority
+ * voting), so once the leading class is ahead of every other class by more
+ * than the number of members left the prediction is decided.
+ * <p>
+ * Only the predicted label is meaningful - the scores returned are not a
+ * probability distribution. Where the ensemble itself would break a tie
+ * between classes at random (Vote with majority voting) the first of the tied
+ * classes is predicted.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+class EarlyExitEnsemble {
+
+  /**
+   * the members of the ensemble, in the order that the ensemble evaluates them
+   */
+  private final Classifier[] m_members;
+
+  /**
+   * true if each member votes for its most probable class(es) rather than
+   * contributing its distribution
+   */
+  private final boolean m_majorityVote;
+
+  private EarlyExitEnsemble( Classifier[] members, boolean majorityVote ) {
+    m_members = members;
+    m_majorityVote = majorityVote;
+  }
+
+  /**
+   * Creates an early-exit scorer for a classifier, if it is an ensemble that
+   * combines its members in a way that allows early exit
+   *
+   * @param model the classifier
+   * @return the scorer, or null if the classifier is not a suitable ensemble
+   */
+  static EarlyExitEnsemble create( Classifier model ) {
+    if ( model instanceof RandomForest && !( model instanceof Bagging ) ) {
+      // older versions of Weka wrap a Bagging rather than extending it
+      Object bagger = getFieldValue( model, "m_bagger" ); //$NON-NLS-1$
+      if ( bagger instanceof Bagging ) {
+        model = (Bagging) bagger;
+      }
+    }
+
+    List<Classifier> members = new ArrayList<Classifier>();
+    boolean majorityVote = false;
+    if ( model instanceof Bagging ) {
+      // Bagging sums the distributions of its members
+      addMembers( getFieldValue( model, "m_Classifiers" ), members ); //$NON-NLS-1$
+    } else if ( model instanceof Vote ) {
+      Vote vote = (Vote) model;
+      int rule = vote.getCombinationRule().getSelectedTag().getID();
+      if ( rule == Vote.MAJORITY_VOTING_RULE ) {
+        majorityVote = true;
+      } else if ( rule != Vote.AVERAGE_RULE ) {
+        return null;
+      }
+      addMembers( vote.getClassifiers(), members );
+      addMembers( getFieldValue( model, "m_preBuiltClassifiers" ), members ); //$NON-NLS-1$
+    }
+
+    if ( members.size() < 2 ) {
+      return null;
+    }
+
+    return new EarlyExitEnsemble( members.toArray( new Classifier[members.size()] ), majorityVote );
+  }
+
+  /**
+   * Get the number of members in the ensemble
+   *
+   * @return the number of members
+   */
+  int getNumMembers() {
+    return m_members.length;
+  }
+
+  /**
+   * Scores an instance, stopping once the predicted class is decided
+   *
+   * @param inst   the instance to score (its class must be nominal)
+   * @param scores filled with the score of each class - the predicted class
+   *               has the largest score (all zero if no prediction can be
+   *               made)
+   * @return the number of members that were evaluated
+   * @throws Exception if a member can't score the instance
+   */
+  int vote( Instance inst, double[] scores ) throws Exception {
+    for ( int i = 0; i < m_members.length; i++ ) {
+      double[] dist = m_members[i].distributionForInstance( inst );
+      if ( m_majorityVote ) {
+        int best = 0;
+        for ( int j = 1; j < dist.length; j++ ) {
+          if ( dist[j] > dist[best] ) {
+            best = j;
+          }
+        }
+        if ( dist[best] > 0 ) {
+          // members that are undecided vote for all of their best classes
+          for ( int j = 0; j < dist.length; j++ ) {
+            if ( dist[j] == dist[best] ) {
+              scores[j]++;
+            }
+          }
+        }
+      } else {
+        for ( int j = 0; j < dist.length; j++ ) {
+          scores[j] += dist[j];
+        }
+      }
+
+      if ( decided( scores, m_members.length - i - 1 ) ) {
+        return i + 1;
+      }
+    }
+
+    return m_members.length;
+  }
+
+  /**
+   * Returns true if the leading class can no longer be overtaken (or drawn
+   * level with) by any other class
+   *
+   * @param scores    the scores so far
+   * @param remaining the number of members still to vote
+   * @return true if the prediction is decided
+   */
+  private static boolean decided( double[] scores, int remaining ) {
+    int first = 0;
+    for ( int j = 1; j < scores.length; j++ ) {
+      if ( scores[j] > scores[first] ) {
+        first = j;
+      }
+    }
+    for ( int j = 0; j < scores.length; j++ ) {
+      if ( j != first && scores[first] <= scores[j] + remaining ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds classifiers held in an array or a list to the members
+   *
+   * @param classifiers the classifiers (may be null)
+   * @param members     the members to add to
+   */
+  private static void addMembers( Object classifiers, List<Classifier> members ) {
+    if ( classifiers instanceof Classifier[] ) {
+      for ( Classifier c : (Classifier[]) classifiers ) {
+        members.add( c );
+      }
+    } else if ( classifiers instanceof List ) {
+      for ( Object c : (List<?>) classifiers ) {
+        members.add( (Classifier) c );
+      }
+    }
+  }
+
+  /**
+   * Gets the value of a (typically protected) field of an ensemble. Weka
+   * does not expose the trained members of every ensemble.
+   *
+   * @param o    the ensemble
+   * @param name the name of the field
+   * @return the value of the field, or null if it doesn't exist or can't be
+   * read
+   */
+  private static Object getFieldValue( Object o, String name ) {
+    for ( Class<?> c = o.getClass(); c != null; c = c.getSuperclass() ) {
+      try {
+        Field f = c.getDeclaredField( name );
+        f.setAccessible( true );
+        return f.get( o );
+      } catch ( NoSuchFieldException ex ) {
+        // try the superclass
+      } catch ( Exception ex ) {
+        return null;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,279 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Holds a model that is embedded in the step meta data (XML or repository) in
+ * its encoded form. The compressed form is Base64 encoded, GZIP compressed
+ * Java serialization, held as a list of chunks so that a large model can be
+ * stored in a repository without building one huge attribute value. This is
+ * the same encoding that XMLHandler.addTagValue(String, byte[]) produces, so
+ * the compressed form can be read by earlier versions of the step. The legacy
+ * form is the single repository attribute written by earlier versions.
+ * <p>
+ * A SHA-256 hash of the encoded text is used to check the integrity of chunks
+ * read from a repository.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+class EncodedModel {
+
+  /**
+   * Default size (in characters) of a chunk. Must be a multiple of 4 so that
+   * chunk boundaries fall on Base64 quantum boundaries.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+  /**
+   * The encoded model
+   */
+  private final List<String> m_chunks;
+
+  /**
+   * True if this is the compressed form, false for the legacy form
+   */
+  private final boolean m_compressed;
+
+  /**
+   * Hex encoded SHA-256 hash of the encoded text (computed on demand)
+   */
+  private String m_hash;
+
+  /**
+   * Creates a new <code>EncodedModel</code> instance.
+   *
+   * @param chunks     the encoded model
+   * @param compressed true if the chunks hold the compressed form
+   */
+  EncodedModel( List<String> chunks, boolean compressed ) {
+    m_chunks = chunks;
+    m_compressed = compressed;
+  }
+
+  /**
+   * Encodes a model in compressed form. The model is streamed through the
+   * compressor and Base64 encoder straight into chunks, so neither the full
+   * serialized byte array nor a single encoded string is ever held in memory.
+   *
+   * @param model     the model to encode
+   * @param chunkSize the maximum size (in characters) of a chunk
+   * @return the encoded model
+   * @throws Exception if a problem occurs
+   */
+  static EncodedModel encode( WekaScoringModel model, int chunkSize ) throws Exception {
+    ChunkingOutputStream chunker = new ChunkingOutputStream( chunkSize );
+    WekaScoringData.writeCompressedModel( model, Base64.getEncoder().wrap( chunker ) );
+
+    EncodedModel encoded = new EncodedModel( chunker.getChunks(), true );
+    encoded.m_hash = chunker.getHash();
+
+    return encoded;
+  }
+
+  /**
+   * De-serializes the model.
+   *
+   * @return the model
+   * @throws Exception if a problem occurs
+   */
+  WekaScoringModel decode() throws Exception {
+    // installed Weka packages are only loaded if the model needs them
+    return WekaPackageLoader.callWithPackages( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        return decodeModel();
+      }
+    } );
+  }
+
+  private WekaScoringModel decodeModel() throws Exception {
+    if ( !m_compressed ) {
+      return WekaScoringMeta.deSerializeBase64Model( asString() );
+    }
+
+    final Iterator<String> chunks = m_chunks.iterator();
+    Enumeration<InputStream> streams = new Enumeration<InputStream>() {
+      public boolean hasMoreElements() {
+        return chunks.hasNext();
+      }
+
+      public InputStream nextElement() {
+        return new ByteArrayInputStream( chunks.next().getBytes( StandardCharsets.US_ASCII ) );
+      }
+    };
+
+    return WekaScoringData.readCompressedModel( Base64.getMimeDecoder().wrap( new SequenceInputStream( streams ) ) );
+  }
+
+  /**
+   * Returns true if this is the compressed form
+   *
+   * @return true if this is the compressed form
+   */
+  boolean isCompressed() {
+    return m_compressed;
+  }
+
+  /**
+   * Get the encoded model as a single string
+   *
+   * @return the encoded model as a single string
+   */
+  String asString() {
+    if ( m_chunks.size() == 1 ) {
+      return m_chunks.get( 0 );
+    }
+
+    StringBuilder b = new StringBuilder();
+    for ( String chunk : m_chunks ) {
+      b.append( chunk );
+    }
+    return b.toString();
+  }
+
+  /**
+   * Get the encoded model as a list of chunks, none of which is larger than
+   * the supplied size
+   *
+   * @param chunkSize the maximum size (in characters) of a chunk
+   * @return the chunks
+   */
+  List<String> getChunks( int chunkSize ) {
+    boolean ok = true;
+    for ( String chunk : m_chunks ) {
+      if ( chunk.length() > chunkSize ) {
+        ok = false;
+        break;
+      }
+    }
+    if ( ok ) {
+      return Collections.unmodifiableList( m_chunks );
+    }
+
+    String all = asString();
+    List<String> chunks = new ArrayList<String>( all.length() / chunkSize + 1 );
+    for ( int i = 0; i < all.length(); i += chunkSize ) {
+      chunks.add( all.substring( i, Math.min( all.length(), i + chunkSize ) ) );
+    }
+    return chunks;
+  }
+
+  /**
+   * Get the hex encoded SHA-256 hash of the encoded text
+   *
+   * @return the hash
+   */
+  synchronized String getHash() {
+    if ( m_hash == null ) {
+      MessageDigest digest = newDigest();
+      for ( String chunk : m_chunks ) {
+        digest.update( chunk.getBytes( StandardCharsets.US_ASCII ) );
+      }
+      m_hash = toHex( digest.digest() );
+    }
+    return m_hash;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" ); //$NON-NLS-1$
+    } catch ( Exception ex ) {
+      // every JRE is required to support SHA-256
+      throw new IllegalStateException( ex );
+    }
+  }
+
+  private static String toHex( byte[] bytes ) {
+    StringBuilder b = new StringBuilder( bytes.length * 2 );
+    for ( byte v : bytes ) {
+      b.append( Character.forDigit( ( v >> 4 ) & 0xF, 16 ) );
+      b.append( Character.forDigit( v & 0xF, 16 ) );
+    }
+    return b.toString();
+  }
+
+  /**
+   * OutputStream that splits (ASCII) output into fixed size string chunks
+   * and hashes it on the way through.
+   */
+  private static class ChunkingOutputStream extends OutputStream {
+
+    private final List<String> m_chunks = new ArrayList<String>();
+    private final MessageDigest m_digest = newDigest();
+    private final byte[] m_buffer;
+    private int m_count;
+    private String m_hash;
+
+    ChunkingOutputStream( int chunkSize ) {
+      m_buffer = new byte[chunkSize];
+    }
+
+    @Override public void write( int b ) throws IOException {
+      if ( m_count == m_buffer.length ) {
+        flushChunk();
+      }
+      m_buffer[m_count++] = (byte) b;
+    }
+
+    @Override public void write( byte[] b, int off, int len ) throws IOException {
+      while ( len > 0 ) {
+        if ( m_count == m_buffer.length ) {
+          flushChunk();
+        }
+        int n = Math.min( len, m_buffer.length - m_count );
+        System.arraycopy( b, off, m_buffer, m_count, n );
+        m_count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override public void close() throws IOException {
+      if ( m_hash == null ) {
+        if ( m_count > 0 ) {
+          flushChunk();
+        }
+        m_hash = toHex( m_digest.digest() );
+      }
+    }
+
+    private void flushChunk() {
+      m_digest.update( m_buffer, 0, m_count );
+      m_chunks.add( new String( m_buffer, 0, m_count, StandardCharsets.US_ASCII ) );
+      m_count = 0;
+    }
+
+    List<String> getChunks() {
+      return m_chunks;
+    }
+
+    String getHash() {
+      return m_hash;
+    }
+  }
+}
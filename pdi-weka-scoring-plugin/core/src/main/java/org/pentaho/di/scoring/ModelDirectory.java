@@ -0,0 +1,158 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileType;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Loads all the models in a directory (or a zip file) so that rows can be
+ * scored by the model named in one of their fields. Models are keyed by their
+ * file name without its extension(s), e.g. <code>store_0042.model.gz</code>
+ * is keyed by <code>store_0042</code>, and are loaded in parallel.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+class ModelDirectory {
+
+  /**
+   * the extensions of the model files that are loaded (see
+   * ScoringEngine.readModel()). Other files are ignored.
+   */
+  private static final String[] MODEL_EXTENSIONS = { ".model", ".gz", ".xml", ".xstreammodel" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+  private ModelDirectory() {
+  }
+
+  /**
+   * Loads the models in a directory or zip file
+   *
+   * @param directory  the directory or zip file (may contain variables)
+   * @param log        the log to use
+   * @param space      variables to use for substitution in the path
+   * @param threads    the number of models to load at the same time
+   * @param metrics    metrics to record load times in (may be null)
+   * @param threadName the name for the loading threads
+   * @return the models, by key
+   * @throws Exception if the directory can't be read, a model can't be loaded
+   *                   or two models have the same key
+   */
+  static Map<String, WekaScoringModel> load( String directory, final LogChannelInterface log,
+      final VariableSpace space, int threads, final WekaScoringMetrics metrics, final String threadName )
+      throws Exception {
+
+    String resolved = space.environmentSubstitute( directory );
+    FileObject dir = KettleVFS.getFileObject( resolved );
+    if ( !dir.exists() ) {
+      throw new Exception( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Error.NonExistentModelDirectory", //$NON-NLS-1$
+          resolved ) );
+    }
+    if ( dir.getType() == FileType.FILE && resolved.toLowerCase().endsWith( ".zip" ) ) { //$NON-NLS-1$
+      dir = KettleVFS.getFileObject( "zip:" + dir.getName().getURI() + "!/" ); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    List<String> keys = new ArrayList<String>();
+    List<String> uris = new ArrayList<String>();
+    for ( FileObject child : dir.getChildren() ) {
+      String key = keyFor( child.getName().getBaseName() );
+      if ( child.getType() == FileType.FILE && key != null ) {
+        keys.add( key );
+        uris.add( child.getName().getURI() );
+      }
+    }
+
+    Map<String, WekaScoringModel> models = new HashMap<String, WekaScoringModel>();
+    if ( uris.isEmpty() ) {
+      return models;
+    }
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool( Math.max( 1, Math.min( threads, uris.size() ) ), new ThreadFactory() {
+          public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, threadName );
+            t.setDaemon( true );
+            return t;
+          }
+        } );
+    try {
+      List<Future<WekaScoringModel>> loads = new ArrayList<Future<WekaScoringModel>>( uris.size() );
+      for ( final String uri : uris ) {
+        loads.add( executor.submit( new Callable<WekaScoringModel>() {
+          public WekaScoringModel call() throws Exception {
+            long start = System.nanoTime();
+            WekaScoringModel model = WekaScoringData.loadSerializedModel( uri, log, space );
+            if ( metrics != null ) {
+              metrics.modelLoaded( System.nanoTime() - start );
+            }
+            return model;
+          }
+        } ) );
+      }
+
+      for ( int i = 0; i < loads.size(); i++ ) {
+        WekaScoringModel model;
+        try {
+          model = loads.get( i ).get();
+        } catch ( ExecutionException ex ) {
+          throw new Exception( BaseMessages.getString( WekaScoringMeta.PKG,
+              "WekaScoring.Error.ProblemLoadingModelFromDirectory", uris.get( i ) ), ex.getCause() ); //$NON-NLS-1$
+        }
+        if ( models.put( keys.get( i ), model ) != null ) {
+          throw new Exception( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Error.DuplicateModelKey", //$NON-NLS-1$
+              keys.get( i ), resolved ) );
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return models;
+  }
+
+  /**
+   * Get the key for a model file
+   *
+   * @param fileName the name of the file (without its path)
+   * @return the name without its extension(s), or null if the file is not a
+   * model file
+   */
+  static String keyFor( String fileName ) {
+    String lower = fileName.toLowerCase();
+    for ( String ext : MODEL_EXTENSIONS ) {
+      if ( lower.endsWith( ext ) && lower.length() > ext.length() ) {
+        String key = fileName.substring( 0, fileName.length() - ext.length() );
+        if ( ext.equals( ".gz" ) && key.toLowerCase().endsWith( ".model" ) ) { //$NON-NLS-1$ //$NON-NLS-2$
+          key = key.substring( 0, key.length() - ".model".length() ); //$NON-NLS-1$
+        }
+        return key;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,42 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for loading a serialized model from file.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+@Name( "org.pentaho.di.scoring.ModelLoad" )
+@Label( "Weka Model Load" )
+@Category( { "Pentaho", "Weka Scoring" } )
+@Description( "Loading of a serialized Weka model from file" )
+class ModelLoadEvent extends jdk.jfr.Event {
+
+  @Label( "Model File" )
+  String modelFile;
+
+  @Label( "Model Class" )
+  String modelClass;
+
+  @Label( "File Size" )
+  @DataAmount
+  long bytes;
+}
@@ -0,0 +1,497 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.core.Utils;
+import weka.core.pmml.PMMLFactory;
+import weka.core.pmml.PMMLModel;
+import weka.core.xml.XStream;
+
+/**
+ * Scores rows with a Weka model without needing the Kettle engine. Rows are
+ * described by a {@link ScoringSchema}; a schema is compiled against the
+ * model once into a {@link ScoringMapping}, which is then passed to the score
+ * methods. Rows can be supplied as arrays of values, as primitive arrays or
+ * in column batches, or read through a custom {@link ScoringFieldReader}.
+ * <p>
+ * An engine is safe to use from many threads at once. Weka models are not in
+ * general safe to share, so each thread that scores gets its own copy of the
+ * model (de-serialized from an in-memory copy the first time the thread
+ * scores). Threads in a pool keep their copy for as long as the engine is
+ * reachable.
+ * <p>
+ * The Weka scoring step is an adapter over the same mapping and loading code.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class ScoringEngine {
+
+  /**
+   * the model that copies are taken from
+   */
+  private final WekaScoringModel m_model;
+
+  /**
+   * the in-memory serialized copy of the model
+   */
+  private final SerializedObject m_serialized;
+
+  /**
+   * each thread's copy of the model
+   */
+  private final ThreadLocal<WekaScoringModel> m_copies = new ThreadLocal<WekaScoringModel>() {
+    @Override protected WekaScoringModel initialValue() {
+      try {
+        return WekaPackageLoader.deserialize( m_serialized );
+      } catch ( Exception ex ) {
+        throw new IllegalStateException( ex );
+      }
+    }
+  };
+
+  /**
+   * Creates a new <code>ScoringEngine</code> instance.
+   *
+   * @param model the model to score with. The engine takes a copy, so later
+   *              changes to the model are not seen
+   * @throws Exception if the model can't be copied
+   */
+  public ScoringEngine( WekaScoringModel model ) throws Exception {
+    m_serialized = new SerializedObject( model );
+    m_model = WekaPackageLoader.deserialize( m_serialized );
+  }
+
+  /**
+   * Load an engine from a model file. Models can either be binary serialized
+   * Java objects (optionally gzipped), objects deep-serialized to xml (with a
+   * .xstreammodel extension), or PMML (with a .xml extension).
+   *
+   * @param modelFile the model file
+   * @return the engine
+   * @throws Exception if the model can't be loaded
+   */
+  public static ScoringEngine load( final File modelFile ) throws Exception {
+    // installed Weka packages are only loaded if the model needs them
+    WekaScoringModel model = WekaPackageLoader.callWithPackages( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        return readModel( new FileInputStream( modelFile ), modelFile.getName() );
+      }
+    } );
+    return new ScoringEngine( model );
+  }
+
+  /**
+   * Load an engine from a stream holding a model. The stream is closed when
+   * done.
+   *
+   * @param in       the stream to read from
+   * @param fileName the name of the file that the model came from (the
+   *                 extension determines the format of the model)
+   * @return the engine
+   * @throws Exception if the model can't be loaded
+   */
+  public static ScoringEngine load( InputStream in, final String fileName ) throws Exception {
+    // held in memory so that the model can be read again if a package has
+    // to be loaded first
+    final byte[] bytes;
+    try {
+      bytes = in.readAllBytes();
+    } finally {
+      in.close();
+    }
+
+    // installed Weka packages are only loaded if the model needs them
+    WekaScoringModel model = WekaPackageLoader.callWithPackages( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        return readModel( new ByteArrayInputStream( bytes ), fileName );
+      }
+    } );
+    return new ScoringEngine( model );
+  }
+
+  /**
+   * Read a model from a stream. The stream is closed when done.
+   *
+   * @param in       the stream to read from
+   * @param fileName the name of the file that the model came from (the
+   *                 extension determines the format of the model)
+   * @return the model
+   * @throws Exception if the model can't be read
+   */
+  static WekaScoringModel readModel( InputStream in, String fileName ) throws Exception {
+    Object model = null;
+    Instances header = null;
+    int[] ignoredAttsForClustering = null;
+
+    String name = fileName.toLowerCase();
+    BufferedInputStream buff = new BufferedInputStream( in );
+    try {
+      if ( name.endsWith( ".xml" ) ) { //$NON-NLS-1$
+        // assume it is PMML
+        model = PMMLFactory.getPMMLModel( buff, null );
+
+        // we will use the mining schema as the instance structure
+        header = ( (PMMLModel) model ).getMiningSchema().getMiningSchemaAsInstances();
+      } else if ( name.endsWith( ".xstreammodel" ) ) { //$NON-NLS-1$
+        if ( !XStream.isPresent() ) {
+          throw new Exception( "XStream is not available - can't load " + fileName ); //$NON-NLS-1$
+        }
+        Vector v = (Vector) XStream.read( buff );
+
+        model = v.elementAt( 0 );
+        if ( v.size() == 2 ) {
+          // try and grab the header
+          header = (Instances) v.elementAt( 1 );
+        }
+      } else {
+        InputStream stream = buff;
+        if ( name.endsWith( ".gz" ) ) { //$NON-NLS-1$
+          stream = new GZIPInputStream( buff );
+        }
+        ObjectInputStream oi = new ObjectInputStream( stream );
+
+        model = oi.readObject();
+
+        // try and grab the header
+        header = (Instances) oi.readObject();
+
+        if ( model instanceof weka.clusterers.Clusterer ) {
+          // try and grab any attributes to be ignored during clustering
+          try {
+            ignoredAttsForClustering = (int[]) oi.readObject();
+          } catch ( Exception ex ) {
+            // Don't moan if there aren't any :-)
+          }
+        }
+      }
+    } finally {
+      buff.close();
+    }
+
+    WekaScoringModel wsm = WekaScoringModel.createScorer( model );
+    if ( wsm == null ) {
+      throw new Exception( "Not a Weka classifier or clusterer: " + fileName ); //$NON-NLS-1$
+    }
+    wsm.setHeader( header );
+    if ( wsm instanceof WekaScoringClusterer && ignoredAttsForClustering != null ) {
+      ( (WekaScoringClusterer) wsm ).setAttributesToIgnore( ignoredAttsForClustering );
+    }
+
+    return wsm;
+  }
+
+  /**
+   * Get the header of the data that the model was trained with
+   *
+   * @return a copy of the header
+   */
+  public Instances getHeader() {
+    return new Instances( m_model.getHeader(), 0 );
+  }
+
+  /**
+   * Returns true if the model is a supervised model (classifier), in which
+   * case scores are distributions over the class values (or a single numeric
+   * prediction). Otherwise scores are distributions over clusters.
+   *
+   * @return true if the model is a supervised model
+   */
+  public boolean isSupervisedLearningModel() {
+    return m_model.isSupervisedLearningModel();
+  }
+
+  /**
+   * Get the number of clusters if the model is a clusterer
+   *
+   * @return the number of clusters, or 0 if the model is not a clusterer
+   * @throws Exception if the number of clusters can't be determined
+   */
+  int numberOfClusters() throws Exception {
+    return ( m_model instanceof WekaScoringClusterer ) ? ( (WekaScoringClusterer) m_model ).numberOfClusters() : 0;
+  }
+
+  /**
+   * Append a prediction as text: the class label, numeric prediction or
+   * cluster number ("?" if nothing could be predicted), followed by the
+   * distribution if asked for and there is more than one value in it. Values
+   * are comma separated.
+   *
+   * @param pred         the predicted distribution
+   * @param distribution true to append the distribution
+   * @param b            the buffer to append to
+   */
+  void appendPrediction( double[] pred, boolean distribution, StringBuilder b ) {
+    Attribute classAtt = m_model.isSupervisedLearningModel() ? m_model.getHeader().classAttribute() : null;
+    if ( classAtt != null && classAtt.isNumeric() ) {
+      b.append( pred[0] );
+      return;
+    }
+
+    int maxIndex = Utils.maxIndex( pred );
+    if ( pred[maxIndex] <= 0 ) {
+      b.append( '?' );
+    } else if ( classAtt != null ) {
+      b.append( classAtt.value( maxIndex ) );
+    } else {
+      b.append( maxIndex );
+    }
+    if ( distribution && pred.length > 1 ) {
+      for ( double p : pred ) {
+        b.append( ',' ).append( p );
+      }
+    }
+  }
+
+  /**
+   * Compile a mapping from the model's attributes to the fields of a schema
+   *
+   * @param schema describes the rows to be scored
+   * @return the mapping
+   */
+  public ScoringMapping compile( ScoringSchema schema ) {
+    return ScoringMapping.compile( m_model.getHeader(), schema );
+  }
+
+  /**
+   * Score a row of values. Values are Numbers, Booleans or Strings (or
+   * anything else for string fields, whose toString() is used), in the order
+   * of the fields of the mapping's schema. Nulls are missing values.
+   *
+   * @param mapping the compiled mapping
+   * @param row     the values of the row
+   * @return the predicted distribution (or a single numeric prediction)
+   * @throws Exception if a problem occurs
+   */
+  public double[] score( ScoringMapping mapping, Object[] row ) throws Exception {
+    ObjectRowReader reader = new ObjectRowReader();
+    reader.m_row = row;
+    return score( mapping, reader );
+  }
+
+  /**
+   * Score a row of numbers, in the order of the fields of the mapping's schema
+   * (booleans are non-zero for true). NaN is a missing value. String fields
+   * can't be fed this way and are always missing.
+   *
+   * @param mapping the compiled mapping
+   * @param row     the values of the row
+   * @return the predicted distribution (or a single numeric prediction)
+   * @throws Exception if a problem occurs
+   */
+  public double[] score( ScoringMapping mapping, double[] row ) throws Exception {
+    NumberRowReader reader = new NumberRowReader();
+    reader.m_row = row;
+    return score( mapping, reader );
+  }
+
+  /**
+   * Score the current row of a reader
+   *
+   * @param mapping the compiled mapping
+   * @param reader  reads the values of the row
+   * @return the predicted distribution (or a single numeric prediction)
+   * @throws Exception if a problem occurs
+   */
+  public double[] score( ScoringMapping mapping, ScoringFieldReader reader ) throws Exception {
+    WekaScoringModel model = modelFor( mapping );
+    Instance inst = mapping.toInstance( model.getHeader(), reader, new double[mapping.numAttributes()] );
+    return model.distributionForInstance( inst );
+  }
+
+  /**
+   * Score a batch of rows of values (see score(ScoringMapping, Object[]))
+   *
+   * @param mapping the compiled mapping
+   * @param rows    the rows
+   * @return the predicted distributions, one per row
+   * @throws Exception if a problem occurs
+   */
+  public double[][] scoreBatch( ScoringMapping mapping, List<Object[]> rows ) throws Exception {
+    WekaScoringModel model = modelFor( mapping );
+    ObjectRowReader reader = new ObjectRowReader();
+    Instances batch = new Instances( model.getHeader(), rows.size() );
+    for ( Object[] row : rows ) {
+      reader.m_row = row;
+      batch.add( mapping.toInstance( model.getHeader(), reader, new double[mapping.numAttributes()] ) );
+    }
+    return distributions( model, batch );
+  }
+
+  /**
+   * Score a batch of rows held in columns, one column per field of the
+   * mapping's schema. A column is a double[] (NaN for missing values), long[],
+   * int[], boolean[], String[] or Object[] (null for missing values).
+   *
+   * @param mapping the compiled mapping
+   * @param columns the columns
+   * @param numRows the number of rows in the batch
+   * @return the predicted distributions, one per row
+   * @throws Exception if a problem occurs
+   */
+  public double[][] scoreColumns( ScoringMapping mapping, Object[] columns, int numRows ) throws Exception {
+    if ( columns.length != mapping.getSchema().size() ) {
+      throw new IllegalArgumentException( "Expected " + mapping.getSchema().size() //$NON-NLS-1$
+          + " columns but got " + columns.length ); //$NON-NLS-1$
+    }
+
+    WekaScoringModel model = modelFor( mapping );
+    ColumnReader reader = new ColumnReader( columns );
+    Instances batch = new Instances( model.getHeader(), numRows );
+    for ( int i = 0; i < numRows; i++ ) {
+      reader.m_row = i;
+      batch.add( mapping.toInstance( model.getHeader(), reader, new double[mapping.numAttributes()] ) );
+    }
+    return distributions( model, batch );
+  }
+
+  private WekaScoringModel modelFor( ScoringMapping mapping ) {
+    if ( mapping.numAttributes() != m_model.getHeader().numAttributes() ) {
+      throw new IllegalArgumentException( "Mapping was not compiled for this model" ); //$NON-NLS-1$
+    }
+    return m_copies.get();
+  }
+
+  private static double[][] distributions( WekaScoringModel model, Instances batch ) throws Exception {
+    if ( model.isBatchPredictor() ) {
+      return model.distributionsForInstances( batch );
+    }
+
+    double[][] preds = new double[batch.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = model.distributionForInstance( batch.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * Reads rows held as arrays of values
+   */
+  private static class ObjectRowReader implements ScoringFieldReader {
+    Object[] m_row;
+
+    public boolean isNull( int field ) {
+      return m_row[field] == null;
+    }
+
+    public double getNumber( int field ) {
+      return ( (Number) m_row[field] ).doubleValue();
+    }
+
+    public long getInteger( int field ) {
+      return ( (Number) m_row[field] ).longValue();
+    }
+
+    public boolean getBoolean( int field ) {
+      Object v = m_row[field];
+      return ( v instanceof Boolean ) ? ( (Boolean) v ).booleanValue() : ( (Number) v ).doubleValue() != 0;
+    }
+
+    public String getString( int field ) {
+      return m_row[field].toString();
+    }
+  }
+
+  /**
+   * Reads rows held as arrays of numbers
+   */
+  private static class NumberRowReader implements ScoringFieldReader {
+    double[] m_row;
+
+    public boolean isNull( int field ) {
+      return Double.isNaN( m_row[field] );
+    }
+
+    public double getNumber( int field ) {
+      return m_row[field];
+    }
+
+    public long getInteger( int field ) {
+      return (long) m_row[field];
+    }
+
+    public boolean getBoolean( int field ) {
+      return m_row[field] != 0;
+    }
+
+    public String getString( int field ) {
+      throw new IllegalArgumentException( "String fields can't be read from a row of numbers" ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Reads rows held in columns
+   */
+  private static class ColumnReader implements ScoringFieldReader {
+    final Object[] m_columns;
+    int m_row;
+
+    ColumnReader( Object[] columns ) {
+      m_columns = columns;
+    }
+
+    public boolean isNull( int field ) {
+      Object column = m_columns[field];
+      if ( column instanceof Object[] ) {
+        return ( (Object[]) column )[m_row] == null;
+      }
+      return ( column instanceof double[] ) && Double.isNaN( ( (double[]) column )[m_row] );
+    }
+
+    public double getNumber( int field ) {
+      Object column = m_columns[field];
+      if ( column instanceof double[] ) {
+        return ( (double[]) column )[m_row];
+      } else if ( column instanceof long[] ) {
+        return ( (long[]) column )[m_row];
+      } else if ( column instanceof int[] ) {
+        return ( (int[]) column )[m_row];
+      } else if ( column instanceof boolean[] ) {
+        return ( (boolean[]) column )[m_row] ? 1.0 : 0.0;
+      }
+      Object v = ( (Object[]) column )[m_row];
+      return ( v instanceof Boolean ) ? ( ( (Boolean) v ).booleanValue() ? 1.0 : 0.0 ) : ( (Number) v ).doubleValue();
+    }
+
+    public long getInteger( int field ) {
+      Object column = m_columns[field];
+      if ( column instanceof long[] ) {
+        return ( (long[]) column )[m_row];
+      }
+      return (long) getNumber( field );
+    }
+
+    public boolean getBoolean( int field ) {
+      return getNumber( field ) != 0;
+    }
+
+    public String getString( int field ) {
+      return ( (Object[]) m_columns[field] )[m_row].toString();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+/**
+ * Reads the field values of the current row of some source of rows (an array
+ * of values, a column batch, a Kettle row...) for a {@link ScoringMapping}.
+ * Field indexes are indexes into the {@link ScoringSchema} that the mapping
+ * was compiled against. Only the getter that matches the type of a field in
+ * the schema is called for that field. Any exception thrown by a getter causes
+ * the value to be treated as missing.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public interface ScoringFieldReader {
+
+  /**
+   * Returns true if a field's value is missing in the current row
+   *
+   * @param field the index of the field
+   * @return true if the value is missing
+   * @throws Exception if the value can't be read
+   */
+  boolean isNull( int field ) throws Exception;
+
+  /**
+   * Get the value of a number field in the current row
+   *
+   * @param field the index of the field
+   * @return the value
+   * @throws Exception if the value can't be read
+   */
+  double getNumber( int field ) throws Exception;
+
+  /**
+   * Get the value of an integer field in the current row
+   *
+   * @param field the index of the field
+   * @return the value
+   * @throws Exception if the value can't be read
+   */
+  long getInteger( int field ) throws Exception;
+
+  /**
+   * Get the value of a boolean field in the current row
+   *
+   * @param field the index of the field
+   * @return the value
+   * @throws Exception if the value can't be read
+   */
+  boolean getBoolean( int field ) throws Exception;
+
+  /**
+   * Get the value of a string field in the current row
+   *
+   * @param field the index of the field
+   * @return the value
+   * @throws Exception if the value can't be read
+   */
+  String getString( int field ) throws Exception;
+}
@@ -0,0 +1,190 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear histogram of non-negative long values (in the style
+ * of HdrHistogram). Values are counted in buckets whose width grows with the
+ * magnitude of the value, so that any recorded value is known to within about
+ * 6%. Recording is lock free and cheap enough to do for every row; the
+ * histogram can be read (e.g. over JMX) while it is being recorded to.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+class ScoringHistogram {
+
+  /**
+   * number of buckets per power of two (values below this are counted exactly)
+   */
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int NUM_BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+  private final AtomicLongArray m_counts = new AtomicLongArray( NUM_BUCKETS );
+  private final AtomicLong m_count = new AtomicLong();
+  private final AtomicLong m_sum = new AtomicLong();
+  private final AtomicLong m_min = new AtomicLong( Long.MAX_VALUE );
+  private final AtomicLong m_max = new AtomicLong( Long.MIN_VALUE );
+
+  /**
+   * Record a value
+   *
+   * @param value the value to record (negative values are recorded as 0)
+   */
+  public void record( long value ) {
+    if ( value < 0 ) {
+      value = 0;
+    }
+
+    m_counts.incrementAndGet( bucketFor( value ) );
+    m_count.incrementAndGet();
+    m_sum.addAndGet( value );
+
+    long current;
+    while ( value < ( current = m_min.get() ) && !m_min.compareAndSet( current, value ) ) {
+      // retry
+    }
+    while ( value > ( current = m_max.get() ) && !m_max.compareAndSet( current, value ) ) {
+      // retry
+    }
+  }
+
+  private static int bucketFor( long value ) {
+    if ( value < SUB_BUCKETS ) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros( value );
+    int sub = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+    return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * the largest value that falls in the given bucket
+   */
+  private static long highestValueIn( int bucket ) {
+    if ( bucket < SUB_BUCKETS ) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    long lowest = (long) ( SUB_BUCKETS + sub ) << ( exponent - SUB_BUCKET_BITS );
+    return lowest + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+  }
+
+  /**
+   * Get the number of values recorded
+   *
+   * @return the number of values recorded
+   */
+  public long getCount() {
+    return m_count.get();
+  }
+
+  /**
+   * Get the mean of the recorded values
+   *
+   * @return the mean (0 if nothing has been recorded)
+   */
+  public double getMean() {
+    long count = m_count.get();
+    return ( count == 0 ) ? 0 : (double) m_sum.get() / count;
+  }
+
+  /**
+   * Get the smallest recorded value
+   *
+   * @return the smallest value (0 if nothing has been recorded)
+   */
+  public long getMin() {
+    return ( m_count.get() == 0 ) ? 0 : m_min.get();
+  }
+
+  /**
+   * Get the largest recorded value
+   *
+   * @return the largest value (0 if nothing has been recorded)
+   */
+  public long getMax() {
+    return ( m_count.get() == 0 ) ? 0 : m_max.get();
+  }
+
+  /**
+   * Get the value at a given percentile. The result is the upper bound of the
+   * bucket that the percentile falls in, so it may overstate the true value by
+   * up to about 6%.
+   *
+   * @param percentile the percentile (0 - 100)
+   * @return the value at the percentile (0 if nothing has been recorded)
+   */
+  public long getValueAtPercentile( double percentile ) {
+    long count = m_count.get();
+    if ( count == 0 ) {
+      return 0;
+    }
+
+    long target = (long) Math.ceil( Math.min( Math.max( percentile, 0 ), 100 ) / 100.0 * count );
+    target = Math.max( target, 1 );
+    long seen = 0;
+    for ( int i = 0; i < NUM_BUCKETS; i++ ) {
+      seen += m_counts.get( i );
+      if ( seen >= target ) {
+        return Math.min( highestValueIn( i ), getMax() );
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Clear the histogram
+   */
+  public void reset() {
+    for ( int i = 0; i < NUM_BUCKETS; i++ ) {
+      m_counts.set( i, 0 );
+    }
+    m_count.set( 0 );
+    m_sum.set( 0 );
+    m_min.set( Long.MAX_VALUE );
+    m_max.set( Long.MIN_VALUE );
+  }
+
+  /**
+   * Summarise the histogram with values scaled by the supplied divisor (e.g.
+   * 1000 to report nanosecond values in microseconds)
+   *
+   * @param divisor the divisor for values
+   * @param unit    the name of the unit after scaling
+   * @return a one line summary
+   */
+  public String summary( double divisor, String unit ) {
+    StringBuilder b = new StringBuilder();
+    b.append( "count=" ).append( getCount() ); //$NON-NLS-1$
+    b.append( " mean=" ).append( format( getMean() / divisor ) ); //$NON-NLS-1$
+    b.append( " min=" ).append( format( getMin() / divisor ) ); //$NON-NLS-1$
+    b.append( " p50=" ).append( format( getValueAtPercentile( 50 ) / divisor ) ); //$NON-NLS-1$
+    b.append( " p90=" ).append( format( getValueAtPercentile( 90 ) / divisor ) ); //$NON-NLS-1$
+    b.append( " p99=" ).append( format( getValueAtPercentile( 99 ) / divisor ) ); //$NON-NLS-1$
+    b.append( " p99.9=" ).append( format( getValueAtPercentile( 99.9 ) / divisor ) ); //$NON-NLS-1$
+    b.append( " max=" ).append( format( getMax() / divisor ) ); //$NON-NLS-1$
+    b.append( ' ' ).append( unit );
+    return b.toString();
+  }
+
+  private static String format( double value ) {
+    return String.format( "%.2f", value ); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,254 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A mapping between the attributes that a Weka model was trained with and the
+ * fields of a {@link ScoringSchema}, compiled once so that converting a row
+ * into an Instance is just a matter of running through a table of field
+ * indexes and conversions. Attributes are matched to fields by name; numeric
+ * attributes can be fed by number, integer or boolean fields, and nominal and
+ * string attributes by string fields. The values of nominal attributes are
+ * only matched as the rows arrive (unknown values are treated as missing).
+ * <p>
+ * A mapping is immutable and can be shared between threads.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class ScoringMapping {
+
+  /** Field index for an attribute that has no field of the same name */
+  public static final int NO_MATCH = -1;
+
+  /** Field index for an attribute whose field is of an incompatible type */
+  public static final int TYPE_MISMATCH = -2;
+
+  private static final int CONVERT_MISSING = 0;
+  private static final int CONVERT_NUMBER = 1;
+  private static final int CONVERT_INTEGER = 2;
+  private static final int CONVERT_BOOLEAN = 3;
+  private static final int CONVERT_NOMINAL = 4;
+  private static final int CONVERT_STRING = 5;
+
+  private final ScoringSchema m_schema;
+  private final int[] m_fieldIndexes;
+  private final int[] m_conversions;
+
+  private ScoringMapping( ScoringSchema schema, int[] fieldIndexes, int[] conversions ) {
+    m_schema = schema;
+    m_fieldIndexes = fieldIndexes;
+    m_conversions = conversions;
+  }
+
+  /**
+   * Compile a mapping from a model's header to a schema
+   *
+   * @param header the header of the model
+   * @param schema describes the rows to be scored
+   * @return the mapping
+   */
+  public static ScoringMapping compile( Instances header, ScoringSchema schema ) {
+    int[] fieldIndexes = new int[header.numAttributes()];
+    int[] conversions = new int[header.numAttributes()];
+
+    // check each attribute in the header against what is incoming
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      Attribute att = header.attribute( i );
+      int field = schema.indexOf( att.name() );
+      int status = NO_MATCH;
+      int conversion = CONVERT_MISSING;
+
+      if ( field >= 0 ) {
+        // check for type compatibility
+        switch ( schema.getType( field ) ) {
+          case ScoringSchema.TYPE_NUMBER:
+            if ( att.isNumeric() ) {
+              conversion = CONVERT_NUMBER;
+            }
+            break;
+          case ScoringSchema.TYPE_INTEGER:
+            if ( att.isNumeric() ) {
+              conversion = CONVERT_INTEGER;
+            }
+            break;
+          case ScoringSchema.TYPE_BOOLEAN:
+            if ( att.isNumeric() ) {
+              conversion = CONVERT_BOOLEAN;
+            }
+            break;
+          case ScoringSchema.TYPE_STRING:
+            // All we can assume is that this input field is ok. Since we wont
+            // know what the possible values are until the data is pumping
+            // through, we will defer the matching of legal values until then
+            if ( att.isNominal() ) {
+              conversion = CONVERT_NOMINAL;
+            } else if ( att.isString() ) {
+              conversion = CONVERT_STRING;
+            }
+            break;
+          default:
+            // any other type is a mismatch (might be able to do something
+            // with dates at some stage)
+        }
+        status = ( conversion == CONVERT_MISSING ) ? TYPE_MISMATCH : field;
+      }
+
+      fieldIndexes[i] = status;
+      conversions[i] = conversion;
+    }
+
+    return new ScoringMapping( schema, fieldIndexes, conversions );
+  }
+
+  /**
+   * Get a fingerprint of the parts of a header that a compiled mapping
+   * depends on: the name and type of each attribute. Headers with the same
+   * fingerprint compile to the same mapping against any schema.
+   *
+   * @param header the header of a model
+   * @return the fingerprint
+   */
+  public static String fingerprint( Instances header ) {
+    StringBuilder fingerprint = new StringBuilder();
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      Attribute att = header.attribute( i );
+      // the length of the name keeps the fingerprint unambiguous
+      fingerprint.append( att.type() ).append( ':' ).append( att.name().length() ).append( ':' )
+          .append( att.name() ).append( ';' );
+    }
+    return fingerprint.toString();
+  }
+
+  /**
+   * Get the schema that this mapping was compiled against
+   *
+   * @return the schema
+   */
+  public ScoringSchema getSchema() {
+    return m_schema;
+  }
+
+  /**
+   * Get the number of attributes in the model's header
+   *
+   * @return the number of attributes
+   */
+  public int numAttributes() {
+    return m_fieldIndexes.length;
+  }
+
+  /**
+   * Get the index of the field that feeds an attribute
+   *
+   * @param attIndex the index of the attribute
+   * @return the index of the field, or NO_MATCH or TYPE_MISMATCH
+   */
+  public int getFieldIndex( int attIndex ) {
+    return m_fieldIndexes[attIndex];
+  }
+
+  /**
+   * Get the field index for every attribute
+   *
+   * @return a copy of the field indexes (NO_MATCH or TYPE_MISMATCH for
+   * attributes that are not mapped)
+   */
+  public int[] getFieldIndexes() {
+    return m_fieldIndexes.clone();
+  }
+
+  /**
+   * Returns true if any attribute is fed by a field
+   *
+   * @return true if at least one attribute is mapped
+   */
+  public boolean isAnyMapped() {
+    for ( int index : m_fieldIndexes ) {
+      if ( index >= 0 ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Convert the current row of a reader into an Instance. The header must have
+   * the same structure as the one this mapping was compiled from. Note that
+   * the value of a string attribute is held in the header itself, so a header
+   * must not be shared between threads if the model has string attributes.
+   *
+   * @param header the header for the instance
+   * @param reader reads the values of the current row
+   * @param vals   an array (of length numAttributes()) to hold the values. The
+   *               new Instance takes ownership of it, so it can only be
+   *               re-used if the Instance is no longer needed
+   * @return the instance
+   */
+  public Instance toInstance( Instances header, ScoringFieldReader reader, double[] vals ) {
+    for ( int i = 0; i < m_fieldIndexes.length; i++ ) {
+      int field = m_fieldIndexes[i];
+      if ( field < 0 ) {
+        // set to missing value
+        vals[i] = Utils.missingValue();
+        continue;
+      }
+
+      try {
+        // Check for missing value
+        if ( reader.isNull( field ) ) {
+          vals[i] = Utils.missingValue();
+          continue;
+        }
+
+        switch ( m_conversions[i] ) {
+          case CONVERT_NUMBER:
+            vals[i] = reader.getNumber( field );
+            break;
+          case CONVERT_INTEGER:
+            vals[i] = reader.getInteger( field );
+            break;
+          case CONVERT_BOOLEAN:
+            vals[i] = reader.getBoolean( field ) ? 1.0 : 0.0;
+            break;
+          case CONVERT_NOMINAL: {
+            // now need to look for this value in the attribute in order to
+            // get the correct index
+            int index = header.attribute( i ).indexOfValue( reader.getString( field ) );
+            vals[i] = ( index < 0 ) ? Utils.missingValue() : index;
+            break;
+          }
+          case CONVERT_STRING:
+            // Set the attribute in the header to contain just this string value
+            header.attribute( i ).setStringValue( reader.getString( field ) );
+            vals[i] = 0.0;
+            break;
+          default:
+            vals[i] = Utils.missingValue();
+        }
+      } catch ( Exception e ) {
+        vals[i] = Utils.missingValue();
+      }
+    }
+
+    Instance newInst = new DenseInstance( 1.0, vals );
+    newInst.setDataset( header );
+    return newInst;
+  }
+}
@@ -0,0 +1,131 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampling latency profiler for scoring. Roughly one in every N rows is timed,
+ * with the time split into constructing the Weka instance, evaluating the
+ * model and building the output row, so that it is possible to tell whether
+ * conversion or the model itself is the bottleneck. Timing every row (or
+ * logging at row level) costs far more than the sampled rows do.
+ * <p>
+ * When rows are scored in batches a whole batch is sampled whenever it takes
+ * the row count past a multiple of N, and the per-row average for each phase
+ * of that batch is recorded.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+class ScoringProfiler {
+
+  /**
+   * sample one in this many rows
+   */
+  private final int m_interval;
+
+  /**
+   * rows seen so far
+   */
+  private final AtomicLong m_rows = new AtomicLong();
+
+  private final ScoringHistogram m_constructNanos = new ScoringHistogram();
+  private final ScoringHistogram m_evaluateNanos = new ScoringHistogram();
+  private final ScoringHistogram m_outputNanos = new ScoringHistogram();
+  private final ScoringHistogram m_totalNanos = new ScoringHistogram();
+
+  /**
+   * Creates a new <code>ScoringProfiler</code> instance.
+   *
+   * @param interval sample one in this many rows (values less than 1 are
+   *                 treated as 1)
+   */
+  ScoringProfiler( int interval ) {
+    m_interval = Math.max( interval, 1 );
+  }
+
+  /**
+   * Get the sampling interval
+   *
+   * @return the sampling interval
+   */
+  int getInterval() {
+    return m_interval;
+  }
+
+  /**
+   * Count some rows that are about to be scored and decide whether to time
+   * them
+   *
+   * @param rows the number of rows (1, or the size of a batch)
+   * @return true if the rows should be timed
+   */
+  boolean sample( int rows ) {
+    long after = m_rows.addAndGet( rows );
+    return ( after / m_interval ) != ( ( after - rows ) / m_interval );
+  }
+
+  /**
+   * Record the timings for sampled rows
+   *
+   * @param rows      the number of rows timed
+   * @param construct the time taken to construct the instances
+   * @param evaluate  the time taken to evaluate the model
+   * @param output    the time taken to build the output rows
+   */
+  void record( int rows, long construct, long evaluate, long output ) {
+    rows = Math.max( rows, 1 );
+    m_constructNanos.record( construct / rows );
+    m_evaluateNanos.record( evaluate / rows );
+    m_outputNanos.record( output / rows );
+    m_totalNanos.record( ( construct + evaluate + output ) / rows );
+  }
+
+  /**
+   * Get the number of samples recorded
+   *
+   * @return the number of samples
+   */
+  long getSamples() {
+    return m_totalNanos.getCount();
+  }
+
+  /**
+   * Clear the recorded timings
+   */
+  void reset() {
+    m_rows.set( 0 );
+    m_constructNanos.reset();
+    m_evaluateNanos.reset();
+    m_outputNanos.reset();
+    m_totalNanos.reset();
+  }
+
+  /**
+   * Summarise the per-row latencies (in microseconds) of the sampled rows
+   *
+   * @return a multi-line summary
+   */
+  String summary() {
+    String nl = System.getProperty( "line.separator" ); //$NON-NLS-1$
+    StringBuilder b = new StringBuilder();
+    b.append( "sampled 1 in " ).append( m_interval ).append( " of " ) //$NON-NLS-1$ //$NON-NLS-2$
+        .append( m_rows.get() ).append( " rows" ).append( nl ); //$NON-NLS-1$
+    b.append( "  construction: " ).append( m_constructNanos.summary( 1000.0, "us" ) ).append( nl ); //$NON-NLS-1$ //$NON-NLS-2$
+    b.append( "  evaluation:   " ).append( m_evaluateNanos.summary( 1000.0, "us" ) ).append( nl ); //$NON-NLS-1$ //$NON-NLS-2$
+    b.append( "  output:       " ).append( m_outputNanos.summary( 1000.0, "us" ) ).append( nl ); //$NON-NLS-1$ //$NON-NLS-2$
+    b.append( "  total:        " ).append( m_totalNanos.summary( 1000.0, "us" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    return b.toString();
+  }
+}
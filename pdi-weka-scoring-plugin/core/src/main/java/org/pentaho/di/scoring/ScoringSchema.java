@@ -0,0 +1,147 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Describes the fields (names and types) of the rows that are to be scored by
+ * a {@link ScoringEngine}. This is the engine's counterpart of Kettle's row
+ * meta data; it has no dependency on Kettle so that models can be scored from
+ * code that does not run the Kettle engine.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class ScoringSchema {
+
+  /** Floating point numeric field */
+  public static final int TYPE_NUMBER = 0;
+
+  /** Integer numeric field */
+  public static final int TYPE_INTEGER = 1;
+
+  /** Boolean field (scored as 1 or 0) */
+  public static final int TYPE_BOOLEAN = 2;
+
+  /** String field (for nominal and string attributes) */
+  public static final int TYPE_STRING = 3;
+
+  /** Any other type of field. Such fields can't be mapped to attributes */
+  public static final int TYPE_OTHER = 4;
+
+  private final String[] m_names;
+  private final int[] m_types;
+  private final Map<String, Integer> m_lookup;
+
+  /**
+   * Creates a new <code>ScoringSchema</code> instance.
+   *
+   * @param names the names of the fields
+   * @param types the types of the fields (one of the TYPE_ constants)
+   */
+  public ScoringSchema( String[] names, int[] types ) {
+    if ( names.length != types.length ) {
+      throw new IllegalArgumentException( "Number of field names and types differ" ); //$NON-NLS-1$
+    }
+
+    m_names = names.clone();
+    m_types = types.clone();
+    m_lookup = new HashMap<String, Integer>();
+    for ( int i = 0; i < m_names.length; i++ ) {
+      m_lookup.put( m_names[i], Integer.valueOf( i ) );
+    }
+  }
+
+  /**
+   * Creates a schema whose fields match the attributes of a model's header one
+   * for one: numeric attributes become number fields, nominal and string
+   * attributes become string fields and anything else can't be mapped.
+   *
+   * @param header the header of the model
+   * @return the schema
+   */
+  public static ScoringSchema forHeader( Instances header ) {
+    String[] names = new String[header.numAttributes()];
+    int[] types = new int[header.numAttributes()];
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      Attribute att = header.attribute( i );
+      names[i] = att.name();
+      if ( att.isNumeric() ) {
+        types[i] = TYPE_NUMBER;
+      } else if ( att.isNominal() || att.isString() ) {
+        types[i] = TYPE_STRING;
+      } else {
+        types[i] = TYPE_OTHER;
+      }
+    }
+    return new ScoringSchema( names, types );
+  }
+
+  /**
+   * Get the number of fields
+   *
+   * @return the number of fields
+   */
+  public int size() {
+    return m_names.length;
+  }
+
+  /**
+   * Get the name of a field
+   *
+   * @param index the index of the field
+   * @return the name of the field
+   */
+  public String getName( int index ) {
+    return m_names[index];
+  }
+
+  /**
+   * Get the type of a field
+   *
+   * @param index the index of the field
+   * @return the type of the field (one of the TYPE_ constants)
+   */
+  public int getType( int index ) {
+    return m_types[index];
+  }
+
+  /**
+   * Get the index of a named field
+   *
+   * @param name the name of the field
+   * @return the index of the field, or -1 if there is no such field
+   */
+  public int indexOf( String name ) {
+    Integer index = m_lookup.get( name );
+    return ( index == null ) ? -1 : index.intValue();
+  }
+
+  @Override public boolean equals( Object o ) {
+    if ( !( o instanceof ScoringSchema ) ) {
+      return false;
+    }
+    ScoringSchema other = (ScoringSchema) o;
+    return Arrays.equals( m_names, other.m_names ) && Arrays.equals( m_types, other.m_types );
+  }
+
+  @Override public int hashCode() {
+    return 31 * Arrays.hashCode( m_names ) + Arrays.hashCode( m_types );
+  }
+}
@@ -0,0 +1,534 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.pentaho.di.core.logging.KettleLogStore;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.Variables;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import weka.core.Instances;
+
+/**
+ * A lightweight HTTP server (bound to the loopback interface) that serves
+ * predictions from one or more named models. Rows from concurrent requests for
+ * the same model are coalesced into micro-batches: each model has a single
+ * scoring thread that waits a short time (at most maxWaitMicros) for more rows
+ * once the first one arrives, and then scores up to maxBatchSize rows in one
+ * call (distributionsForInstances() for batch predictors).
+ * <p>
+ * Endpoints:
+ * <ul>
+ * <li><code>POST /score/&lt;model&gt;</code> - the body holds one row per line,
+ * with comma separated values in the order of the model's attributes (the
+ * value of the class attribute, if present, is ignored). "?" or an empty
+ * value is missing. The response holds a line per row: the prediction (class
+ * label, numeric value or cluster number) followed by the distribution when
+ * there is more than one value in it.</li>
+ * <li><code>GET /models</code> - lists the models, one per line, with their
+ * attributes.</li>
+ * <li><code>GET /stats</code> - request latency, batch size and batch scoring
+ * time summaries for each model.</li>
+ * </ul>
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class ScoringServer {
+
+  public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+  public static final long DEFAULT_MAX_WAIT_MICROS = 2000;
+
+  /**
+   * how long a request waits for its rows to be scored before giving up
+   */
+  public static final long REQUEST_TIMEOUT_SECONDS = 60;
+
+  private final HttpServer m_server;
+  private final ExecutorService m_executor;
+  private final Map<String, ModelBatcher> m_models = new TreeMap<String, ModelBatcher>();
+  private final int m_maxBatchSize;
+  private final long m_maxWaitNanos;
+  private final LogChannelInterface m_log;
+
+  /**
+   * Creates a new <code>ScoringServer</code> instance. The server does not
+   * accept requests until start() is called.
+   *
+   * @param port          the port to listen on (0 to pick a free port)
+   * @param maxBatchSize  the most rows to score in one micro-batch
+   * @param maxWaitMicros the longest time to wait for more rows once the first
+   *                      row of a batch has arrived
+   * @param log           the log to pass on to models (may be null)
+   * @throws IOException if the server can't be bound to the port
+   */
+  public ScoringServer( int port, int maxBatchSize, long maxWaitMicros, LogChannelInterface log )
+      throws IOException {
+    m_maxBatchSize = Math.max( maxBatchSize, 1 );
+    m_maxWaitNanos = Math.max( maxWaitMicros, 0 ) * 1000L;
+    m_log = log;
+
+    m_server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+    m_server.createContext( "/score/", new HttpHandler() { //$NON-NLS-1$
+      public void handle( HttpExchange exchange ) throws IOException {
+        handleScore( exchange );
+      }
+    } );
+    m_server.createContext( "/models", new HttpHandler() { //$NON-NLS-1$
+      public void handle( HttpExchange exchange ) throws IOException {
+        respond( exchange, 200, describeModels() );
+      }
+    } );
+    m_server.createContext( "/stats", new HttpHandler() { //$NON-NLS-1$
+      public void handle( HttpExchange exchange ) throws IOException {
+        respond( exchange, 200, getStats() );
+      }
+    } );
+
+    // requests block until their batch has been scored, so the pool must be
+    // able to grow to the number of concurrent requests
+    m_executor = Executors.newCachedThreadPool( new ThreadFactory() {
+      public Thread newThread( Runnable r ) {
+        Thread t = new Thread( r, "Weka scoring server request" ); //$NON-NLS-1$
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+    m_server.setExecutor( m_executor );
+  }
+
+  /**
+   * Load a model from file and serve it under a name
+   *
+   * @param name      the name of the model
+   * @param modelFile the path to the model file (may contain environment
+   *                  variables)
+   * @throws Exception if the model can't be loaded
+   */
+  public void addModel( String name, String modelFile ) throws Exception {
+    addModel( name, WekaScoringData.loadSerializedModel( modelFile, m_log, new Variables() ) );
+  }
+
+  /**
+   * Serve a model under a name, replacing any model already served under it
+   *
+   * @param name  the name of the model
+   * @param model the model
+   * @throws Exception if the model can't be copied for scoring
+   */
+  public void addModel( String name, WekaScoringModel model ) throws Exception {
+    ModelBatcher batcher = new ModelBatcher( name, new ScoringEngine( model ), m_maxBatchSize, m_maxWaitNanos );
+    ModelBatcher old;
+    synchronized ( m_models ) {
+      old = m_models.put( name, batcher );
+    }
+    batcher.start();
+    if ( old != null ) {
+      old.stop();
+    }
+  }
+
+  /**
+   * Stop serving a model
+   *
+   * @param name the name of the model
+   */
+  public void removeModel( String name ) {
+    ModelBatcher old;
+    synchronized ( m_models ) {
+      old = m_models.remove( name );
+    }
+    if ( old != null ) {
+      old.stop();
+    }
+  }
+
+  /**
+   * Start accepting requests
+   */
+  public void start() {
+    m_server.start();
+  }
+
+  /**
+   * Stop accepting requests and stop all the scoring threads
+   */
+  public void stop() {
+    m_server.stop( 0 );
+    m_executor.shutdownNow();
+    synchronized ( m_models ) {
+      for ( ModelBatcher batcher : m_models.values() ) {
+        batcher.stop();
+      }
+      m_models.clear();
+    }
+  }
+
+  /**
+   * Get the port that the server is listening on
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return m_server.getAddress().getPort();
+  }
+
+  /**
+   * Get latency stats for all the models
+   *
+   * @return a summary of the stats, several lines per model
+   */
+  public String getStats() {
+    StringBuilder b = new StringBuilder();
+    synchronized ( m_models ) {
+      for ( ModelBatcher batcher : m_models.values() ) {
+        batcher.appendStats( b );
+      }
+    }
+    return b.toString();
+  }
+
+  private ModelBatcher getModel( String name ) {
+    synchronized ( m_models ) {
+      return m_models.get( name );
+    }
+  }
+
+  private String describeModels() {
+    StringBuilder b = new StringBuilder();
+    synchronized ( m_models ) {
+      for ( ModelBatcher batcher : m_models.values() ) {
+        b.append( batcher.m_name );
+        Instances header = batcher.m_header;
+        for ( int i = 0; i < header.numAttributes(); i++ ) {
+          b.append( ',' ).append( header.attribute( i ).name() );
+        }
+        b.append( '\n' );
+      }
+    }
+    return b.toString();
+  }
+
+  private void handleScore( HttpExchange exchange ) throws IOException {
+    try {
+      if ( !"POST".equals( exchange.getRequestMethod() ) ) { //$NON-NLS-1$
+        respond( exchange, 405, "Use POST\n" ); //$NON-NLS-1$
+        return;
+      }
+
+      String name = exchange.getRequestURI().getPath().substring( "/score/".length() ); //$NON-NLS-1$
+      ModelBatcher batcher = getModel( name );
+      if ( batcher == null ) {
+        respond( exchange, 404, "No model named " + name + "\n" ); //$NON-NLS-1$ //$NON-NLS-2$
+        return;
+      }
+
+      List<Object[]> rows;
+      try {
+        rows = parseRows( exchange, batcher.m_header );
+      } catch ( IllegalArgumentException ex ) {
+        respond( exchange, 400, ex.getMessage() + "\n" ); //$NON-NLS-1$
+        return;
+      }
+
+      double[][] preds;
+      try {
+        preds = batcher.submit( rows ).get( REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+      } catch ( TimeoutException ex ) {
+        respond( exchange, 503, "Timed out waiting for predictions\n" ); //$NON-NLS-1$
+        return;
+      } catch ( ExecutionException ex ) {
+        respond( exchange, 500, String.valueOf( ex.getCause() ) + "\n" ); //$NON-NLS-1$
+        return;
+      } catch ( InterruptedException ex ) {
+        Thread.currentThread().interrupt();
+        respond( exchange, 503, "Server stopping\n" ); //$NON-NLS-1$
+        return;
+      }
+
+      StringBuilder b = new StringBuilder();
+      for ( double[] pred : preds ) {
+        batcher.m_engine.appendPrediction( pred, true, b );
+        b.append( '\n' );
+      }
+      respond( exchange, 200, b.toString() );
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Parse the rows in the body of a request. Values are in the order of the
+   * model's attributes; numeric values are parsed and everything else is left
+   * as a string.
+   */
+  private static List<Object[]> parseRows( HttpExchange exchange, Instances header ) throws IOException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    BufferedReader reader =
+        new BufferedReader( new InputStreamReader( exchange.getRequestBody(), StandardCharsets.UTF_8 ) );
+    String line;
+    while ( ( line = reader.readLine() ) != null ) {
+      if ( line.trim().length() == 0 ) {
+        continue;
+      }
+
+      String[] parts = line.split( ",", -1 ); //$NON-NLS-1$
+      if ( parts.length > header.numAttributes() ) {
+        throw new IllegalArgumentException( "Row " + ( rows.size() + 1 ) + " has " + parts.length //$NON-NLS-1$ //$NON-NLS-2$
+            + " values but the model has " + header.numAttributes() + " attributes" ); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+
+      Object[] row = new Object[header.numAttributes()];
+      for ( int i = 0; i < parts.length; i++ ) {
+        String value = parts[i].trim();
+        if ( value.length() == 0 || "?".equals( value ) || i == header.classIndex() ) { //$NON-NLS-1$
+          continue;
+        }
+        if ( header.attribute( i ).isNumeric() ) {
+          try {
+            row[i] = Double.valueOf( value );
+          } catch ( NumberFormatException ex ) {
+            throw new IllegalArgumentException( "Row " + ( rows.size() + 1 ) + ": " + value //$NON-NLS-1$ //$NON-NLS-2$
+                + " is not a number (" + header.attribute( i ).name() + ")" ); //$NON-NLS-1$ //$NON-NLS-2$
+          }
+        } else {
+          row[i] = value;
+        }
+      }
+      rows.add( row );
+    }
+    return rows;
+  }
+
+  private static void respond( HttpExchange exchange, int status, String body ) throws IOException {
+    byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+    exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" ); //$NON-NLS-1$ //$NON-NLS-2$
+    exchange.sendResponseHeaders( status, bytes.length );
+    OutputStream out = exchange.getResponseBody();
+    out.write( bytes );
+    out.close();
+  }
+
+  /**
+   * Rows waiting to be scored, along with where to deliver the predictions
+   */
+  private static class PendingRequest {
+    final List<Object[]> m_rows;
+    final CompletableFuture<double[][]> m_result = new CompletableFuture<double[][]>();
+    final long m_start = System.nanoTime();
+
+    PendingRequest( List<Object[]> rows ) {
+      m_rows = rows;
+    }
+  }
+
+  /**
+   * Coalesces the rows of concurrent requests for a model into micro-batches
+   * and scores them on a single thread
+   */
+  private static class ModelBatcher implements Runnable {
+    final String m_name;
+    final ScoringEngine m_engine;
+    final ScoringMapping m_mapping;
+    final Instances m_header;
+    final int m_maxBatchSize;
+    final long m_maxWaitNanos;
+
+    final BlockingQueue<PendingRequest> m_queue = new LinkedBlockingQueue<PendingRequest>();
+    final Thread m_thread;
+    volatile boolean m_stopped;
+
+    final LongAdder m_requests = new LongAdder();
+    final LongAdder m_rows = new LongAdder();
+    final LongAdder m_errors = new LongAdder();
+    final ScoringHistogram m_latencyNanos = new ScoringHistogram();
+    final ScoringHistogram m_batchSizes = new ScoringHistogram();
+    final ScoringHistogram m_batchNanos = new ScoringHistogram();
+
+    ModelBatcher( String name, ScoringEngine engine, int maxBatchSize, long maxWaitNanos ) {
+      m_name = name;
+      m_engine = engine;
+      m_header = engine.getHeader();
+      m_mapping = engine.compile( ScoringSchema.forHeader( m_header ) );
+      m_maxBatchSize = maxBatchSize;
+      m_maxWaitNanos = maxWaitNanos;
+      m_thread = new Thread( this, "Weka scoring server - " + name ); //$NON-NLS-1$
+      m_thread.setDaemon( true );
+    }
+
+    void start() {
+      m_thread.start();
+    }
+
+    void stop() {
+      m_stopped = true;
+      m_thread.interrupt();
+      failQueued();
+    }
+
+    CompletableFuture<double[][]> submit( List<Object[]> rows ) {
+      PendingRequest request = new PendingRequest( rows );
+      m_queue.add( request );
+      if ( m_stopped ) {
+        // stop() may have drained the queue before the request was added
+        failQueued();
+      }
+      return request.m_result;
+    }
+
+    /**
+     * Fails the requests that are waiting to be scored, once the batcher has
+     * been stopped
+     */
+    private void failQueued() {
+      PendingRequest r;
+      while ( ( r = m_queue.poll() ) != null ) {
+        r.m_result.completeExceptionally( new IllegalStateException( "Model " + m_name + " removed" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+
+    public void run() {
+      List<PendingRequest> batch = new ArrayList<PendingRequest>();
+      while ( !m_stopped ) {
+        try {
+          PendingRequest first = m_queue.poll( 100, TimeUnit.MILLISECONDS );
+          if ( first == null ) {
+            continue;
+          }
+
+          // wait a little while for more rows to arrive
+          batch.add( first );
+          int numRows = first.m_rows.size();
+          long deadline = System.nanoTime() + m_maxWaitNanos;
+          while ( numRows < m_maxBatchSize ) {
+            long remaining = deadline - System.nanoTime();
+            PendingRequest next = ( remaining > 0 ) ? m_queue.poll( remaining, TimeUnit.NANOSECONDS ) : m_queue.poll();
+            if ( next == null ) {
+              break;
+            }
+            batch.add( next );
+            numRows += next.m_rows.size();
+          }
+
+          score( batch, numRows );
+        } catch ( InterruptedException ex ) {
+          for ( PendingRequest r : batch ) {
+            r.m_result.completeExceptionally( ex );
+          }
+        } finally {
+          batch.clear();
+        }
+      }
+      failQueued();
+    }
+
+    private void score( List<PendingRequest> batch, int numRows ) {
+      List<Object[]> rows = new ArrayList<Object[]>( numRows );
+      for ( PendingRequest r : batch ) {
+        rows.addAll( r.m_rows );
+      }
+
+      double[][] preds;
+      long start = System.nanoTime();
+      try {
+        preds = m_engine.scoreBatch( m_mapping, rows );
+      } catch ( Throwable ex ) {
+        for ( PendingRequest r : batch ) {
+          m_errors.increment();
+          r.m_result.completeExceptionally( ex );
+        }
+        return;
+      }
+      long end = System.nanoTime();
+      m_batchNanos.record( end - start );
+      m_batchSizes.record( numRows );
+
+      int offset = 0;
+      for ( PendingRequest r : batch ) {
+        double[][] result = new double[r.m_rows.size()][];
+        System.arraycopy( preds, offset, result, 0, result.length );
+        offset += result.length;
+
+        m_requests.increment();
+        m_rows.add( result.length );
+        m_latencyNanos.record( end - r.m_start );
+        r.m_result.complete( result );
+      }
+    }
+
+    void appendStats( StringBuilder b ) {
+      b.append( m_name ).append( ": requests=" ).append( m_requests.sum() ) //$NON-NLS-1$
+          .append( " rows=" ).append( m_rows.sum() ) //$NON-NLS-1$
+          .append( " errors=" ).append( m_errors.sum() ).append( '\n' ); //$NON-NLS-1$
+      b.append( "  request latency: " ).append( m_latencyNanos.summary( 1000.0, "us" ) ).append( '\n' ); //$NON-NLS-1$ //$NON-NLS-2$
+      b.append( "  batch size:      " ).append( m_batchSizes.summary( 1.0, "rows" ) ).append( '\n' ); //$NON-NLS-1$ //$NON-NLS-2$
+      b.append( "  batch scoring:   " ).append( m_batchNanos.summary( 1000.0, "us" ) ).append( '\n' ); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  /**
+   * Runs a server from the command line
+   *
+   * @param args the port followed by name=modelFile pairs
+   */
+  public static void main( String[] args ) {
+    if ( args.length < 2 ) {
+      System.err.println( "Usage: ScoringServer <port> <name>=<model file> [<name>=<model file> ...]" ); //$NON-NLS-1$
+      System.exit( 1 );
+    }
+
+    try {
+      KettleLogStore.init();
+      ScoringServer server = new ScoringServer( Integer.parseInt( args[0] ), DEFAULT_MAX_BATCH_SIZE,
+          DEFAULT_MAX_WAIT_MICROS, new LogChannel( "ScoringServer" ) ); //$NON-NLS-1$
+      for ( int i = 1; i < args.length; i++ ) {
+        int eq = args[i].indexOf( '=' );
+        if ( eq <= 0 ) {
+          throw new IllegalArgumentException( "Expected <name>=<model file>: " + args[i] ); //$NON-NLS-1$
+        }
+        server.addModel( args[i].substring( 0, eq ), args[i].substring( eq + 1 ) );
+      }
+      server.start();
+      System.out.println( "Scoring on http://localhost:" + server.getPort() + "/score/<model>" ); //$NON-NLS-1$ //$NON-NLS-2$
+    } catch ( Exception ex ) {
+      ex.printStackTrace();
+      System.exit( 1 );
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import weka.core.SerializedObject;
+
+/**
+ * A model load that runs in the background and is shared by all the copies of
+ * a step. The model is loaded once. Models are not safe to use from more than
+ * one thread and may be updated incrementally, so each copy needs a model of
+ * its own: the first copy to ask gets the loaded model itself, and only if
+ * there are other copies is the model serialized into memory for them to
+ * take de-serialized copies of. A step that runs as a single copy never pays
+ * for serialization.
+ * <p>
+ * Loads are keyed by the running transformation (weakly, so that nothing
+ * outlives it) and a key describing the model source. A load is forgotten
+ * once every copy of the step has taken its model.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+class SharedModelLoad {
+
+  /**
+   * loads in progress, by transformation and then by key
+   */
+  private static final Map<Object, Map<String, SharedModelLoad>> s_loads =
+      new WeakHashMap<Object, Map<String, SharedModelLoad>>();
+
+  /**
+   * loads the model (and serializes it in memory if copies are needed)
+   */
+  private final FutureTask<WekaScoringModel> m_task;
+
+  /**
+   * the model in serialized form, for the copies of the step that don't get
+   * the loaded model itself (null if there are none). Set by the load, before
+   * any copy of the step gets the model
+   */
+  private SerializedObject m_serialized;
+
+  /**
+   * true once the loaded model itself has been handed out
+   */
+  private boolean m_modelTaken;
+
+  /**
+   * number of copies that have yet to take their model
+   */
+  private int m_references;
+
+  private SharedModelLoad( final Callable<WekaScoringModel> loader, int references, final boolean ownsModel ) {
+    m_references = references;
+
+    // a model that belongs to someone else is never handed out as it is
+    m_modelTaken = !ownsModel;
+    final boolean needCopies = references > 1 || !ownsModel;
+    m_task = new FutureTask<WekaScoringModel>( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        WekaScoringModel model = loader.call();
+        if ( model != null && needCopies ) {
+          m_serialized = new SerializedObject( model );
+        }
+        return model;
+      }
+    } );
+  }
+
+  /**
+   * Get the load for a model, starting it (in a background thread) if this is
+   * the first copy of the step to ask.
+   *
+   * @param owner      the running transformation
+   * @param key        describes the step and the source of the model
+   * @param copies     the number of copies of the step that will share the load
+   * @param loader     loads the model
+   * @param ownsModel  true if the model returned by the loader belongs to the
+   *                   load (e.g. it was read from a file) and can be handed to
+   *                   a copy of the step as it is; false if it belongs to
+   *                   something else (e.g. the step meta data), in which case
+   *                   every copy of the step gets a copy of it
+   * @param threadName the name for the background thread
+   * @return the shared load
+   */
+  static synchronized SharedModelLoad getOrStart( Object owner, String key, int copies,
+      Callable<WekaScoringModel> loader, boolean ownsModel, String threadName ) {
+    Map<String, SharedModelLoad> loads = s_loads.get( owner );
+    if ( loads == null ) {
+      loads = new HashMap<String, SharedModelLoad>();
+      s_loads.put( owner, loads );
+    }
+
+    SharedModelLoad load = loads.get( key );
+    if ( load == null ) {
+      load = new SharedModelLoad( loader, Math.max( copies, 1 ), ownsModel );
+      loads.put( key, load );
+
+      Thread t = new Thread( load.m_task, threadName );
+      t.setDaemon( true );
+      t.start();
+    }
+    return load;
+  }
+
+  /**
+   * Get a copy of the model for a copy of the step, waiting for the load to
+   * finish if necessary. Each copy of the step must call this exactly once.
+   *
+   * @param owner the running transformation
+   * @param key   the key that the load was started with
+   * @return a copy of the model, or null if the loader did not produce one
+   * @throws Exception if the model could not be loaded
+   */
+  WekaScoringModel takeCopy( Object owner, String key ) throws Exception {
+    try {
+      WekaScoringModel model = m_task.get();
+      if ( model == null ) {
+        return null;
+      }
+      synchronized ( this ) {
+        if ( !m_modelTaken ) {
+          m_modelTaken = true;
+          return model;
+        }
+      }
+      return WekaPackageLoader.deserialize( m_serialized );
+    } finally {
+      release( owner, key );
+    }
+  }
+
+  private void release( Object owner, String key ) {
+    synchronized ( SharedModelLoad.class ) {
+      if ( --m_references <= 0 ) {
+        Map<String, SharedModelLoad> loads = s_loads.get( owner );
+        if ( loads != null && loads.get( key ) == this ) {
+          loads.remove( key );
+          if ( loads.isEmpty() ) {
+            s_loads.remove( owner );
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,335 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.pentaho.di.core.Const;
+
+import weka.core.SerializedObject;
+import weka.core.WekaPackageManager;
+import weka.core.packageManagement.Dependency;
+import weka.core.packageManagement.Package;
+
+/**
+ * Loads installed Weka packages on demand. Rather than loading every installed
+ * package when the Kettle environment starts, packages are loaded the first
+ * time a model needs a class that can't be found. A persisted index of the
+ * class names contained in each installed package (rebuilt whenever the set of
+ * installed packages changes) is used to load just the package (and its
+ * dependencies) that provides the missing class. If the class is not in the
+ * index then all packages are loaded, as the step used to do at start up.
+ * <p>
+ * The index is kept in the plugin's own cache directory under the Kettle home
+ * directory rather than in Weka's (user-global) packages directory. Anything
+ * that de-serializes a model - loading, decoding an embedded model or taking
+ * a copy - goes through callWithPackages() or deserialize().
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+final class WekaPackageLoader {
+
+  /**
+   * name of the plugin's cache directory (under the Kettle home directory)
+   */
+  private static final String CACHE_DIR_NAME = "weka-scoring"; //$NON-NLS-1$
+
+  /**
+   * name of the index file (kept in the plugin's cache directory)
+   */
+  private static final String INDEX_FILE_NAME = "package-index.props"; //$NON-NLS-1$
+
+  /**
+   * key in the index for the signature of the installed packages
+   */
+  private static final String SIGNATURE_KEY = "__installed_packages__"; //$NON-NLS-1$
+
+  /**
+   * class name -> package name (null until first needed)
+   */
+  private static Properties s_index;
+
+  /**
+   * packages loaded so far
+   */
+  private static final Set<String> s_loaded = new HashSet<String>();
+
+  /**
+   * true once all installed packages have been loaded
+   */
+  private static boolean s_allLoaded;
+
+  private WekaPackageLoader() {
+  }
+
+  /**
+   * Runs an action that loads a model, loading packages and retrying whenever
+   * it fails because a class can't be found.
+   *
+   * @param action the action to run
+   * @return the result of the action
+   * @throws Exception if the action fails for some other reason, or a class
+   *                   can't be found in any installed package
+   */
+  static <T> T callWithPackages( Callable<T> action ) throws Exception {
+    while ( true ) {
+      try {
+        return action.call();
+      } catch ( Exception ex ) {
+        if ( !loadPackageFor( missingClass( ex ) ) ) {
+          throw ex;
+        }
+      } catch ( NoClassDefFoundError err ) {
+        if ( !loadPackageFor( missingClass( err ) ) ) {
+          throw err;
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets a model back out of its serialized form (e.g. when taking a copy of
+   * it), loading packages and retrying whenever a class can't be found.
+   *
+   * @param serialized the serialized model
+   * @return the model
+   * @throws Exception if the model can't be de-serialized
+   */
+  static WekaScoringModel deserialize( final SerializedObject serialized ) throws Exception {
+    return callWithPackages( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        return (WekaScoringModel) serialized.getObject();
+      }
+    } );
+  }
+
+  /**
+   * Loads all installed packages (if not done already).
+   */
+  static synchronized void loadAllPackages() {
+    if ( !s_allLoaded ) {
+      WekaPackageManager.loadPackages( false );
+      s_allLoaded = true;
+    }
+  }
+
+  /**
+   * Loads the package that provides the named class.
+   *
+   * @param className the name of the missing class (may be null)
+   * @return true if any package was loaded, in which case whatever failed is
+   * worth trying again
+   */
+  private static synchronized boolean loadPackageFor( String className ) {
+    if ( className == null || s_allLoaded ) {
+      return false;
+    }
+
+    String packageName = null;
+    try {
+      packageName = getIndex().getProperty( className );
+    } catch ( Exception ex ) {
+      // fall through and load everything
+    }
+
+    if ( packageName != null && !s_loaded.contains( packageName ) ) {
+      try {
+        loadPackage( packageName, new HashSet<String>() );
+        return true;
+      } catch ( Exception ex ) {
+        // fall through and load everything
+      }
+    }
+
+    loadAllPackages();
+    return true;
+  }
+
+  /**
+   * Loads a package along with any installed packages it depends on.
+   */
+  private static void loadPackage( String packageName, Set<String> visited ) throws Exception {
+    if ( s_loaded.contains( packageName ) || !visited.add( packageName ) ) {
+      return;
+    }
+
+    Package toLoad = WekaPackageManager.getInstalledPackageInfo( packageName );
+    if ( toLoad == null ) {
+      return;
+    }
+
+    List<String> depNames = new ArrayList<String>();
+    List<Dependency> deps = toLoad.getDependencies();
+    if ( deps != null ) {
+      for ( Dependency d : deps ) {
+        String depName = d.getTarget().getPackage().getName();
+        loadPackage( depName, visited );
+        if ( s_loaded.contains( depName ) ) {
+          depNames.add( depName );
+        }
+      }
+    }
+
+    File packageDir = new File( WekaPackageManager.PACKAGES_DIR, packageName );
+    if ( WekaPackageManager.loadCheck( toLoad, packageDir ) ) {
+      WekaPackageManager.loadPackageDirectory( packageDir, false, depNames, true );
+    }
+    s_loaded.add( packageName );
+  }
+
+  /**
+   * Get the class index, reading it from disk or rebuilding it if the
+   * installed packages have changed since it was written.
+   */
+  private static Properties getIndex() throws Exception {
+    String signature = installedPackagesSignature();
+    if ( s_index != null && signature.equals( s_index.getProperty( SIGNATURE_KEY ) ) ) {
+      return s_index;
+    }
+
+    File indexFile = new File( cacheDirectory(), INDEX_FILE_NAME );
+    Properties index = new Properties();
+    if ( indexFile.isFile() ) {
+      InputStream in = new FileInputStream( indexFile );
+      try {
+        index.load( in );
+      } finally {
+        in.close();
+      }
+    }
+
+    if ( !signature.equals( index.getProperty( SIGNATURE_KEY ) ) ) {
+      index = buildIndex( signature );
+      try {
+        indexFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream( indexFile );
+        try {
+          index.store( out, "Classes provided by installed Weka packages" ); //$NON-NLS-1$
+        } finally {
+          out.close();
+        }
+      } catch ( Exception ex ) {
+        // cache directory not writable - the index is still good for now
+      }
+    }
+
+    s_index = index;
+    return index;
+  }
+
+  /**
+   * Get the plugin's cache directory
+   */
+  private static File cacheDirectory() {
+    return new File( Const.getKettleDirectory(), CACHE_DIR_NAME );
+  }
+
+  /**
+   * Describes the installed packages (where they are, their names and
+   * modification times) so that a stale index can be detected.
+   */
+  private static String installedPackagesSignature() {
+    StringBuilder b = new StringBuilder();
+    b.append( WekaPackageManager.PACKAGES_DIR.getAbsolutePath() ).append( ';' );
+    for ( File dir : packageDirectories() ) {
+      b.append( dir.getName() ).append( ':' ).append( dir.lastModified() ).append( ';' );
+    }
+    return b.toString();
+  }
+
+  private static List<File> packageDirectories() {
+    List<File> dirs = new ArrayList<File>();
+    File[] contents = WekaPackageManager.PACKAGES_DIR.listFiles();
+    if ( contents != null ) {
+      Arrays.sort( contents );
+      for ( File f : contents ) {
+        if ( f.isDirectory() && new File( f, "Description.props" ).isFile() ) { //$NON-NLS-1$
+          dirs.add( f );
+        }
+      }
+    }
+    return dirs;
+  }
+
+  private static Properties buildIndex( String signature ) {
+    Properties index = new Properties();
+    for ( File dir : packageDirectories() ) {
+      indexJars( dir, dir.getName(), index );
+    }
+    index.setProperty( SIGNATURE_KEY, signature );
+    return index;
+  }
+
+  private static void indexJars( File dir, String packageName, Properties index ) {
+    File[] contents = dir.listFiles();
+    if ( contents == null ) {
+      return;
+    }
+
+    for ( File f : contents ) {
+      if ( f.isDirectory() ) {
+        indexJars( f, packageName, index );
+      } else if ( f.getName().toLowerCase().endsWith( ".jar" ) ) { //$NON-NLS-1$
+        try {
+          JarFile jar = new JarFile( f );
+          try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while ( entries.hasMoreElements() ) {
+              String name = entries.nextElement().getName();
+              if ( name.endsWith( ".class" ) ) { //$NON-NLS-1$
+                String className = name.substring( 0, name.length() - 6 ).replace( '/', '.' );
+                if ( !index.containsKey( className ) ) {
+                  index.setProperty( className, packageName );
+                }
+              }
+            }
+          } finally {
+            jar.close();
+          }
+        } catch ( Exception ex ) {
+          // skip unreadable jars
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the name of the class that could not be found, if this (or any of its
+   * causes) is a ClassNotFoundException or NoClassDefFoundError.
+   */
+  private static String missingClass( Throwable t ) {
+    while ( t != null ) {
+      if ( t instanceof ClassNotFoundException || t instanceof NoClassDefFoundError ) {
+        String name = t.getMessage();
+        return ( name == null ) ? null : name.trim().replace( '/', '.' );
+      }
+      t = t.getCause();
+    }
+    return null;
+  }
+}
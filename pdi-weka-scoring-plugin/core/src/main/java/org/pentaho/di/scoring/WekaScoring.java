@@ -18,9 +18,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
+import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
@@ -33,7 +43,6 @@ import org.pentaho.di.trans.step.StepMetaInterface;
 
 import weka.core.BatchPredictor;
 import weka.core.Instances;
-import weka.core.SerializedObject;
 
 /**
  * Applies a pre-built weka model (classifier or clusterer) to incoming rows and
@@ -66,6 +75,13 @@ public class WekaScoring extends BaseStep implements StepInterface {
    */
   private Map<String, WekaScoringModel> m_modelCache;
 
+  /**
+   * models loaded up front from a model directory, by key (null unless model
+   * keys are sourced from a field), and their load
+   */
+  private Map<String, WekaScoringModel> m_keyedModels;
+  private FutureTask<Map<String, WekaScoringModel>> m_keyedModelLoad;
+
   /**
    * model filename from the last row processed (if reading model filenames from
    * a row field
@@ -78,6 +94,45 @@ public class WekaScoring extends BaseStep implements StepInterface {
   private int m_batchScoringSize = WekaScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
   private List<Object[]> m_batch;
 
+  /**
+   * this copy's model (or default model when model file names are sourced from
+   * a field), loaded in the background while the transformation starts up
+   */
+  private FutureTask<WekaScoringModel> m_modelLoad;
+
+  /**
+   * this copy's challenger models, loaded in the background in the same way
+   * as the model
+   */
+  private List<FutureTask<WekaScoringModel>> m_challengerLoads;
+
+  /**
+   * scores the challengers in parallel with the model (if asked for)
+   */
+  private ExecutorService m_challengerExecutor;
+
+  /**
+   * this copy's first-stage model for cascade scoring (null if not cascading)
+   */
+  private FutureTask<WekaScoringModel> m_cascadeLoad;
+
+  /**
+   * true if rows are collected into batches for scoring
+   */
+  private boolean m_scoreInBatches;
+
+  /**
+   * the row set for each routing rule and the default row set (null if not
+   * routing)
+   */
+  private RowSet[] m_routeRowSets;
+  private RowSet m_defaultRowSet;
+
+  /**
+   * runtime metrics for this copy of the step (published over JMX)
+   */
+  private final WekaScoringMetrics m_metrics = new WekaScoringMetrics();
+
   /**
    * Creates a new <code>WekaScoring</code> instance.
    *
@@ -114,7 +169,22 @@ public class WekaScoring extends BaseStep implements StepInterface {
             "WekaScoring.Error.NoModelFileSpecifiedInFieldAndNoDefaultModel" ) ); //$NON-NLS-1$
       }
       logDebug( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Debug.UsingDefaultModel" ) ); //$NON-NLS-1$
-      m_data.setModel( defaultM );
+      m_data.switchModel( defaultM, inputRowMeta );
+      m_lastRowModelFile = ""; //$NON-NLS-1$
+      return;
+    }
+
+    if ( m_keyedModels != null ) {
+      // the field holds the key of a model that was loaded up front
+      WekaScoringModel keyed = m_keyedModels.get( modelFileName );
+      if ( keyed == null ) {
+        keyed = m_data.getDefaultModel();
+        if ( keyed == null ) {
+          throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Error.NoModelForKey", //$NON-NLS-1$
+              modelFileName ) );
+        }
+      }
+      m_data.switchModel( keyed, inputRowMeta );
       return;
     }
 
@@ -128,15 +198,20 @@ public class WekaScoring extends BaseStep implements StepInterface {
     if ( m_meta.getCacheLoadedModels() ) {
       WekaScoringModel modelToUse = m_modelCache.get( resolvedName );
       if ( modelToUse != null ) {
+        m_metrics.modelCacheHit();
         logDebug( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Debug.FoundModelInCache" ) //$NON-NLS-1$
             + " " //$NON-NLS-1$
             + modelToUse.getModel().getClass() );
-        m_data.setModel( modelToUse );
+        m_data.switchModel( modelToUse, inputRowMeta );
         m_lastRowModelFile = resolvedName;
         return;
       }
     }
 
+    if ( m_meta.getCacheLoadedModels() ) {
+      m_metrics.modelCacheMiss();
+    }
+
     // load the model
     logDebug(
         BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Debug.LoadingModelUsingFieldValue" ) //$NON-NLS-1$
@@ -154,8 +229,13 @@ public class WekaScoring extends BaseStep implements StepInterface {
     // Load the model
     WekaScoringModel model = null;
     try {
+      long start = System.nanoTime();
       model = WekaScoringData.loadSerializedModel( modelFileName, getLogChannel(), this );
-      m_data.setModel( model );
+      m_metrics.modelLoaded( System.nanoTime() - start );
+      m_data.switchModel( model, getInputRowMeta() );
+
+      // save getFields() from having to read the model file again
+      WekaScoringMeta.cacheModelHeader( modelFileName, this, model );
 
       if ( m_meta.getFileNameFromField() ) {
         m_lastRowModelFile = environmentSubstitute( modelFileName );
@@ -184,7 +264,7 @@ public class WekaScoring extends BaseStep implements StepInterface {
     Object[] r = getRow();
 
     if ( r == null ) {
-      if ( m_data.getModel().isBatchPredictor() && !m_meta.getFileNameFromField() && m_batch.size() > 0 ) {
+      if ( m_scoreInBatches && m_batch.size() > 0 ) {
         try {
           outputBatchRows();
         } catch ( Exception ex ) {
@@ -227,8 +307,27 @@ public class WekaScoring extends BaseStep implements StepInterface {
         m_data.setModel( null );
       } else {
         m_data.getModel().done();
+        for ( WekaScoringModel challenger : m_data.getChallengers() ) {
+          challenger.done();
+        }
+        if ( m_data.getCascadeModel() != null ) {
+          m_data.getCascadeModel().done();
+        }
       }
 
+      if ( m_metrics.getEnsembleFractionEvaluated() > 0 ) {
+        logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.EnsembleEarlyExit", //$NON-NLS-1$
+            Long.toString( Math.round( m_metrics.getEnsembleFractionEvaluated() * 100 ) ) ) );
+      }
+      if ( m_metrics.getDeduplicationRatio() > 0 ) {
+        logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.BatchesDeduplicated", //$NON-NLS-1$
+            Long.toString( Math.round( m_metrics.getDeduplicationRatio() * 100 ) ) ) );
+      }
+      if ( m_metrics.getRowsDropped() > 0 ) {
+        logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.RowsDropped", //$NON-NLS-1$
+            Long.toString( m_metrics.getRowsDropped() ) ) );
+      }
+      m_metrics.logLatencyProfile();
       setOutputDone();
       return false;
     }
@@ -257,47 +356,32 @@ public class WekaScoring extends BaseStep implements StepInterface {
           m_modelCache = new HashMap<String, WekaScoringModel>();
         }
 
-        // set the default model
-        if ( !Const.isEmpty( m_meta.getSerializedModelFileName() ) ) {
-          WekaScoringModel defaultModel = setModel( m_meta.getSerializedModelFileName() );
-
+        // set the default model (loading was started in init())
+        WekaScoringModel defaultModel = waitForModel();
+        if ( defaultModel != null ) {
           m_data.setDefaultModel( defaultModel );
-        } else if ( m_meta.getModel() != null ) {
-          try {
-            SerializedObject so = new SerializedObject( m_meta.getModel() );
-            WekaScoringModel defaultModel = (WekaScoringModel) so.getObject();
 
-            m_data.setDefaultModel( defaultModel );
-          } catch ( Exception ex ) {
-            throw new KettleException( ex );
+          if ( !Const.isEmpty( m_meta.getSerializedModelFileName() ) ) {
+            m_data.setModel( defaultModel );
+            m_lastRowModelFile = environmentSubstitute( m_meta.getSerializedModelFileName() );
           }
         }
 
+        if ( m_keyedModelLoad != null ) {
+          m_keyedModels = waitForKeyedModels();
+          logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.LoadedKeyedModels", //$NON-NLS-1$
+              m_keyedModels.size(), environmentSubstitute( m_meta.getModelDirectory() ) ) );
+        }
+
         // set the main model from this row
         setModelFromField( r );
         logBasic( BaseMessages
             .getString( WekaScoringMeta.PKG, "WekaScoring.Message.SourcingModelNamesFromInputField", //$NON-NLS-1$
                 m_meta.getFieldNameToLoadModelFrom() ) );
-      } else if ( m_meta.getModel() == null || !Const.isEmpty( m_meta.getSerializedModelFileName() ) ) {
-        // If we don't have a model, or a file name is set, then load from file
-
-        // Check that we have a file to try and load a classifier from
-        if ( Const.isEmpty( m_meta.getSerializedModelFileName() ) ) {
-          throw new KettleException( BaseMessages
-              .getString( WekaScoringMeta.PKG, "WekaScoring.Error.NoFilenameToLoadModelFrom" ) ); //$NON-NLS-1$
-        }
-
-        setModel( m_meta.getSerializedModelFileName() );
-      } else if ( m_meta.getModel() != null ) {
-        // copy the primary model over to the data class
-        try {
-          SerializedObject so = new SerializedObject( m_meta.getModel() );
-          WekaScoringModel defaultModel = (WekaScoringModel) so.getObject();
-
-          m_data.setModel( defaultModel );
-        } catch ( Exception ex ) {
-          throw new KettleException( ex );
-        }
+      } else {
+        // the model (from file or a copy of the one in the step meta data)
+        // has been loading since init()
+        m_data.setModel( waitForModel() );
       }
 
       // Check the input row meta data against the instances
@@ -311,9 +395,18 @@ public class WekaScoring extends BaseStep implements StepInterface {
             ex ); //$NON-NLS-1$
       }
 
+      // challengers and the first stage of a cascade are scored from the same
+      // instances as the model
+      setUpChallengers();
+      setUpCascade();
+
       // Determine the output format
       m_meta.getFields( m_data.getOutputRowMeta(), getStepname(), null, null, this );
 
+      if ( m_meta.isRouting() ) {
+        setUpRouting();
+      }
+
       if ( !Const.isEmpty( m_meta.getBatchScoringSize() ) ) {
         try {
           String bss = environmentSubstitute( m_meta.getBatchScoringSize() );
@@ -321,7 +414,8 @@ public class WekaScoring extends BaseStep implements StepInterface {
         } catch ( NumberFormatException ex ) {
           String
               modelPreferred =
-              environmentSubstitute( ( (BatchPredictor) m_meta.getModel().getModel() ).getBatchSize() );
+              ( m_data.getModel().getModel() instanceof BatchPredictor ) ? environmentSubstitute(
+                  ( (BatchPredictor) m_data.getModel().getModel() ).getBatchSize() ) : null;
 
           boolean sizeOk = false;
           if ( !Const.isEmpty( modelPreferred ) ) {
@@ -347,18 +441,24 @@ public class WekaScoring extends BaseStep implements StepInterface {
         }
       }
 
-      if ( m_data.getModel().isBatchPredictor() ) {
+      // a cascade passes uncertain rows on to the model in batches, unless the
+      // model is being updated as the rows go by
+      m_scoreInBatches =
+          !m_meta.getFileNameFromField() && ( m_data.getModel().isBatchPredictor() || ( m_data.getCascadeModel() != null
+              && !m_meta.getUpdateIncrementalModel() ) );
+      if ( m_scoreInBatches ) {
         m_batch = new ArrayList<Object[]>();
       }
     } // end (if first)
 
     // Make prediction for row using model
     try {
-      if ( m_meta.getFileNameFromField() ) {
-        setModelFromField( r );
-      }
-
-      if ( m_data.getModel().isBatchPredictor() && !m_meta.getFileNameFromField() ) {
+      if ( !m_scoreInBatches && !m_data.isSelected( getInputRowMeta(), r ) ) {
+        // pass the row through without loading a model for it or scoring it
+        // (batches check the score condition for each of their rows)
+        m_metrics.rowsSkipped( 1 );
+        putScoredRow( RowDataUtil.resizeArray( r, m_data.getOutputRowMeta().size() ), -1 );
+      } else if ( m_scoreInBatches ) {
         try {
           // add current row to batch
           m_batch.add( r );
@@ -372,8 +472,14 @@ public class WekaScoring extends BaseStep implements StepInterface {
               ex ); //$NON-NLS-1$
         }
       } else {
+        if ( m_meta.getFileNameFromField() ) {
+          setModelFromField( r );
+        }
+
+        long start = System.nanoTime();
         Object[] outputRow = m_data.generatePrediction( getInputRowMeta(), m_data.getOutputRowMeta(), r, m_meta );
-        putRow( m_data.getOutputRowMeta(), outputRow );
+        m_metrics.rowScored( System.nanoTime() - start );
+        putScoredRow( outputRow, m_data.getRoute( 0 ) );
       }
     } catch ( Exception ex ) {
       throw new KettleException( BaseMessages
@@ -391,17 +497,504 @@ public class WekaScoring extends BaseStep implements StepInterface {
     return true;
   }
 
+  /**
+   * Wait (if necessary) for the background model load started in init() to
+   * finish.
+   *
+   * @return the model or null if there isn't one
+   * @throws KettleException if the model could not be loaded
+   */
+  private WekaScoringModel waitForModel() throws KettleException {
+    try {
+      return waitForModel( m_modelLoad );
+    } finally {
+      m_modelLoad = null;
+    }
+  }
+
+  /**
+   * Wait for the models in the model directory to finish loading
+   *
+   * @return the models, by key
+   * @throws KettleException if the models could not be loaded
+   */
+  private Map<String, WekaScoringModel> waitForKeyedModels() throws KettleException {
+    try {
+      Map<String, WekaScoringModel> models = m_keyedModelLoad.get();
+      for ( WekaScoringModel model : models.values() ) {
+        model.setLog( getLogChannel() );
+      }
+      return models;
+    } catch ( ExecutionException ex ) {
+      throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG,
+          "WekaScoring.Error.ProblemLoadingModelDirectory" ), ex.getCause() ); //$NON-NLS-1$
+    } catch ( InterruptedException ex ) {
+      throw new KettleException( ex );
+    } finally {
+      m_keyedModelLoad = null;
+    }
+  }
+
+  /**
+   * Wait (if necessary) for a background model load to finish.
+   *
+   * @param load the load to wait for (may be null)
+   * @return the model or null if there isn't one
+   * @throws KettleException if the model could not be loaded
+   */
+  private WekaScoringModel waitForModel( FutureTask<WekaScoringModel> load ) throws KettleException {
+    if ( load == null ) {
+      return null;
+    }
+
+    try {
+      WekaScoringModel model = load.get();
+      if ( model != null ) {
+        model.setLog( getLogChannel() );
+      }
+      return model;
+    } catch ( ExecutionException ex ) {
+      if ( ex.getCause() instanceof KettleException ) {
+        throw (KettleException) ex.getCause();
+      }
+      throw new KettleException(
+          BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Error.ProblemDeserializingModel" ),
+          ex.getCause() ); //$NON-NLS-1$
+    } catch ( InterruptedException ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Waits for the first-stage model of a cascade (if there is one) to load and
+   * checks that it was trained on data with the same format as the model and
+   * predicts probabilities.
+   *
+   * @throws KettleException if the first-stage model can't be loaded or is
+   *                         not suitable
+   */
+  private void setUpCascade() throws KettleException {
+    if ( m_cascadeLoad == null ) {
+      return;
+    }
+
+    WekaScoringModel firstStage;
+    try {
+      firstStage = waitForModel( m_cascadeLoad );
+    } finally {
+      m_cascadeLoad = null;
+    }
+
+    Instances header = firstStage.getHeader();
+    String problem = m_data.getModel().getHeader().equalHeadersMsg( header );
+    if ( problem != null ) {
+      throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG,
+          "WekaScoring.Error.CascadeNotCompatible", problem ) ); //$NON-NLS-1$
+    }
+    // clusterers can't be cascaded - the two stages could find different
+    // numbers of clusters and there is nothing to say that cluster i of one
+    // is cluster i of the other
+    if ( !firstStage.isSupervisedLearningModel() || !m_data.getModel().isSupervisedLearningModel()
+        || header.classAttribute().isNumeric() ) {
+      throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG,
+          "WekaScoring.Error.CascadeNeedsProbabilities" ) ); //$NON-NLS-1$
+    }
+
+    double threshold = WekaScoringMeta.DEFAULT_CASCADE_THRESHOLD;
+    if ( !Const.isEmpty( m_meta.getCascadeThreshold() ) ) {
+      String t = environmentSubstitute( m_meta.getCascadeThreshold() );
+      try {
+        threshold = Double.parseDouble( t.trim() );
+      } catch ( NumberFormatException ex ) {
+        logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.UnableToParseCascadeThreshold", //$NON-NLS-1$
+            t, Double.toString( threshold ) ) );
+      }
+    }
+    m_data.setCascade( firstStage, threshold );
+
+    logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.Cascading", //$NON-NLS-1$
+        Double.toString( threshold ) ) );
+  }
+
+  /**
+   * Waits for the challenger models (if any) to load and checks that they
+   * were trained on data with the same format as the model, so that they can
+   * be scored from the same instances.
+   *
+   * @throws KettleException if a challenger can't be loaded or is not
+   *                         compatible with the model
+   */
+  private void setUpChallengers() throws KettleException {
+    if ( m_challengerLoads == null || m_challengerLoads.isEmpty() ) {
+      return;
+    }
+
+    Instances header = m_data.getModel().getHeader();
+    WekaScoringModel[] challengers = new WekaScoringModel[m_challengerLoads.size()];
+    try {
+      for ( int i = 0; i < challengers.length; i++ ) {
+        challengers[i] = waitForModel( m_challengerLoads.get( i ) );
+        String problem = header.equalHeadersMsg( challengers[i].getHeader() );
+        if ( problem != null ) {
+          throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG,
+              "WekaScoring.Error.ChallengerNotCompatible", m_meta.getChallengerNames()[i], problem ) ); //$NON-NLS-1$
+        }
+      }
+    } finally {
+      m_challengerLoads = null;
+    }
+
+    if ( m_meta.getScoreChallengersInParallel() ) {
+      final String threadName = getStepname() + "." + getCopy() + " challenger"; //$NON-NLS-1$ //$NON-NLS-2$
+      m_challengerExecutor = Executors.newFixedThreadPool( challengers.length, new ThreadFactory() {
+        public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, threadName );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+    }
+    m_data.setChallengers( challengers, m_challengerExecutor );
+
+    logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.ScoringChallengers", //$NON-NLS-1$
+        challengers.length ) );
+  }
+
+  /**
+   * Starts loading the model (or the default model, if model file names are
+   * sourced from a field) in the background so that it overlaps with the start
+   * up of the rest of the transformation. The actual load is shared between all
+   * copies of the step; the first copy takes the loaded model and any others
+   * take their own copies of it, also in the background.
+   */
+  private void startModelLoad() {
+    final boolean fromField = m_meta.getFileNameFromField();
+    final String modelFileName = m_meta.getSerializedModelFileName();
+
+    String key = getStepname();
+    Callable<WekaScoringModel> loader = null;
+    if ( !Const.isEmpty( modelFileName ) ) {
+      final String resolvedName = environmentSubstitute( modelFileName );
+      key += ":file:" + resolvedName; //$NON-NLS-1$
+      loader = new Callable<WekaScoringModel>() {
+        public WekaScoringModel call() throws Exception {
+          long start = System.nanoTime();
+          WekaScoringModel model = WekaScoringData.loadSerializedModel( resolvedName, getLogChannel(), WekaScoring.this );
+          m_metrics.modelLoaded( System.nanoTime() - start );
+
+          // save getFields() from having to read the model file again
+          WekaScoringMeta.cacheModelHeader( resolvedName, WekaScoring.this, model );
+          return model;
+        }
+      };
+    } else {
+      key += ":meta"; //$NON-NLS-1$
+      loader = new Callable<WekaScoringModel>() {
+        public WekaScoringModel call() throws Exception {
+          WekaScoringModel model = ( fromField ) ? m_meta.getDefaultModel() : null;
+          if ( model == null ) {
+            model = m_meta.getModel();
+          }
+          if ( model == null && !fromField ) {
+            throw new KettleException( BaseMessages
+                .getString( WekaScoringMeta.PKG, "WekaScoring.Error.NoFilenameToLoadModelFrom" ) ); //$NON-NLS-1$
+          }
+          return model;
+        }
+      };
+    }
+
+    final Object owner = getTrans();
+    final String loadKey = key;
+    // a model from the step meta data stays with the meta data, so every copy
+    // of the step gets a copy of it
+    final SharedModelLoad sharedLoad =
+        SharedModelLoad.getOrStart( owner, loadKey, getStepMeta().getCopies(), loader, !Const.isEmpty( modelFileName ),
+            getStepname() + " model loader" ); //$NON-NLS-1$
+
+    // the incoming row format is needed to generate rows for warming up
+    final int warmUpRows = getWarmUpRows();
+    RowMetaInterface inputRowMeta = null;
+    if ( warmUpRows > 0 ) {
+      try {
+        inputRowMeta = getTransMeta().getPrevStepFields( getStepMeta() );
+      } catch ( KettleStepException ex ) {
+        logError( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Error.WarmUpFailed" ), ex ); //$NON-NLS-1$
+      }
+    }
+    final RowMetaInterface warmUpMeta = inputRowMeta;
+
+    m_modelLoad = new FutureTask<WekaScoringModel>( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        WekaScoringModel model = sharedLoad.takeCopy( owner, loadKey );
+        if ( model != null && warmUpMeta != null ) {
+          warmUp( model, warmUpMeta, warmUpRows );
+        }
+        return model;
+      }
+    } );
+    Thread t = new Thread( m_modelLoad, getStepname() + "." + getCopy() + " model copy" ); //$NON-NLS-1$ //$NON-NLS-2$
+    t.setDaemon( true );
+    t.start();
+  }
+
+  /**
+   * Starts loading all the models in the model directory (if model keys are
+   * sourced from a field) in the background. Models are loaded in parallel,
+   * one per processor. Unlike the model, each copy of the step loads its own
+   * models rather than taking copies of a shared load, which would cost as
+   * much again.
+   */
+  private void startKeyedModelLoad() {
+    if ( !m_meta.isKeyedModels() ) {
+      return;
+    }
+
+    final String directory = m_meta.getModelDirectory();
+    final String threadName = getStepname() + "." + getCopy() + " model directory loader"; //$NON-NLS-1$ //$NON-NLS-2$
+    m_keyedModelLoad = new FutureTask<Map<String, WekaScoringModel>>( new Callable<Map<String, WekaScoringModel>>() {
+      public Map<String, WekaScoringModel> call() throws Exception {
+        return ModelDirectory.load( directory, getLogChannel(), WekaScoring.this,
+            Runtime.getRuntime().availableProcessors(), m_metrics, threadName );
+      }
+    } );
+    Thread t = new Thread( m_keyedModelLoad, threadName );
+    t.setDaemon( true );
+    t.start();
+  }
+
+  /**
+   * Starts loading the challenger models (if any) and the first-stage model of
+   * a cascade (if any) in the background. As with the model, each load is
+   * shared between all copies of the step.
+   */
+  private void startExtraModelLoads() {
+    m_challengerLoads = new ArrayList<FutureTask<WekaScoringModel>>();
+    for ( int i = 0; i < m_meta.getNumChallengers(); i++ ) {
+      m_challengerLoads.add( startSharedModelLoad( m_meta.getChallengerModelFileNames()[i], "challenger:" + i ) ); //$NON-NLS-1$
+    }
+
+    if ( m_meta.isCascade() ) {
+      m_cascadeLoad = startSharedModelLoad( m_meta.getCascadeModelFileName(), "cascade" ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Starts loading a model from a file in the background. The load is shared
+   * between all copies of the step, each of which gets its own copy of the
+   * model.
+   *
+   * @param modelFileName the model file (may contain variables)
+   * @param role          what the model is used for (distinguishes loads)
+   * @return the load of this copy's model
+   */
+  private FutureTask<WekaScoringModel> startSharedModelLoad( String modelFileName, String role ) {
+    final Object owner = getTrans();
+    final String resolvedName = environmentSubstitute( modelFileName );
+    final String loadKey = getStepname() + ":" + role + ":" + resolvedName; //$NON-NLS-1$ //$NON-NLS-2$
+    Callable<WekaScoringModel> loader = new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        long start = System.nanoTime();
+        WekaScoringModel model = WekaScoringData.loadSerializedModel( resolvedName, getLogChannel(), WekaScoring.this );
+        m_metrics.modelLoaded( System.nanoTime() - start );
+
+        // save getFields() from having to read the model file again
+        WekaScoringMeta.cacheModelHeader( resolvedName, WekaScoring.this, model );
+        return model;
+      }
+    };
+
+    final SharedModelLoad sharedLoad =
+        SharedModelLoad.getOrStart( owner, loadKey, getStepMeta().getCopies(), loader, true, getStepname() + " " + role //$NON-NLS-1$
+            + " loader" ); //$NON-NLS-1$
+    FutureTask<WekaScoringModel> load = new FutureTask<WekaScoringModel>( new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        return sharedLoad.takeCopy( owner, loadKey );
+      }
+    } );
+    Thread t = new Thread( load, getStepname() + "." + getCopy() + " " + role + " copy" ); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    t.setDaemon( true );
+    t.start();
+    return load;
+  }
+
+  /**
+   * Get the number of synthetic rows to score in order to warm up
+   *
+   * @return the number of rows (0 for no warm-up)
+   */
+  private int getWarmUpRows() {
+    if ( Const.isEmpty( m_meta.getWarmUpIterations() ) ) {
+      return 0;
+    }
+
+    String rows = environmentSubstitute( m_meta.getWarmUpIterations() );
+    try {
+      return Math.max( 0, Integer.parseInt( rows.trim() ) );
+    } catch ( NumberFormatException ex ) {
+      logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.UnableToParseWarmUpIterations", //$NON-NLS-1$
+          rows ) );
+      return 0;
+    }
+  }
+
+  /**
+   * Get the interval at which rows are sampled for latency profiling
+   *
+   * @return the interval (0 for no profiling)
+   */
+  private int getProfileSampleInterval() {
+    if ( Const.isEmpty( m_meta.getProfileSampleInterval() ) ) {
+      return 0;
+    }
+
+    String interval = environmentSubstitute( m_meta.getProfileSampleInterval() );
+    try {
+      return Math.max( 0, Integer.parseInt( interval.trim() ) );
+    } catch ( NumberFormatException ex ) {
+      logBasic( BaseMessages.getString( WekaScoringMeta.PKG,
+          "WekaScoring.Message.UnableToParseProfileSampleInterval", interval ) ); //$NON-NLS-1$
+      return 0;
+    }
+  }
+
+  /**
+   * Drives the scoring code path with synthetic rows so that it has been
+   * compiled by the time real rows arrive. Runs in the background against a
+   * scratch data object, so none of the step's own state is touched. Problems
+   * are logged but are not fatal, since the step can still score without
+   * having been warmed up.
+   *
+   * @param model        this copy's model
+   * @param inputRowMeta the format of the incoming rows
+   * @param rows         the number of synthetic rows to score
+   */
+  private void warmUp( WekaScoringModel model, RowMetaInterface inputRowMeta, int rows ) {
+    int batchSize = WekaScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
+    if ( !Const.isEmpty( m_meta.getBatchScoringSize() ) ) {
+      try {
+        batchSize = Integer.parseInt( environmentSubstitute( m_meta.getBatchScoringSize() ) );
+      } catch ( NumberFormatException ex ) {
+        // use the default
+      }
+    }
+
+    long start = System.nanoTime();
+    try {
+      WekaScoringData scratch = new WekaScoringData();
+      scratch.setModel( model );
+      scratch.mapIncomingRowMetaData( model.getHeader(), inputRowMeta, false, getLogChannel() );
+
+      RowMetaInterface outputRowMeta = inputRowMeta.clone();
+      m_meta.getFields( outputRowMeta, getStepname(), null, null, this );
+
+      scratch.warmUp( inputRowMeta, outputRowMeta, m_meta, rows, batchSize, getCopy() );
+    } catch ( Exception ex ) {
+      logError( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Error.WarmUpFailed" ), ex ); //$NON-NLS-1$
+      return;
+    }
+
+    long elapsed = ( System.nanoTime() - start ) / 1000000L;
+    logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.WarmUpComplete", //$NON-NLS-1$
+        Integer.toString( rows ), Long.toString( elapsed ) ) );
+  }
+
+  /**
+   * Sets up routing of scored rows to target steps: parses the minimum
+   * confidence of each rule and finds the row set for each target step
+   *
+   * @throws KettleException if a minimum confidence can't be parsed or a
+   *                         target step can't be found
+   */
+  private void setUpRouting() throws KettleException {
+    int numRoutes = m_meta.getNumRoutes();
+    String[] labels = new String[numRoutes];
+    double[] minConfidences = new double[numRoutes];
+    m_routeRowSets = new RowSet[numRoutes];
+    for ( int i = 0; i < numRoutes; i++ ) {
+      labels[i] = environmentSubstitute( m_meta.getRouteLabels()[i] );
+      minConfidences[i] = Double.NaN;
+      if ( !Const.isEmpty( m_meta.getRouteMinConfidences()[i] ) ) {
+        String c = environmentSubstitute( m_meta.getRouteMinConfidences()[i] );
+        try {
+          minConfidences[i] = Double.parseDouble( c.trim() );
+        } catch ( NumberFormatException ex ) {
+          throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG,
+              "WekaScoring.Error.UnableToParseRouteMinConfidence", c ) ); //$NON-NLS-1$
+        }
+      }
+      m_routeRowSets[i] = findTargetRowSet( m_meta.getRouteTargetStepNames()[i] );
+    }
+    m_data.setRoutes( labels, minConfidences );
+
+    if ( !Const.isEmpty( m_meta.getDefaultTargetStepName() ) ) {
+      m_defaultRowSet = findTargetRowSet( m_meta.getDefaultTargetStepName() );
+    }
+  }
+
+  /**
+   * Finds the row set that leads to a target step
+   *
+   * @param targetStepName the name of the target step
+   * @return the row set
+   * @throws KettleException if the target step does not follow this step
+   */
+  private RowSet findTargetRowSet( String targetStepName ) throws KettleException {
+    RowSet rowSet = findOutputRowSet( targetStepName );
+    if ( rowSet == null ) {
+      throw new KettleException( BaseMessages.getString( WekaScoringMeta.PKG,
+          "WekaScoring.Error.TargetStepNotFound", targetStepName ) ); //$NON-NLS-1$
+    }
+    return rowSet;
+  }
+
+  /**
+   * Outputs a row, to the target step of its route if routing. A row that
+   * matches no rule is dropped (and counted) if there is no default target
+   *
+   * @param row   the row
+   * @param route the routing rule that the row matched (-1 for none)
+   * @throws KettleStepException if the row can't be output
+   */
+  private void putScoredRow( Object[] row, int route ) throws KettleStepException {
+    if ( m_routeRowSets == null ) {
+      putRow( m_data.getOutputRowMeta(), row );
+      return;
+    }
+
+    RowSet rowSet = ( route < 0 ) ? m_defaultRowSet : m_routeRowSets[route];
+    if ( rowSet != null ) {
+      putRowTo( m_data.getOutputRowMeta(), row, rowSet );
+    } else {
+      m_metrics.rowsDropped( 1 );
+    }
+  }
+
   protected void outputBatchRows() throws Exception {
+    BatchScoringEvent event = new BatchScoringEvent();
+    event.begin();
+
     // get predictions for the batch
+    long start = System.nanoTime();
     Object[][] outputRows = m_data.generatePredictions( getInputRowMeta(), m_data.getOutputRowMeta(), m_batch, m_meta );
+    m_metrics.batchScored( m_batch.size(), System.nanoTime() - start );
 
     if ( log.isDetailed() ) {
       logDetailed( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.PredictingBatch" ) ); //$NON-NLS-1$
     }
 
     // output the rows
-    for ( Object[] row : outputRows ) {
-      putRow( m_data.getOutputRowMeta(), row );
+    for ( int i = 0; i < outputRows.length; i++ ) {
+      putScoredRow( outputRows[i], m_data.getRoute( i ) );
+    }
+
+    event.end();
+    if ( event.shouldCommit() ) {
+      event.step = getStepname();
+      event.copy = getCopy();
+      event.modelClass = m_data.getModel().getModel().getClass().getName();
+      event.rows = m_batch.size();
+      event.commit();
     }
 
     // reset batch
@@ -420,8 +1013,48 @@ public class WekaScoring extends BaseStep implements StepInterface {
     m_data = (WekaScoringData) sdi;
 
     if ( super.init( smi, sdi ) ) {
+      m_data.setMetrics( m_metrics );
+      if ( m_meta.getScoreCondition() != null ) {
+        // the condition caches field indexes, so each copy gets its own
+        m_data.setScoreCondition( (Condition) m_meta.getScoreCondition().clone() );
+      }
+      m_data.setDeduplicate( m_meta.getDeduplicateBatches() );
+      int profileInterval = getProfileSampleInterval();
+      if ( profileInterval > 0 ) {
+        ScoringProfiler profiler = new ScoringProfiler( profileInterval );
+        m_data.setProfiler( profiler );
+        m_metrics.setProfiler( profiler, getLogChannel() );
+      }
+      try {
+        m_metrics.register( getTransMeta().getName(), getTrans().getContainerObjectId(), getStepname(), getCopy() );
+      } catch ( Exception ex ) {
+        // not fatal - the step just can't be monitored
+        logDetailed( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.UnableToRegisterMetrics", //$NON-NLS-1$
+            ex.getMessage() ) );
+      }
+
+      // start loading the model now rather than on the first row. Any
+      // problems are reported when the first row arrives
+      startModelLoad();
+      startKeyedModelLoad();
+      startExtraModelLoads();
       return true;
     }
     return false;
   }
+
+  /**
+   * Clean up after the step has finished
+   *
+   * @param smi a <code>StepMetaInterface</code> value
+   * @param sdi a <code>StepDataInterface</code> value
+   */
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    m_metrics.unregister();
+    if ( m_challengerExecutor != null ) {
+      m_challengerExecutor.shutdownNow();
+      m_challengerExecutor = null;
+    }
+    super.dispose( smi, sdi );
+  }
 }
@@ -33,6 +33,10 @@ class WekaScoringClassifier extends WekaScoringModel {
   // The encapsulated classifier
   private Classifier m_model;
 
+  // Early-exit voting for ensembles (created when first needed)
+  private transient EarlyExitEnsemble m_ensemble;
+  private transient boolean m_ensembleChecked;
+
   /**
    * Creates a new <code>WekaScoringClassifier</code> instance.
    *
@@ -49,6 +53,8 @@ class WekaScoringClassifier extends WekaScoringModel {
    */
   public void setModel( Object model ) {
     m_model = (Classifier) model;
+    m_ensemble = null;
+    m_ensembleChecked = false;
   }
 
   /**
@@ -101,6 +107,75 @@ class WekaScoringClassifier extends WekaScoringModel {
     return m_model.distributionForInstance( inst );
   }
 
+  /**
+   * Return scores whose largest value is at the predicted class. Ensembles
+   * (Bagging, RandomForest and Vote) predicting a nominal class stop
+   * evaluating their members as soon as the predicted class is decided. Other
+   * classifiers are asked for the label directly via classifyInstance(),
+   * which trees, rules and nearest neighbour models answer without building
+   * a full distribution.
+   *
+   * @param inst    the Instance to be predicted
+   * @param metrics metrics to record the number of ensemble members evaluated
+   *                in (may be null)
+   * @return scores whose largest value is at the predicted class
+   * @throws Exception if an error occurs
+   */
+  public double[] labelDistributionForInstance( Instance inst, WekaScoringMetrics metrics ) throws Exception {
+    EarlyExitEnsemble ensemble = getEnsemble();
+    if ( ensemble == null ) {
+      return labelDistribution( m_model.classifyInstance( inst ), inst.numClasses() );
+    }
+
+    double[] scores = new double[inst.numClasses()];
+    int evaluated = ensemble.vote( inst, scores );
+    if ( metrics != null ) {
+      metrics.ensembleVoted( evaluated, ensemble.getNumMembers() );
+    }
+    return scores;
+  }
+
+  /**
+   * Batch version of labelDistributionForInstance(). Ensembles that can stop
+   * voting early score each instance in turn so that they still do; other
+   * classifiers go through classifyInstances().
+   *
+   * @param insts   the instances to score
+   * @param metrics metrics to record the number of ensemble members evaluated
+   *                in (may be null)
+   * @return scores whose largest value is at the predicted class, one array
+   * for each instance
+   * @throws Exception if a problem occurs
+   */
+  public double[][] labelDistributionsForInstances( Instances insts, WekaScoringMetrics metrics ) throws Exception {
+    if ( getEnsemble() == null ) {
+      return super.labelDistributionsForInstances( insts, metrics );
+    }
+
+    double[][] preds = new double[insts.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = labelDistributionForInstance( insts.instance( i ), metrics );
+    }
+    return preds;
+  }
+
+  /**
+   * Get the early exit view of the classifier, if it is an ensemble that
+   * predicts a nominal class
+   *
+   * @return the early exit view or null if the classifier is not such an
+   * ensemble
+   */
+  private EarlyExitEnsemble getEnsemble() {
+    if ( !m_ensembleChecked ) {
+      if ( getHeader() != null && getHeader().classAttribute().isNominal() ) {
+        m_ensemble = EarlyExitEnsemble.create( m_model );
+      }
+      m_ensembleChecked = true;
+    }
+    return m_ensemble;
+  }
+
   /**
    * Returns true. Classifiers are supervised methods.
    *
@@ -144,7 +219,8 @@ class WekaScoringClassifier extends WekaScoringModel {
   }
 
   /**
-   * Batch scoring method.
+   * Batch scoring method. Classifiers that are not batch predictors classify
+   * each instance in turn with classifyInstance().
    *
    * @param insts the instances to score
    * @return an array of predictions (index of the predicted class label for
@@ -152,6 +228,14 @@ class WekaScoringClassifier extends WekaScoringModel {
    * @throws Exception if a problem occurs
    */
   public double[] classifyInstances( Instances insts ) throws Exception {
+    if ( !isBatchPredictor() ) {
+      double[] result = new double[insts.numInstances()];
+      for ( int i = 0; i < result.length; i++ ) {
+        result[i] = m_model.classifyInstance( insts.instance( i ) );
+      }
+      return result;
+    }
+
     double[][] preds = distributionsForInstances( insts );
 
     double[] result = new double[preds.length];
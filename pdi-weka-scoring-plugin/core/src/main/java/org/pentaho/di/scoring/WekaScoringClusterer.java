@@ -13,15 +13,20 @@
 
 package org.pentaho.di.scoring;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.Attribute;
 import weka.core.BatchPredictor;
 
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Utils;
 import weka.clusterers.Clusterer;
 import weka.clusterers.UpdateableClusterer;
 import weka.clusterers.DensityBasedClusterer;
-import weka.filters.unsupervised.attribute.Remove;
 
 /**
  * Subclass of WekaScoringModel that encapsulates a Clusterer.
@@ -34,8 +39,10 @@ class WekaScoringClusterer extends WekaScoringModel {
   // The encapsulated clusterer
   private Clusterer m_model;
 
-  // Any attributes to ignore
-  private Remove m_ignoredAtts;
+  // Indexes (in the header) of the attributes that the clusterer uses, and
+  // the format of the reduced instances (null if no attributes are ignored)
+  private int[] m_keptAtts;
+  private Instances m_reducedHeader;
 
   private String m_ignoredString;
 
@@ -49,7 +56,7 @@ class WekaScoringClusterer extends WekaScoringModel {
   }
 
   /**
-   * Sets up a Remove filter to remove attributes that
+   * Works out the projection that removes attributes that
    * are to be ignored by the clusterer. setHeader must
    * be called before this method.
    *
@@ -57,10 +64,24 @@ class WekaScoringClusterer extends WekaScoringModel {
    */
   public void setAttributesToIgnore( int[] attsToIgnore ) throws Exception {
     Instances headerI = getHeader();
-    m_ignoredAtts = new Remove();
-    m_ignoredAtts.setAttributeIndicesArray( attsToIgnore );
-    m_ignoredAtts.setInvertSelection( false );
-    m_ignoredAtts.setInputFormat( headerI );
+    int[] ignored = attsToIgnore.clone();
+    Arrays.sort( ignored );
+
+    m_keptAtts = new int[headerI.numAttributes() - ignored.length];
+    ArrayList<Attribute> atts = new ArrayList<Attribute>( m_keptAtts.length );
+    int classIndex = -1;
+    int k = 0;
+    for ( int i = 0; i < headerI.numAttributes(); i++ ) {
+      if ( Arrays.binarySearch( ignored, i ) < 0 ) {
+        if ( i == headerI.classIndex() ) {
+          classIndex = k;
+        }
+        m_keptAtts[k++] = i;
+        atts.add( copyAttribute( headerI.attribute( i ) ) );
+      }
+    }
+    m_reducedHeader = new Instances( headerI.relationName(), atts, 0 );
+    m_reducedHeader.setClassIndex( classIndex );
 
     StringBuffer temp = new StringBuffer();
     temp.append( "Attributes ignored by clusterer:\n\n" );
@@ -71,6 +92,21 @@ class WekaScoringClusterer extends WekaScoringModel {
     m_ignoredString = temp.toString();
   }
 
+  /**
+   * Copies an attribute for a reduced format. String attributes get a new,
+   * empty set of values, because a copy made with Attribute.copy() shares
+   * its string values with the original.
+   *
+   * @param a the attribute to copy
+   * @return the copy
+   */
+  private static Attribute copyAttribute( Attribute a ) {
+    if ( a.isString() ) {
+      return new Attribute( a.name(), (List<String>) null );
+    }
+    return (Attribute) a.copy();
+  }
+
   /**
    * Set the Clusterer model
    *
@@ -98,8 +134,8 @@ class WekaScoringClusterer extends WekaScoringModel {
    * @throws Exception if an error occurs
    */
   public double classifyInstance( Instance inst ) throws Exception {
-    if ( m_ignoredAtts != null ) {
-      inst = applyFilter( inst );
+    if ( m_keptAtts != null ) {
+      inst = project( inst, m_reducedHeader, false );
     }
     return (double) m_model.clusterInstance( inst );
   }
@@ -114,8 +150,8 @@ class WekaScoringClusterer extends WekaScoringModel {
   public boolean update( Instance inst ) throws Exception {
     // Only cobweb is updateable at present
     if ( isUpdateableModel() ) {
-      if ( m_ignoredAtts != null ) {
-        inst = applyFilter( inst );
+      if ( m_keptAtts != null ) {
+        inst = project( inst, m_reducedHeader, false );
       }
       //      System.err.println("In update...");
       ( (UpdateableClusterer) m_model ).updateClusterer( inst );
@@ -133,18 +169,43 @@ class WekaScoringClusterer extends WekaScoringModel {
    * @throws Exception if an error occurs
    */
   public double[] distributionForInstance( Instance inst ) throws Exception {
-    if ( m_ignoredAtts != null ) {
-      inst = applyFilter( inst );
+    if ( m_keptAtts != null ) {
+      inst = project( inst, m_reducedHeader, false );
     }
     return m_model.distributionForInstance( inst );
   }
 
-  private Instance applyFilter( Instance inputInstance ) throws Exception {
-    if ( !m_ignoredAtts.input( inputInstance ) ) {
-      throw new Exception( "[WekaScoring] Filter didn't make the test instance" + " immediately available!" );
+  /**
+   * Builds the reduced instance (without the ignored attributes) directly
+   * from the values of an instance.
+   *
+   * @param inputInstance the instance (in the format of the header)
+   * @param dataset       the reduced format
+   * @param addStrings    true if string values are to be added to the
+   *                      attributes of the reduced format (for a batch that
+   *                      holds several instances), false if the attributes
+   *                      are to be set to hold just the instance's value
+   * @return the reduced instance
+   */
+  private Instance project( Instance inputInstance, Instances dataset, boolean addStrings ) {
+    double[] vals = new double[m_keptAtts.length];
+    for ( int i = 0; i < m_keptAtts.length; i++ ) {
+      int att = m_keptAtts[i];
+      if ( inputInstance.attribute( att ).isString() && !inputInstance.isMissing( att ) ) {
+        if ( addStrings ) {
+          vals[i] = dataset.attribute( i ).addStringValue( inputInstance.stringValue( att ) );
+        } else {
+          // set the attribute in the reduced header to contain just this
+          // string value (as ScoringMapping does) so that it doesn't grow
+          dataset.attribute( i ).setStringValue( inputInstance.stringValue( att ) );
+          vals[i] = 0.0;
+        }
+      } else {
+        vals[i] = inputInstance.value( att );
+      }
     }
-    m_ignoredAtts.batchFinished();
-    Instance newInstance = m_ignoredAtts.output();
+    Instance newInstance = new DenseInstance( inputInstance.weight(), vals );
+    newInstance.setDataset( dataset );
     return newInstance;
   }
 
@@ -243,6 +304,21 @@ class WekaScoringClusterer extends WekaScoringModel {
       throw new Exception( "Weka model cannot produce batch predictions!" );
     }
 
+    if ( m_keptAtts != null ) {
+      // the batch gets its own (empty) string attributes, so that each
+      // instance keeps its own string values
+      ArrayList<Attribute> atts = new ArrayList<Attribute>( m_keptAtts.length );
+      for ( int i = 0; i < m_keptAtts.length; i++ ) {
+        atts.add( copyAttribute( m_reducedHeader.attribute( i ) ) );
+      }
+      Instances reduced = new Instances( m_reducedHeader.relationName(), atts, insts.numInstances() );
+      reduced.setClassIndex( m_reducedHeader.classIndex() );
+      for ( int i = 0; i < insts.numInstances(); i++ ) {
+        reduced.add( project( insts.instance( i ), reduced, true ) );
+      }
+      insts = reduced;
+    }
+
     return ( (BatchPredictor) m_model ).distributionsForInstances( insts );
   }
 
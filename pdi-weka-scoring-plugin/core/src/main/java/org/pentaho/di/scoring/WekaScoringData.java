@@ -21,13 +21,24 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.vfs2.Capability;
 import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -39,13 +50,11 @@ import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 
 import weka.core.Attribute;
-import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Utils;
-import weka.core.pmml.PMMLFactory;
-import weka.core.pmml.PMMLModel;
 import weka.core.xml.XStream;
+import weka.experiment.Stats;
 
 /**
  * Holds temporary data and has routines for loading serialized models.
@@ -57,8 +66,8 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
   /**
    * some constants for various input field - attribute match/type problems
    */
-  public static final int NO_MATCH = -1;
-  public static final int TYPE_MISMATCH = -2;
+  public static final int NO_MATCH = ScoringMapping.NO_MATCH;
+  public static final int TYPE_MISMATCH = ScoringMapping.TYPE_MISMATCH;
 
   /**
    * the output data format
@@ -86,13 +95,76 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
   /**
    * used to map attribute indices to incoming field indices
    */
-  private int[] m_mappingIndexes;
+  private ScoringMapping m_mapping;
+
+  /**
+   * mappings compiled for the models that have been used, by the fingerprint
+   * of their header. Models trained on data with the same format share a
+   * mapping
+   */
+  private final Map<String, ScoringMapping> m_mappings = new HashMap<String, ScoringMapping>();
+
+  /**
+   * reads values from incoming Kettle rows for the mapping
+   */
+  private final KettleRowReader m_reader = new KettleRowReader();
 
   /**
    * whether to update the model (if incremental)
    */
   protected boolean m_updateIncrementalModel = false;
 
+  /**
+   * runtime metrics for the step copy (may be null)
+   */
+  protected WekaScoringMetrics m_metrics;
+
+  /**
+   * sampling latency profiler (null if profiling is off)
+   */
+  protected ScoringProfiler m_profiler;
+
+  /**
+   * challenger models that are scored alongside the main model, from the same
+   * instances
+   */
+  protected WekaScoringModel[] m_challengers = new WekaScoringModel[0];
+
+  /**
+   * scores the challengers in parallel with the main model (null to score them
+   * one after the other)
+   */
+  protected ExecutorService m_challengerExecutor;
+
+  /**
+   * fast first-stage model for cascade scoring (null if not cascading). Rows
+   * that the first stage predicts with a probability below the threshold are
+   * passed on to the main model
+   */
+  protected WekaScoringModel m_cascadeModel;
+  protected double m_cascadeThreshold;
+
+  /**
+   * rows that don't satisfy this condition are not scored (null to score
+   * every row)
+   */
+  protected Condition m_scoreCondition;
+
+  /**
+   * routing rules (null if not routing): the predicted label (empty for any)
+   * and the minimum confidence (NaN for none) of each rule. The rule matched
+   * by each row of the last prediction(s) is held in m_routes (-1 for none)
+   */
+  protected String[] m_routeLabels;
+  protected double[] m_routeMinConfidences;
+  protected int[] m_routes = new int[1];
+
+  /**
+   * score each distinct row of a batch only once (never for models with string
+   * attributes, whose values are not comparable between rows)
+   */
+  protected boolean m_deduplicate;
+
   public WekaScoringData() {
     super();
   }
@@ -106,6 +178,25 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     m_model = model;
   }
 
+  /**
+   * Switch to another model, along with the mapping from the incoming row
+   * format to its attributes. The mapping is compiled the first time that a
+   * model with a header of its format is switched to, and reused after that.
+   *
+   * @param model        the model to use
+   * @param inputRowMeta the meta data for the incoming rows
+   */
+  void switchModel( WekaScoringModel model, RowMetaInterface inputRowMeta ) {
+    String fingerprint = model.getHeaderFingerprint();
+    ScoringMapping mapping = m_mappings.get( fingerprint );
+    if ( mapping == null ) {
+      mapping = ScoringMapping.compile( model.getHeader(), schemaFor( inputRowMeta ) );
+      m_mappings.put( fingerprint, mapping );
+    }
+    m_model = model;
+    m_mapping = mapping;
+  }
+
   /**
    * Get the model that this copy of the step is using
    *
@@ -137,6 +228,150 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     return m_defaultModel;
   }
 
+  /**
+   * Set the runtime metrics to update
+   *
+   * @param metrics the metrics (may be null)
+   */
+  public void setMetrics( WekaScoringMetrics metrics ) {
+    m_metrics = metrics;
+  }
+
+  /**
+   * Get the runtime metrics
+   *
+   * @return the metrics (may be null)
+   */
+  public WekaScoringMetrics getMetrics() {
+    return m_metrics;
+  }
+
+  /**
+   * Set the latency profiler to record sampled rows with
+   *
+   * @param profiler the profiler (null to turn profiling off)
+   */
+  void setProfiler( ScoringProfiler profiler ) {
+    m_profiler = profiler;
+  }
+
+  /**
+   * Get the latency profiler
+   *
+   * @return the profiler (null if profiling is off)
+   */
+  ScoringProfiler getProfiler() {
+    return m_profiler;
+  }
+
+  /**
+   * Set the challenger models to score alongside the main model. Challengers
+   * must have been trained on data with the same format as the main model
+   *
+   * @param challengers the challengers (may be empty)
+   * @param executor    executor for scoring the challengers in parallel with
+   *                    the main model, or null to score them in turn
+   */
+  public void setChallengers( WekaScoringModel[] challengers, ExecutorService executor ) {
+    m_challengers = ( challengers == null ) ? new WekaScoringModel[0] : challengers;
+    m_challengerExecutor = executor;
+  }
+
+  /**
+   * Get the challenger models
+   *
+   * @return the challengers (may be empty)
+   */
+  public WekaScoringModel[] getChallengers() {
+    return m_challengers;
+  }
+
+  /**
+   * Set up cascade scoring. Every row is scored by the first-stage model, and
+   * only rows whose highest predicted probability is below the threshold are
+   * scored by the main model. The first-stage model must have been trained on
+   * data with the same format as the main model.
+   *
+   * @param firstStage the first-stage model (null to turn cascading off)
+   * @param threshold  the probability below which rows are passed on to the
+   *                   main model
+   */
+  public void setCascade( WekaScoringModel firstStage, double threshold ) {
+    m_cascadeModel = firstStage;
+    m_cascadeThreshold = threshold;
+  }
+
+  /**
+   * Set the condition that rows must satisfy in order to be scored. Rows that
+   * don't satisfy it get empty prediction fields, without an instance being
+   * constructed for them.
+   *
+   * @param condition the condition (null or empty to score every row)
+   */
+  public void setScoreCondition( Condition condition ) {
+    m_scoreCondition = ( condition == null || condition.isEmpty() ) ? null : condition;
+  }
+
+  /**
+   * Returns true if a row satisfies the condition for scoring. Rows passed to
+   * generatePrediction() should be checked with this first; generatePredictions()
+   * checks each row of the batch itself.
+   *
+   * @param inputMeta the meta data for the incoming rows
+   * @param inputRow  the row
+   * @return true if the row is to be scored
+   * @throws KettleException if the condition can't be evaluated
+   */
+  public boolean isSelected( RowMetaInterface inputMeta, Object[] inputRow ) throws KettleException {
+    return m_scoreCondition == null || m_scoreCondition.evaluate( inputMeta, inputRow );
+  }
+
+  /**
+   * Set whether to score each distinct row of a batch only once, sharing its
+   * prediction with identical rows. This is ignored for models with string
+   * attributes.
+   *
+   * @param dedup true to deduplicate batches
+   */
+  public void setDeduplicate( boolean dedup ) {
+    m_deduplicate = dedup;
+  }
+
+  /**
+   * Set the rules for routing scored rows. A row matches the first rule whose
+   * label equals the predicted label (or is empty) and whose minimum
+   * confidence is no more than the probability of the prediction (or is NaN)
+   *
+   * @param labels         the predicted label for each rule (null to turn
+   *                       routing off)
+   * @param minConfidences the minimum confidence for each rule
+   */
+  public void setRoutes( String[] labels, double[] minConfidences ) {
+    m_routeLabels = labels;
+    m_routeMinConfidences = minConfidences;
+  }
+
+  /**
+   * Get the routing rule matched by a row of the last prediction(s)
+   *
+   * @param row the index of the row in the last batch (0 after scoring a
+   *            single row)
+   * @return the index of the rule matched, or -1 if the row matched no rule
+   * (or isn't routed)
+   */
+  public int getRoute( int row ) {
+    return ( m_routeLabels == null ) ? -1 : m_routes[row];
+  }
+
+  /**
+   * Get the first-stage model for cascade scoring
+   *
+   * @return the first-stage model (null if not cascading)
+   */
+  public WekaScoringModel getCascadeModel() {
+    return m_cascadeModel;
+  }
+
   /**
    * Get the meta data for the output format
    *
@@ -171,7 +406,9 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    */
   public void mapIncomingRowMetaData( Instances header, RowMetaInterface inputRowMeta, boolean updateIncrementalModel,
       LogChannelInterface log ) {
-    m_mappingIndexes = WekaScoringData.findMappings( header, inputRowMeta );
+    m_mapping = ScoringMapping.compile( header, schemaFor( inputRowMeta ) );
+    m_mappings.clear();
+    m_mappings.put( ScoringMapping.fingerprint( header ), m_mapping );
     m_updateIncrementalModel = updateIncrementalModel;
 
     // If updating of incremental models has been selected, then
@@ -180,8 +417,7 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
       if ( m_model.isUpdateableModel() ) {
         // Do we have the class mapped successfully to an incoming
         // Kettle field
-        if ( m_mappingIndexes[header.classIndex()] == WekaScoringData.NO_MATCH
-            || m_mappingIndexes[header.classIndex()] == WekaScoringData.TYPE_MISMATCH ) {
+        if ( m_mapping.getFieldIndex( header.classIndex() ) < 0 ) {
           m_updateIncrementalModel = false;
           log.logError(
               BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringMeta.Log.NoMatchForClass" ) ); //$NON-NLS-1$
@@ -202,6 +438,47 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     return modelF.exists();
   }
 
+  /**
+   * Returns the last modification time of a model file.
+   *
+   * @param modelFile the path to the model file
+   * @param space     variables to use for substitution in the path
+   * @return the last modification time of the file, or -1 if the file system
+   * does not support modification times
+   * @throws Exception if a problem occurs
+   */
+  public static long modelFileLastModified( String modelFile, VariableSpace space ) throws Exception {
+
+    modelFile = space.environmentSubstitute( modelFile );
+    FileObject modelF = KettleVFS.getFileObject( modelFile );
+    if ( !modelF.getFileSystem().hasCapability( Capability.GET_LAST_MODIFIED ) ) {
+      return -1;
+    }
+
+    return modelF.getContent().getLastModifiedTime();
+  }
+
+  /**
+   * Loads just the header information (training header, model type and number
+   * of clusters) for a serialized model. Java serialization does not allow the
+   * model object to be skipped over in order to reach the header, so binary
+   * models still need to be read once; however, the model itself is not
+   * retained and only the small header description is returned to the caller.
+   *
+   * @param modelFile the path to the model file
+   * @param log       the log to use
+   * @param space     variables to use for substitution in the path
+   * @return a <code>WekaScoringModelHeader</code> describing the model
+   * @throws Exception if there is a problem loading the model
+   */
+  public static WekaScoringModelHeader loadModelHeader( String modelFile, LogChannelInterface log,
+      VariableSpace space ) throws Exception {
+
+    WekaScoringModel model = loadSerializedModel( modelFile, log, space );
+
+    return WekaScoringModelHeader.createHeader( model );
+  }
+
   /**
    * Loads a serialized model. Models can either be binary serialized Java
    * objects, objects deep-serialized to xml, or PMML.
@@ -210,12 +487,30 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    * @return the model
    * @throws Exception if there is a problem laoding the model.
    */
-  public static WekaScoringModel loadSerializedModel( String modelFile, LogChannelInterface log, VariableSpace space )
-      throws Exception {
+  public static WekaScoringModel loadSerializedModel( final String modelFile, final LogChannelInterface log,
+      final VariableSpace space ) throws Exception {
+
+    final ModelLoadEvent event = new ModelLoadEvent();
+    event.begin();
+    try {
+      // installed Weka packages are only loaded if the model needs them
+      WekaScoringModel model = WekaPackageLoader.callWithPackages( new Callable<WekaScoringModel>() {
+        public WekaScoringModel call() throws Exception {
+          return readSerializedModel( modelFile, log, space, event );
+        }
+      } );
+      event.modelClass = model.getModel().getClass().getName();
+      return model;
+    } finally {
+      event.end();
+      if ( event.shouldCommit() ) {
+        event.commit();
+      }
+    }
+  }
 
-    Object model = null;
-    Instances header = null;
-    int[] ignoredAttsForClustering = null;
+  private static WekaScoringModel readSerializedModel( String modelFile, LogChannelInterface log, VariableSpace space,
+      ModelLoadEvent event ) throws Exception {
 
     modelFile = space.environmentSubstitute( modelFile );
     FileObject modelF = KettleVFS.getFileObject( modelFile );
@@ -224,64 +519,25 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
           space.environmentSubstitute( modelFile ) ) ); //$NON-NLS-1$
     }
 
-    InputStream is = KettleVFS.getInputStream( modelF );
-    BufferedInputStream buff = new BufferedInputStream( is );
-
-    if ( modelFile.toLowerCase().endsWith( ".xml" ) ) { //$NON-NLS-1$
-      // assume it is PMML
-      model = PMMLFactory.getPMMLModel( buff, null );
-
-      // we will use the mining schema as the instance structure
-      header = ( (PMMLModel) model ).getMiningSchema().getMiningSchemaAsInstances();
-
-      buff.close();
-    } else if ( modelFile.toLowerCase().endsWith( ".xstreammodel" ) ) { //$NON-NLS-1$
-      log.logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringData.Log.LoadXMLModel" ) ); //$NON-NLS-1$
-
-      if ( XStream.isPresent() ) {
-        Vector v = (Vector) XStream.read( buff );
+    if ( event.isEnabled() ) {
+      event.modelFile = modelFile;
+      event.bytes = modelF.getContent().getSize();
+    }
 
-        model = v.elementAt( 0 );
-        if ( v.size() == 2 ) {
-          // try and grab the header
-          header = (Instances) v.elementAt( 1 );
-        }
-        buff.close();
-      } else {
-        buff.close();
+    if ( modelFile.toLowerCase().endsWith( ".xstreammodel" ) ) { //$NON-NLS-1$
+      if ( log != null ) {
+        log.logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringData.Log.LoadXMLModel" ) ); //$NON-NLS-1$
+      }
+      if ( !XStream.isPresent() ) {
         throw new Exception(
             BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringData.Error.CantLoadXMLModel" ) ); //$NON-NLS-1$
       }
-    } else {
-      InputStream stream = buff;
-      if ( modelFile.toLowerCase().endsWith( ".gz" ) ) { //$NON-NLS-1$
-        stream = new GZIPInputStream( buff );
-      }
-      ObjectInputStream oi = new ObjectInputStream( stream );
-
-      model = oi.readObject();
-
-      // try and grab the header
-      header = (Instances) oi.readObject();
-
-      if ( model instanceof weka.clusterers.Clusterer ) {
-        // try and grab any attributes to be ignored during clustering
-        try {
-          ignoredAttsForClustering = (int[]) oi.readObject();
-        } catch ( Exception ex ) {
-          // Don't moan if there aren't any :-)
-        }
-      }
-      oi.close();
     }
 
-    WekaScoringModel wsm = WekaScoringModel.createScorer( model );
-    wsm.setHeader( header );
-    if ( wsm instanceof WekaScoringClusterer && ignoredAttsForClustering != null ) {
-      ( (WekaScoringClusterer) wsm ).setAttributesToIgnore( ignoredAttsForClustering );
+    WekaScoringModel wsm = ScoringEngine.readModel( KettleVFS.getInputStream( modelF ), modelFile );
+    if ( log != null ) {
+      wsm.setLog( log );
     }
-
-    wsm.setLog( log );
     return wsm;
   }
 
@@ -301,6 +557,43 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     oos.close();
   }
 
+  /**
+   * Writes a model to the supplied stream in the compressed (GZIP'd Java
+   * serialization) form used when embedding models in step meta data. The
+   * stream is closed when done.
+   *
+   * @param wsm the model to write
+   * @param out the stream to write to
+   * @throws Exception if a problem occurs
+   */
+  public static void writeCompressedModel( WekaScoringModel wsm, OutputStream out ) throws Exception {
+    ObjectOutputStream oos = new ObjectOutputStream( new BufferedOutputStream( new GZIPOutputStream( out ) ) );
+
+    try {
+      oos.writeObject( wsm );
+    } finally {
+      oos.close();
+    }
+  }
+
+  /**
+   * Reads a model that was written by writeCompressedModel(). The stream is
+   * closed when done.
+   *
+   * @param in the stream to read from
+   * @return the model
+   * @throws Exception if a problem occurs
+   */
+  public static WekaScoringModel readCompressedModel( InputStream in ) throws Exception {
+    ObjectInputStream ois = new ObjectInputStream( new BufferedInputStream( new GZIPInputStream( in ) ) );
+
+    try {
+      return (WekaScoringModel) ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
   /**
    * Finds a mapping between the attributes that a Weka model has been trained
    * with and the incoming Kettle row format. Returns an array of indices, where
@@ -314,59 +607,44 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    * @return the mapping as an array of integer indices
    */
   public static int[] findMappings( Instances header, RowMetaInterface inputRowMeta ) {
-    // Instances header = m_model.getHeader();
-    int[] mappingIndexes = new int[header.numAttributes()];
+    return ScoringMapping.compile( header, schemaFor( inputRowMeta ) ).getFieldIndexes();
+  }
 
-    HashMap<String, Integer> inputFieldLookup = new HashMap<String, Integer>();
+  /**
+   * Describes a Kettle row format as a scoring schema
+   *
+   * @param inputRowMeta the meta data for the incoming rows
+   * @return the schema
+   */
+  public static ScoringSchema schemaFor( RowMetaInterface inputRowMeta ) {
+    String[] names = new String[inputRowMeta.size()];
+    int[] types = new int[inputRowMeta.size()];
     for ( int i = 0; i < inputRowMeta.size(); i++ ) {
       ValueMetaInterface inField = inputRowMeta.getValueMeta( i );
-      inputFieldLookup.put( inField.getName(), Integer.valueOf( i ) );
-    }
-
-    // check each attribute in the header against what is incoming
-    for ( int i = 0; i < header.numAttributes(); i++ ) {
-      Attribute temp = header.attribute( i );
-      String attName = temp.name();
-
-      // look for a matching name
-      Integer matchIndex = inputFieldLookup.get( attName );
-      boolean ok = false;
-      int status = NO_MATCH;
-      if ( matchIndex != null ) {
-        // check for type compatibility
-        ValueMetaInterface tempField = inputRowMeta.getValueMeta( matchIndex.intValue() );
-        if ( tempField.isNumeric() || tempField.isBoolean() ) {
-          if ( temp.isNumeric() ) {
-            ok = true;
-            status = 0;
-          } else {
-            status = TYPE_MISMATCH;
-          }
-        } else if ( tempField.isString() ) {
-          if ( temp.isNominal() || temp.isString() ) {
-            ok = true;
-            status = 0;
-            // All we can assume is that this input field is ok.
-            // Since we wont know what the possible values are
-            // until the data is pumping throug, we will defer
-            // the matching of legal values until then
-          } else {
-            status = TYPE_MISMATCH;
-          }
-        } else {
-          // any other type is a mismatch (might be able to do
-          // something with dates at some stage)
-          status = TYPE_MISMATCH;
-        }
-      }
-      if ( ok ) {
-        mappingIndexes[i] = matchIndex.intValue();
+      names[i] = inField.getName();
+      if ( inField.isBoolean() ) {
+        types[i] = ScoringSchema.TYPE_BOOLEAN;
+      } else if ( inField.getType() == ValueMetaInterface.TYPE_INTEGER ) {
+        types[i] = ScoringSchema.TYPE_INTEGER;
+      } else if ( inField.isNumeric() ) {
+        types[i] = ScoringSchema.TYPE_NUMBER;
+      } else if ( inField.isString() ) {
+        types[i] = ScoringSchema.TYPE_STRING;
       } else {
-        // mark this attribute as missing or type mismatch
-        mappingIndexes[i] = status;
+        types[i] = ScoringSchema.TYPE_OTHER;
       }
     }
-    return mappingIndexes;
+    return new ScoringSchema( names, types );
+  }
+
+  /**
+   * Get the compiled mapping from the model's attributes to the incoming
+   * fields
+   *
+   * @return the mapping (null until mapIncomingRowMetaData() has been called)
+   */
+  ScoringMapping getMapping() {
+    return m_mapping;
   }
 
   /**
@@ -385,73 +663,92 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
   public Object[][] generatePredictions( RowMetaInterface inputMeta, RowMetaInterface outputMeta,
       List<Object[]> inputRows, WekaScoringMeta meta ) throws Exception {
 
-    int[] mappingIndexes = m_mappingIndexes;
+    ScoringMapping mapping = m_mapping;
     WekaScoringModel model = getModel(); // copy of the model for this copy of
     // the step
     boolean outputProbs = meta.getOutputProbabilities();
-    boolean supervised = model.isSupervisedLearningModel();
 
-    Attribute classAtt = null;
-    if ( supervised ) {
-      classAtt = model.getHeader().classAttribute();
-    }
+    boolean sample = m_profiler != null && m_profiler.sample( inputRows.size() );
+    long start = sample ? System.nanoTime() : 0L;
 
+    // rows that don't satisfy the score condition are left out of the batch
     Instances batch = new Instances( model.getHeader(), inputRows.size() );
-    for ( Object[] r : inputRows ) {
-      Instance inst = constructInstance( inputMeta, r, mappingIndexes, model, true );
-      batch.add( inst );
+    int[] scored = new int[inputRows.size()]; // row index of each instance
+    for ( int i = 0; i < inputRows.size(); i++ ) {
+      Object[] r = inputRows.get( i );
+      if ( isSelected( inputMeta, r ) ) {
+        scored[batch.numInstances()] = i;
+        Instance inst = constructInstance( inputMeta, r, mapping, model, true );
+        batch.add( inst );
+      }
+    }
+    if ( m_metrics != null && batch.numInstances() < inputRows.size() ) {
+      m_metrics.rowsSkipped( inputRows.size() - batch.numInstances() );
     }
 
-    double[][] preds = model.distributionsForInstances( batch );
-
-    Object[][] result = new Object[preds.length][];
-    for ( int i = 0; i < preds.length; i++ ) {
-      // First copy the input data to the new result...
-      Object[] resultRow = RowDataUtil.resizeArray( inputRows.get( i ), outputMeta.size() );
-      int index = inputMeta.size();
-
-      double[] prediction = preds[i];
+    // identical rows share the prediction of the first of them
+    int numScored = batch.numInstances();
+    int[] distinct = null;
+    if ( m_deduplicate && numScored > 1 && !model.getHeader().checkForStringAttributes() ) {
+      distinct = new int[numScored];
+      Instances unique = deduplicate( batch, distinct );
+      if ( m_metrics != null ) {
+        m_metrics.batchDeduplicated( numScored, unique.numInstances() );
+      }
+      if ( unique.numInstances() < numScored ) {
+        batch = unique;
+      } else {
+        distinct = null;
+      }
+    }
 
-      if ( prediction.length == 1 || !outputProbs ) {
-        if ( supervised ) {
-          if ( classAtt.isNumeric() ) {
-            Double newVal = new Double( prediction[0] );
-            resultRow[index++] = newVal;
-          } else {
-            int maxProb = Utils.maxIndex( prediction );
-            if ( prediction[maxProb] > 0 ) {
-              String newVal = classAtt.value( maxProb );
-              resultRow[index++] = newVal;
-            } else {
-              String
-                  newVal =
-                  BaseMessages
-                      .getString( WekaScoringMeta.PKG, "WekaScoringData.Message.UnableToPredict" ); //$NON-NLS-1$
-              resultRow[index++] = newVal;
-            }
-          }
-        } else {
-          int maxProb = Utils.maxIndex( prediction );
-          if ( prediction[maxProb] > 0 ) {
-            Double newVal = new Double( maxProb );
-            resultRow[index++] = newVal;
-          } else {
-            String
-                newVal =
-                BaseMessages
-                    .getString( WekaScoringMeta.PKG, "WekaScoringData.Message.UnableToPredictCluster" ); //$NON-NLS-1$
-            resultRow[index++] = newVal;
-          }
-        }
+    long constructed = sample ? System.nanoTime() : 0L;
+    int[] stages = null;
+    double[][] preds = new double[0][];
+    double[][][] challengerPreds = new double[0][][];
+    if ( batch.numInstances() > 0 ) {
+      List<FutureTask<double[][]>> challengers = scoreChallengers( batch, null );
+      if ( m_cascadeModel != null ) {
+        stages = new int[batch.numInstances()];
+        preds = cascade( model, batch, stages );
+      } else if ( labelOnly( model, outputProbs ) ) {
+        preds = model.labelDistributionsForInstances( batch, m_metrics );
       } else {
-        // output probability distribution
-        for ( int j = 0; j < prediction.length; j++ ) {
-          Double newVal = new Double( prediction[j] );
-          resultRow[index++] = newVal;
-        }
+        preds = model.distributionsForInstances( batch );
       }
+      challengerPreds = waitForChallengers( challengers );
+    }
+    long evaluated = sample ? System.nanoTime() : 0L;
+
+    Object[][] result = new Object[inputRows.size()][];
+    for ( int i = 0; i < inputRows.size(); i++ ) {
+      // First copy the input data to the new result...
+      result[i] = RowDataUtil.resizeArray( inputRows.get( i ), outputMeta.size() );
+    }
+    if ( m_routeLabels != null ) {
+      if ( m_routes.length < inputRows.size() ) {
+        m_routes = new int[inputRows.size()];
+      }
+      Arrays.fill( m_routes, -1 );
+    }
+    for ( int i = 0; i < numScored; i++ ) {
+      Object[] resultRow = result[scored[i]];
+      int d = ( distinct == null ) ? i : distinct[i];
+      if ( m_routeLabels != null ) {
+        m_routes[scored[i]] = route( model, preds[d] );
+      }
+      int index = addPrediction( model, preds[d], outputProbs, resultRow, inputMeta.size() );
+      if ( stages != null ) {
+        resultRow[index++] = new Long( stages[d] );
+      }
+      for ( int j = 0; j < challengerPreds.length; j++ ) {
+        index = addPrediction( m_challengers[j], challengerPreds[j][d], outputProbs, resultRow, index );
+      }
+    }
 
-      result[i] = resultRow;
+    if ( sample ) {
+      m_profiler.record( inputRows.size(), constructed - start, evaluated - constructed,
+          System.nanoTime() - evaluated );
     }
 
     return result;
@@ -472,33 +769,90 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    */
   public Object[] generatePrediction( RowMetaInterface inputMeta, RowMetaInterface outputMeta, Object[] inputRow,
       WekaScoringMeta meta ) throws Exception {
+    return generatePrediction( inputMeta, outputMeta, inputRow, meta, meta.getUpdateIncrementalModel() );
+  }
+
+  private Object[] generatePrediction( RowMetaInterface inputMeta, RowMetaInterface outputMeta, Object[] inputRow,
+      WekaScoringMeta meta, boolean updateModel ) throws Exception {
 
-    int[] mappingIndexes = m_mappingIndexes;
+    ScoringMapping mapping = m_mapping;
     WekaScoringModel model = getModel();
     boolean outputProbs = meta.getOutputProbabilities();
-    boolean supervised = model.isSupervisedLearningModel();
 
-    Attribute classAtt = null;
-    if ( supervised ) {
-      classAtt = model.getHeader().classAttribute();
-    }
+    boolean sample = m_profiler != null && m_profiler.sample( 1 );
+    long start = sample ? System.nanoTime() : 0L;
 
     // need to construct an Instance to represent this
     // input row
-    Instance toScore = constructInstance( inputMeta, inputRow, mappingIndexes, model, false );
-    double[] prediction = model.distributionForInstance( toScore );
+    Instance toScore = constructInstance( inputMeta, inputRow, mapping, model, false );
+    long constructed = sample ? System.nanoTime() : 0L;
+    List<FutureTask<double[][]>> challengers = scoreChallengers( null, toScore );
+    int stage = 2;
+    double[] prediction = null;
+    if ( m_cascadeModel != null ) {
+      prediction = m_cascadeModel.distributionForInstance( toScore );
+      if ( prediction[Utils.maxIndex( prediction )] >= m_cascadeThreshold ) {
+        stage = 1;
+      } else {
+        prediction = null;
+      }
+    }
+    if ( prediction == null ) {
+      if ( labelOnly( model, outputProbs ) ) {
+        prediction = model.labelDistributionForInstance( toScore, m_metrics );
+      } else {
+        prediction = model.distributionForInstance( toScore );
+      }
+      if ( m_cascadeModel != null && m_metrics != null ) {
+        m_metrics.cascadeEscalated( 1 );
+      }
+    }
+    double[][][] challengerPreds = waitForChallengers( challengers );
 
     // Update the model??
-    if ( meta.getUpdateIncrementalModel() && model.isUpdateableModel() && !toScore.isMissing( toScore.classIndex() ) ) {
-      model.update( toScore );
+    if ( updateModel && model.isUpdateableModel() && !toScore.isMissing( toScore.classIndex() ) ) {
+      if ( model.update( toScore ) && m_metrics != null ) {
+        m_metrics.modelUpdated();
+      }
+    }
+    long evaluated = sample ? System.nanoTime() : 0L;
+    if ( m_routeLabels != null ) {
+      m_routes[0] = route( model, prediction );
     }
     // First copy the input data to the new result...
     Object[] resultRow = RowDataUtil.resizeArray( inputRow, outputMeta.size() );
-    int index = inputMeta.size();
+    int index = addPrediction( model, prediction, outputProbs, resultRow, inputMeta.size() );
+    if ( m_cascadeModel != null ) {
+      resultRow[index++] = new Long( stage );
+    }
+    for ( int j = 0; j < challengerPreds.length; j++ ) {
+      index = addPrediction( m_challengers[j], challengerPreds[j][0], outputProbs, resultRow, index );
+    }
+
+    if ( sample ) {
+      m_profiler.record( 1, constructed - start, evaluated - constructed, System.nanoTime() - evaluated );
+    }
+
+    return resultRow;
+  }
+
+  /**
+   * Puts the output values for a model's prediction into an output row
+   *
+   * @param model       the model that made the prediction
+   * @param prediction  the prediction
+   * @param outputProbs true if probability distributions are to be output
+   * @param resultRow   the output row
+   * @param index       the index in the output row for the first value
+   * @return the index in the output row following the last value
+   */
+  private static int addPrediction( WekaScoringModel model, double[] prediction, boolean outputProbs,
+      Object[] resultRow, int index ) {
 
     // output for numeric class or discrete class value
     if ( prediction.length == 1 || !outputProbs ) {
-      if ( supervised ) {
+      if ( model.isSupervisedLearningModel() ) {
+        Attribute classAtt = model.getHeader().classAttribute();
         if ( classAtt.isNumeric() ) {
           Double newVal = new Double( prediction[0] );
           resultRow[index++] = newVal;
@@ -535,96 +889,418 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
       }
     }
 
-    return resultRow;
+    return index;
   }
 
   /**
-   * Helper method that constructs an Instance to input to the Weka model based
-   * on incoming Kettle fields and pre-constructed attribute-to-field mapping
-   * data.
+   * Collects the distinct instances of a batch. The class value is ignored,
+   * since it plays no part in a prediction.
    *
-   * @param inputMeta      a <code>RowMetaInterface</code> value
-   * @param inputRow       an <code>Object</code> value
-   * @param mappingIndexes an <code>int</code> value
-   * @param model          a <code>WekaScoringModel</code> value
-   * @return an <code>Instance</code> value
+   * @param batch    the batch
+   * @param distinct filled with the index of each instance of the batch in
+   *                 the distinct instances
+   * @return the distinct instances, in order of first appearance
    */
-  private Instance constructInstance( RowMetaInterface inputMeta, Object[] inputRow, int[] mappingIndexes,
-      WekaScoringModel model, boolean freshVector ) {
+  private static Instances deduplicate( Instances batch, int[] distinct ) {
+    Instances unique = new Instances( batch, batch.numInstances() );
+    Map<InstanceKey, Integer> seen = new HashMap<InstanceKey, Integer>( batch.numInstances() * 2 );
+    for ( int i = 0; i < batch.numInstances(); i++ ) {
+      InstanceKey key = new InstanceKey( batch.instance( i ) );
+      Integer index = seen.get( key );
+      if ( index == null ) {
+        index = unique.numInstances();
+        seen.put( key, index );
+        unique.add( batch.instance( i ) );
+      }
+      distinct[i] = index.intValue();
+    }
+    return unique;
+  }
 
-    Instances header = model.getHeader();
+  /**
+   * Hash key for the attribute values of an instance, excluding the class
+   * value. Missing values are equal to each other.
+   */
+  private static class InstanceKey {
+    private final Instance m_inst;
+    private final int m_hash;
+
+    InstanceKey( Instance inst ) {
+      m_inst = inst;
+      int hash = 1;
+      for ( int i = 0; i < inst.numAttributes(); i++ ) {
+        if ( i != inst.classIndex() ) {
+          long bits = Double.doubleToLongBits( inst.value( i ) );
+          hash = 31 * hash + (int) ( bits ^ ( bits >>> 32 ) );
+        }
+      }
+      m_hash = hash;
+    }
 
-    // Re-use this array (unless told otherwise) to avoid an object creation
-    if ( m_vals == null || freshVector ) {
-      m_vals = new double[header.numAttributes()];
+    @Override public int hashCode() {
+      return m_hash;
     }
 
-    for ( int i = 0; i < header.numAttributes(); i++ ) {
+    @Override public boolean equals( Object o ) {
+      if ( !( o instanceof InstanceKey ) ) {
+        return false;
+      }
+      InstanceKey other = (InstanceKey) o;
+      if ( other.m_hash != m_hash ) {
+        return false;
+      }
+      for ( int i = 0; i < m_inst.numAttributes(); i++ ) {
+        if ( i != m_inst.classIndex() && Double.doubleToLongBits( m_inst.value( i ) ) != Double
+            .doubleToLongBits( other.m_inst.value( i ) ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
 
-      if ( mappingIndexes[i] >= 0 ) {
-        try {
-          Object inputVal = inputRow[mappingIndexes[i]];
+  /**
+   * Returns true if only the label predicted by a model is output
+   *
+   * @param model       the model
+   * @param outputProbs true if probability distributions are to be output
+   * @return true if only the label is output
+   */
+  private boolean labelOnly( WekaScoringModel model, boolean outputProbs ) {
+    if ( outputProbs || !model.isSupervisedLearningModel() || !model.getHeader().classAttribute().isNominal() ) {
+      return false;
+    }
 
-          Attribute temp = header.attribute( i );
-          ValueMetaInterface tempField = inputMeta.getValueMeta( mappingIndexes[i] );
-          int fieldType = tempField.getType();
+    // routing by confidence needs the probability of the prediction
+    if ( m_routeMinConfidences != null ) {
+      for ( double min : m_routeMinConfidences ) {
+        if ( !Double.isNaN( min ) ) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
 
-          // Check for missing value (null or empty string)
-          if ( tempField.isNull( inputVal ) ) {
-            m_vals[i] = Utils.missingValue();
-            continue;
-          }
+  /**
+   * Finds the first routing rule that a prediction matches
+   *
+   * @param model      the model that made the prediction
+   * @param prediction the prediction
+   * @return the index of the rule, or -1 if the prediction matches no rule
+   */
+  private int route( WekaScoringModel model, double[] prediction ) {
+    String label = null;
+    double confidence = Double.NaN;
+    if ( !model.isSupervisedLearningModel() || model.getHeader().classAttribute().isNominal() ) {
+      int best = Utils.maxIndex( prediction );
+      if ( prediction[best] > 0 ) {
+        label = model.isSupervisedLearningModel() ? model.getHeader().classAttribute().value( best )
+            : Integer.toString( best );
+        confidence = prediction[best];
+      }
+    }
 
-          switch ( temp.type() ) {
-            case Attribute.NUMERIC:
-              if ( fieldType == ValueMetaInterface.TYPE_BOOLEAN ) {
-                Boolean b = tempField.getBoolean( inputVal );
-                if ( b.booleanValue() ) {
-                  m_vals[i] = 1.0;
-                } else {
-                  m_vals[i] = 0.0;
-                }
-              } else if ( fieldType == ValueMetaInterface.TYPE_INTEGER ) {
-                Long t = tempField.getInteger( inputVal );
-                m_vals[i] = t.longValue();
-              } else {
-                Double n = tempField.getNumber( inputVal );
-                m_vals[i] = n.doubleValue();
-              }
-              break;
-            case Attribute.NOMINAL:
-              String s = tempField.getString( inputVal );
-              // now need to look for this value in the attribute
-              // in order to get the correct index
-              int index = temp.indexOfValue( s );
-              if ( index < 0 ) {
-                // set to missing value
-                m_vals[i] = Utils.missingValue();
-              } else {
-                m_vals[i] = index;
-              }
-              break;
-            case Attribute.STRING: {
-              String s2 = tempField.getString( inputVal );
-              // Set the attribute in the header to contain just this string value
-              temp.setStringValue( s2 );
-              m_vals[i] = 0.0;
-              break;
-            }
-            default:
-              m_vals[i] = Utils.missingValue();
+    for ( int i = 0; i < m_routeLabels.length; i++ ) {
+      boolean labelOk = Const.isEmpty( m_routeLabels[i] ) || m_routeLabels[i].equals( label );
+      boolean confidenceOk = Double.isNaN( m_routeMinConfidences[i] ) || confidence >= m_routeMinConfidences[i];
+      if ( labelOk && confidenceOk ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Scores a batch with the first-stage model and then passes the rows that it
+   * is not confident enough about on to the main model, as a batch
+   *
+   * @param model  the main model
+   * @param batch  the batch to score
+   * @param stages filled with the stage (1 or 2) that made each prediction
+   * @return the predictions
+   * @throws Exception if a problem occurs
+   */
+  private double[][] cascade( WekaScoringModel model, Instances batch, int[] stages ) throws Exception {
+    double[][] preds = distributions( m_cascadeModel, batch );
+
+    Instances uncertain = new Instances( batch, 0 );
+    int[] indexes = new int[preds.length];
+    for ( int i = 0; i < preds.length; i++ ) {
+      if ( preds[i][Utils.maxIndex( preds[i] )] >= m_cascadeThreshold ) {
+        stages[i] = 1;
+      } else {
+        stages[i] = 2;
+        indexes[uncertain.numInstances()] = i;
+        uncertain.add( batch.instance( i ) );
+      }
+    }
+
+    if ( uncertain.numInstances() > 0 ) {
+      double[][] second = distributions( model, uncertain );
+      for ( int i = 0; i < second.length; i++ ) {
+        preds[indexes[i]] = second[i];
+      }
+      if ( m_metrics != null ) {
+        m_metrics.cascadeEscalated( second.length );
+      }
+    }
+
+    return preds;
+  }
+
+  /**
+   * Gets predictions for a batch from a model, one instance at a time if the
+   * model is not a batch predictor
+   *
+   * @param model the model
+   * @param batch the batch to score
+   * @return the predictions
+   * @throws Exception if a problem occurs
+   */
+  static double[][] distributions( WekaScoringModel model, Instances batch ) throws Exception {
+    if ( model.isBatchPredictor() ) {
+      return model.distributionsForInstances( batch );
+    }
+    double[][] preds = new double[batch.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = model.distributionForInstance( batch.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * Starts scoring a batch (or a single instance) with each of the challenger
+   * models. If there is an executor the challengers are scored in the
+   * background; otherwise they are scored when their results are waited for.
+   *
+   * @param batch the batch to score (null if scoring a single instance)
+   * @param inst  the instance to score (if not scoring a batch)
+   * @return a task for each challenger
+   */
+  private List<FutureTask<double[][]>> scoreChallengers( final Instances batch, final Instance inst ) {
+    List<FutureTask<double[][]>> tasks = new ArrayList<FutureTask<double[][]>>( m_challengers.length );
+    for ( final WekaScoringModel challenger : m_challengers ) {
+      FutureTask<double[][]> task = new FutureTask<double[][]>( new Callable<double[][]>() {
+        public double[][] call() throws Exception {
+          if ( batch == null ) {
+            return new double[][] { challenger.distributionForInstance( inst ) };
           }
-        } catch ( Exception e ) {
-          m_vals[i] = Utils.missingValue();
+          return distributions( challenger, batch );
+        }
+      } );
+      if ( m_challengerExecutor != null ) {
+        m_challengerExecutor.execute( task );
+      }
+      tasks.add( task );
+    }
+    return tasks;
+  }
+
+  /**
+   * Waits for the challengers to finish scoring, scoring any that have not
+   * been started yet on this thread
+   *
+   * @param tasks the tasks returned by scoreChallengers()
+   * @return the predictions of each challenger
+   * @throws Exception if a challenger could not make its predictions
+   */
+  private static double[][][] waitForChallengers( List<FutureTask<double[][]>> tasks ) throws Exception {
+    double[][][] preds = new double[tasks.size()][][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      FutureTask<double[][]> task = tasks.get( i );
+      // does nothing if the task has already been started in the background
+      task.run();
+      try {
+        preds[i] = task.get();
+      } catch ( ExecutionException ex ) {
+        if ( ex.getCause() instanceof Exception ) {
+          throw (Exception) ex.getCause();
+        }
+        throw ex;
+      }
+    }
+    return preds;
+  }
+
+  /**
+   * Warms up the scoring code path by scoring synthetic rows. The rows are
+   * generated from the model's header: nominal attributes take values from
+   * their set of legal values and numeric attributes take values within the
+   * range observed in any data held in the header, or the attribute's declared
+   * bounds. Where no range is known values are drawn from a standard normal
+   * distribution. Incremental models are never updated by the synthetic rows
+   * and predictions are discarded.
+   * <p>
+   * The model and the mapping of incoming fields must have been set.
+   *
+   * @param inputMeta  the meta data for the incoming rows
+   * @param outputMeta the meta data for the output rows
+   * @param meta       meta data for this step
+   * @param numRows    the number of synthetic rows to score
+   * @param batchSize  the size of the batches to score in if the model is a
+   *                   batch predictor
+   * @param seed       the seed for generating the synthetic rows
+   * @throws Exception if an error occurs
+   */
+  public void warmUp( RowMetaInterface inputMeta, RowMetaInterface outputMeta, WekaScoringMeta meta, int numRows,
+      int batchSize, long seed ) throws Exception {
+
+    WekaScoringModel model = getModel();
+    Instances header = model.getHeader();
+    Random rand = new Random( seed );
+
+    // min and max for numeric attributes (where known)
+    double[][] ranges = new double[header.numAttributes()][];
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      Attribute temp = header.attribute( i );
+      if ( !temp.isNumeric() ) {
+        continue;
+      }
+      if ( header.numInstances() > 0 ) {
+        Stats stats = header.attributeStats( i ).numericStats;
+        if ( stats != null && stats.count > 0 ) {
+          ranges[i] = new double[] { stats.min, stats.max };
+          continue;
+        }
+      }
+      double lower = temp.getLowerNumericBound();
+      double upper = temp.getUpperNumericBound();
+      if ( !Double.isInfinite( lower ) && !Double.isInfinite( upper ) && lower > -Double.MAX_VALUE
+          && upper < Double.MAX_VALUE && lower <= upper ) {
+        ranges[i] = new double[] { lower, upper };
+      }
+    }
+
+    if ( model.isBatchPredictor() ) {
+      batchSize = Math.max( 1, Math.min( batchSize, numRows ) );
+      List<Object[]> batch = new ArrayList<Object[]>( batchSize );
+      for ( int i = 0; i < numRows; i++ ) {
+        batch.add( generateSyntheticRow( inputMeta, header, ranges, rand ) );
+        if ( batch.size() == batchSize || i == numRows - 1 ) {
+          generatePredictions( inputMeta, outputMeta, batch, meta );
+          batch.clear();
         }
+      }
+    } else {
+      for ( int i = 0; i < numRows; i++ ) {
+        generatePrediction( inputMeta, outputMeta, generateSyntheticRow( inputMeta, header, ranges, rand ), meta,
+            false );
+      }
+    }
+  }
+
+  /**
+   * Generates a synthetic incoming row. Only fields that are mapped to
+   * attributes in the model are given values; values are of the type of the
+   * incoming field.
+   *
+   * @param inputMeta the meta data for the incoming rows
+   * @param header    the header of the model
+   * @param ranges    min and max for each numeric attribute (null if unknown)
+   * @param rand      the random number generator to use
+   * @return a synthetic row
+   */
+  private Object[] generateSyntheticRow( RowMetaInterface inputMeta, Instances header, double[][] ranges,
+      Random rand ) {
+    Object[] row = RowDataUtil.allocateRowData( inputMeta.size() );
+
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      int field = m_mapping.getFieldIndex( i );
+      if ( field < 0 ) {
+        continue;
+      }
+
+      Attribute temp = header.attribute( i );
+      double value;
+      if ( temp.isNominal() ) {
+        value = ( temp.numValues() > 0 ) ? rand.nextInt( temp.numValues() ) : 0;
+      } else if ( ranges[i] != null ) {
+        value = ranges[i][0] + rand.nextDouble() * ( ranges[i][1] - ranges[i][0] );
       } else {
-        // set to missing value
-        m_vals[i] = Utils.missingValue();
+        value = rand.nextGaussian();
+      }
+
+      switch ( inputMeta.getValueMeta( field ).getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          if ( temp.isNominal() && temp.numValues() > 0 ) {
+            row[field] = temp.value( (int) value );
+          } else if ( temp.isNumeric() ) {
+            row[field] = Double.toString( value );
+          } else {
+            row[field] = "warm-up " + rand.nextInt( 100 ); //$NON-NLS-1$
+          }
+          break;
+        case ValueMetaInterface.TYPE_NUMBER:
+          row[field] = new Double( value );
+          break;
+        case ValueMetaInterface.TYPE_INTEGER:
+          row[field] = new Long( Math.round( value ) );
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          row[field] = Boolean.valueOf( rand.nextBoolean() );
+          break;
+        default:
+          // leave as missing
       }
     }
 
-    Instance newInst = new DenseInstance( 1.0, m_vals );
-    newInst.setDataset( header );
-    return newInst;
+    return row;
+  }
+
+  /**
+   * Helper method that constructs an Instance to input to the Weka model based
+   * on incoming Kettle fields and pre-constructed attribute-to-field mapping
+   * data. Package-private so that it can be benchmarked.
+   *
+   * @param inputMeta   a <code>RowMetaInterface</code> value
+   * @param inputRow    an <code>Object</code> value
+   * @param mapping     a <code>ScoringMapping</code> value
+   * @param model       a <code>WekaScoringModel</code> value
+   * @param freshVector true if the instance must not share its values with
+   *                    previously constructed instances
+   * @return an <code>Instance</code> value
+   */
+  Instance constructInstance( RowMetaInterface inputMeta, Object[] inputRow, ScoringMapping mapping,
+      WekaScoringModel model, boolean freshVector ) {
+
+    // Re-use this array (unless told otherwise) to avoid an object creation
+    if ( m_vals == null || freshVector || m_vals.length != mapping.numAttributes() ) {
+      m_vals = new double[mapping.numAttributes()];
+    }
+
+    m_reader.m_meta = inputMeta;
+    m_reader.m_row = inputRow;
+    return mapping.toInstance( model.getHeader(), m_reader, m_vals );
+  }
+
+  /**
+   * Reads the values of incoming Kettle rows, converting them according to
+   * their value meta data
+   */
+  private static class KettleRowReader implements ScoringFieldReader {
+    RowMetaInterface m_meta;
+    Object[] m_row;
+
+    public boolean isNull( int field ) throws Exception {
+      // null or empty string
+      return m_meta.getValueMeta( field ).isNull( m_row[field] );
+    }
+
+    public double getNumber( int field ) throws Exception {
+      return m_meta.getValueMeta( field ).getNumber( m_row[field] ).doubleValue();
+    }
+
+    public long getInteger( int field ) throws Exception {
+      return m_meta.getValueMeta( field ).getInteger( m_row[field] ).longValue();
+    }
+
+    public boolean getBoolean( int field ) throws Exception {
+      return m_meta.getValueMeta( field ).getBoolean( m_row[field] ).booleanValue();
+    }
+
+    public String getString( int field ) throws Exception {
+      return m_meta.getValueMeta( field ).getString( m_row[field] );
+    }
   }
 }
@@ -13,8 +13,12 @@
 
 package org.pentaho.di.scoring;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.vfs2.FileObject;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
 import org.eclipse.swt.custom.CTabFolder;
 import org.eclipse.swt.custom.CTabItem;
 import org.eclipse.swt.events.ModifyEvent;
@@ -36,10 +40,13 @@ import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
+import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.Props;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.vfs.KettleVFS;
@@ -48,6 +55,9 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.ConditionEditor;
+import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
@@ -80,7 +90,7 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
    * The tabs of the dialog
    */
   private CTabFolder m_wTabFolder;
-  private CTabItem m_wFileTab, m_wFieldsTab, m_wModelTab;
+  private CTabItem m_wFileTab, m_wFieldsTab, m_wModelTab, m_wChallengersTab, m_wConditionTab, m_wRoutingTab;
 
   /**
    * label for the file name field
@@ -122,6 +132,12 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
    */
   private Button m_wCacheModelsCheckBox;
 
+  /**
+   * TextVar for the directory (or zip file) of models to load up front when
+   * model keys come from a field
+   */
+  private TextVar m_wModelDirectoryText;
+
   /**
    * label for the output probabilities check box
    */
@@ -182,6 +198,49 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
    */
   private TextVar m_batchScoringBatchSizeText;
 
+  /**
+   * TextVar for the number of synthetic rows to score before real rows
+   */
+  private TextVar m_warmUpIterationsText;
+
+  /**
+   * TextVar for the latency profiling sample interval
+   */
+  private TextVar m_profileSampleIntervalText;
+
+  /**
+   * TextVars for the first-stage model of a cascade and the confidence needed
+   * to accept its predictions
+   */
+  private TextVar m_cascadeModelFileText;
+  private TextVar m_cascadeThresholdText;
+
+  /**
+   * Check box for scoring identical rows in a batch only once
+   */
+  private Button m_deduplicateBatchesCheckBox;
+
+  /**
+   * Challenger models (name and model file) and whether to score them in
+   * parallel
+   */
+  private TableView m_challengersView;
+  private Button m_scoreChallengersInParallel;
+
+  /**
+   * The condition that rows must satisfy to be scored (a copy that is edited
+   * in place) and its editor
+   */
+  private Condition m_scoreCondition;
+  private ConditionEditor m_conditionEditor;
+
+  /**
+   * Routing rules (predicted label, minimum confidence and target step) and
+   * the default target step
+   */
+  private TableView m_routesView;
+  private CCombo m_defaultTargetStepCombo;
+
   // file extension stuff
 
   /**
@@ -458,6 +517,7 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
         }
 
         m_wCacheModelsCheckBox.setEnabled( m_wAcceptFileNameFromFieldCheckBox.getSelection() );
+        m_wModelDirectoryText.setEnabled( m_wAcceptFileNameFromFieldCheckBox.getSelection() );
         m_wAcceptFileNameFromFieldText.setEnabled( m_wAcceptFileNameFromFieldCheckBox.getSelection() );
         m_wbSaveFilename
             .setEnabled( !m_wAcceptFileNameFromFieldCheckBox.getSelection() && m_wUpdateModel.getSelection() );
@@ -505,20 +565,43 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
     m_wCacheModelsCheckBox.setLayoutData( fdCacheCheckBox );
     m_wCacheModelsCheckBox.setEnabled( false );
 
+    // model directory line
+    Label modelDirectoryLab = new Label( wFileComp, SWT.RIGHT );
+    modelDirectoryLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.ModelDirectory.Label" ) ); //$NON-NLS-1$
+    modelDirectoryLab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.ModelDirectory.TipText" ) ); //$NON-NLS-1$
+    props.setLook( modelDirectoryLab );
+    FormData fdModelDirectoryLab = new FormData();
+    fdModelDirectoryLab.left = new FormAttachment( 0, 0 );
+    fdModelDirectoryLab.top = new FormAttachment( m_wCacheModelsCheckBox, margin );
+    fdModelDirectoryLab.right = new FormAttachment( middle, -margin );
+    modelDirectoryLab.setLayoutData( fdModelDirectoryLab );
+
+    m_wModelDirectoryText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wModelDirectoryText );
+    m_wModelDirectoryText.addModifyListener( lsMod );
+    FormData fdModelDirectoryText = new FormData();
+    fdModelDirectoryText.left = new FormAttachment( middle, 0 );
+    fdModelDirectoryText.top = new FormAttachment( m_wCacheModelsCheckBox, margin );
+    fdModelDirectoryText.right = new FormAttachment( 100, 0 );
+    m_wModelDirectoryText.setLayoutData( fdModelDirectoryText );
+    m_wModelDirectoryText.setEnabled( false );
+
     m_wOutputProbsLab = new Label( wFileComp, SWT.RIGHT );
     m_wOutputProbsLab
         .setText( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.OutputProbs.Label" ) ); //$NON-NLS-1$
     props.setLook( m_wOutputProbsLab );
     m_fdlOutputProbs = new FormData();
     m_fdlOutputProbs.left = new FormAttachment( 0, 0 );
-    m_fdlOutputProbs.top = new FormAttachment( m_wCacheModelsCheckBox, margin );
+    m_fdlOutputProbs.top = new FormAttachment( m_wModelDirectoryText, margin );
     m_fdlOutputProbs.right = new FormAttachment( middle, -margin );
     m_wOutputProbsLab.setLayoutData( m_fdlOutputProbs );
     m_wOutputProbs = new Button( wFileComp, SWT.CHECK );
     props.setLook( m_wOutputProbs );
     m_fdOutputProbs = new FormData();
     m_fdOutputProbs.left = new FormAttachment( middle, 0 );
-    m_fdOutputProbs.top = new FormAttachment( m_wCacheModelsCheckBox, margin );
+    m_fdOutputProbs.top = new FormAttachment( m_wModelDirectoryText, margin );
     m_fdOutputProbs.right = new FormAttachment( 100, 0 );
     m_wOutputProbs.setLayoutData( m_fdOutputProbs );
 
@@ -542,6 +625,118 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
     m_batchScoringBatchSizeText.setLayoutData( fdd );
     m_batchScoringBatchSizeText.setEnabled( false );
 
+    // warm-up line
+    Label warmUpLab = new Label( wFileComp, SWT.RIGHT );
+    warmUpLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.WarmUpIterations.Label" ) ); //$NON-NLS-1$
+    props.setLook( warmUpLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_batchScoringBatchSizeText, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    warmUpLab.setLayoutData( fdd );
+
+    m_warmUpIterationsText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_warmUpIterationsText );
+    m_warmUpIterationsText.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( m_batchScoringBatchSizeText, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_warmUpIterationsText.setLayoutData( fdd );
+
+    // latency profiling line
+    Label profileLab = new Label( wFileComp, SWT.RIGHT );
+    profileLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.ProfileSampleInterval.Label" ) ); //$NON-NLS-1$
+    profileLab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.ProfileSampleInterval.TipText" ) ); //$NON-NLS-1$
+    props.setLook( profileLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_warmUpIterationsText, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    profileLab.setLayoutData( fdd );
+
+    m_profileSampleIntervalText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_profileSampleIntervalText );
+    m_profileSampleIntervalText.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( m_warmUpIterationsText, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_profileSampleIntervalText.setLayoutData( fdd );
+
+    // cascade first-stage model line
+    Label cascadeModelLab = new Label( wFileComp, SWT.RIGHT );
+    cascadeModelLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.CascadeModel.Label" ) ); //$NON-NLS-1$
+    cascadeModelLab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.CascadeModel.TipText" ) ); //$NON-NLS-1$
+    props.setLook( cascadeModelLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_profileSampleIntervalText, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    cascadeModelLab.setLayoutData( fdd );
+
+    m_cascadeModelFileText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_cascadeModelFileText );
+    m_cascadeModelFileText.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( m_profileSampleIntervalText, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_cascadeModelFileText.setLayoutData( fdd );
+
+    // cascade threshold line
+    Label cascadeThresholdLab = new Label( wFileComp, SWT.RIGHT );
+    cascadeThresholdLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.CascadeThreshold.Label" ) ); //$NON-NLS-1$
+    cascadeThresholdLab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.CascadeThreshold.TipText" ) ); //$NON-NLS-1$
+    props.setLook( cascadeThresholdLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_cascadeModelFileText, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    cascadeThresholdLab.setLayoutData( fdd );
+
+    m_cascadeThresholdText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_cascadeThresholdText );
+    m_cascadeThresholdText.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( m_cascadeModelFileText, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_cascadeThresholdText.setLayoutData( fdd );
+
+    // batch deduplication line
+    Label dedupLab = new Label( wFileComp, SWT.RIGHT );
+    dedupLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.DeduplicateBatches.Label" ) ); //$NON-NLS-1$
+    dedupLab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.DeduplicateBatches.TipText" ) ); //$NON-NLS-1$
+    props.setLook( dedupLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_cascadeThresholdText, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    dedupLab.setLayoutData( fdd );
+
+    m_deduplicateBatchesCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_deduplicateBatchesCheckBox );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( m_cascadeThresholdText, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_deduplicateBatchesCheckBox.setLayoutData( fdd );
+    m_deduplicateBatchesCheckBox.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent e ) {
+        m_currentMeta.setChanged();
+      }
+    } );
+
     // Fields mapping tab
     m_wFieldsTab = new CTabItem( m_wTabFolder, SWT.NONE );
     m_wFieldsTab
@@ -621,6 +816,187 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
     wModelComp.layout();
     m_wModelTab.setControl( wModelComp );
 
+    // Challengers tab
+    m_wChallengersTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wChallengersTab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.ChallengersTab.TabTitle" ) ); //$NON-NLS-1$
+    m_wChallengersTab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Challengers.TipText" ) ); //$NON-NLS-1$
+
+    FormLayout challengersLayout = new FormLayout();
+    challengersLayout.marginWidth = 3;
+    challengersLayout.marginHeight = 3;
+
+    Composite wChallengersComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wChallengersComp );
+    wChallengersComp.setLayout( challengersLayout );
+
+    Label parallelLab = new Label( wChallengersComp, SWT.RIGHT );
+    parallelLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Challengers.Parallel.Label" ) ); //$NON-NLS-1$
+    props.setLook( parallelLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( 0, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    parallelLab.setLayoutData( fdd );
+
+    m_scoreChallengersInParallel = new Button( wChallengersComp, SWT.CHECK );
+    props.setLook( m_scoreChallengersInParallel );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( 0, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_scoreChallengersInParallel.setLayoutData( fdd );
+
+    ColumnInfo[] challengerCols = new ColumnInfo[] {
+      new ColumnInfo( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Challengers.Name" ), //$NON-NLS-1$
+          ColumnInfo.COLUMN_TYPE_TEXT, false ),
+      new ColumnInfo( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Challengers.ModelFile" ), //$NON-NLS-1$
+          ColumnInfo.COLUMN_TYPE_TEXT, false ) };
+    challengerCols[1].setUsingVariables( true );
+
+    m_challengersView =
+        new TableView( transMeta, wChallengersComp, SWT.FULL_SELECTION | SWT.MULTI, challengerCols, 1, lsMod, props );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_scoreChallengersInParallel, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    fdd.bottom = new FormAttachment( 100, 0 );
+    m_challengersView.setLayoutData( fdd );
+
+    FormData fdChallengersComp = new FormData();
+    fdChallengersComp.left = new FormAttachment( 0, 0 );
+    fdChallengersComp.top = new FormAttachment( 0, 0 );
+    fdChallengersComp.right = new FormAttachment( 100, 0 );
+    fdChallengersComp.bottom = new FormAttachment( 100, 0 );
+    wChallengersComp.setLayoutData( fdChallengersComp );
+
+    wChallengersComp.layout();
+    m_wChallengersTab.setControl( wChallengersComp );
+
+    // Score condition tab
+    m_wConditionTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wConditionTab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.ConditionTab.TabTitle" ) ); //$NON-NLS-1$
+    m_wConditionTab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Condition.TipText" ) ); //$NON-NLS-1$
+
+    FormLayout conditionLayout = new FormLayout();
+    conditionLayout.marginWidth = 3;
+    conditionLayout.marginHeight = 3;
+
+    Composite wConditionComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wConditionComp );
+    wConditionComp.setLayout( conditionLayout );
+
+    Label conditionLab = new Label( wConditionComp, SWT.NONE );
+    conditionLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Condition.Label" ) ); //$NON-NLS-1$
+    props.setLook( conditionLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( 0, margin );
+    conditionLab.setLayoutData( fdd );
+
+    RowMetaInterface inputFields;
+    try {
+      inputFields = transMeta.getPrevStepFields( stepname );
+    } catch ( KettleException ex ) {
+      inputFields = new RowMeta();
+    }
+    m_scoreCondition =
+        ( m_currentMeta.getScoreCondition() == null ) ? new Condition()
+            : (Condition) m_currentMeta.getScoreCondition().clone();
+    m_conditionEditor = new ConditionEditor( wConditionComp, SWT.BORDER, m_scoreCondition, inputFields );
+    m_conditionEditor.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( conditionLab, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    fdd.bottom = new FormAttachment( 100, 0 );
+    m_conditionEditor.setLayoutData( fdd );
+
+    FormData fdConditionComp = new FormData();
+    fdConditionComp.left = new FormAttachment( 0, 0 );
+    fdConditionComp.top = new FormAttachment( 0, 0 );
+    fdConditionComp.right = new FormAttachment( 100, 0 );
+    fdConditionComp.bottom = new FormAttachment( 100, 0 );
+    wConditionComp.setLayoutData( fdConditionComp );
+
+    wConditionComp.layout();
+    m_wConditionTab.setControl( wConditionComp );
+
+    // Routing tab
+    m_wRoutingTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wRoutingTab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.RoutingTab.TabTitle" ) ); //$NON-NLS-1$
+    m_wRoutingTab.setToolTipText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Routing.TipText" ) ); //$NON-NLS-1$
+
+    FormLayout routingLayout = new FormLayout();
+    routingLayout.marginWidth = 3;
+    routingLayout.marginHeight = 3;
+
+    Composite wRoutingComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wRoutingComp );
+    wRoutingComp.setLayout( routingLayout );
+
+    String[] nextSteps = new String[0];
+    StepMeta thisStep = transMeta.findStep( stepname );
+    if ( thisStep != null ) {
+      nextSteps = transMeta.getNextStepNames( thisStep );
+    }
+
+    Label defaultTargetLab = new Label( wRoutingComp, SWT.RIGHT );
+    defaultTargetLab.setText(
+        BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Routing.DefaultTarget.Label" ) ); //$NON-NLS-1$
+    props.setLook( defaultTargetLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( 0, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    defaultTargetLab.setLayoutData( fdd );
+
+    m_defaultTargetStepCombo = new CCombo( wRoutingComp, SWT.BORDER );
+    m_defaultTargetStepCombo.setItems( nextSteps );
+    props.setLook( m_defaultTargetStepCombo );
+    m_defaultTargetStepCombo.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( 0, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_defaultTargetStepCombo.setLayoutData( fdd );
+
+    ColumnInfo[] routeCols = new ColumnInfo[] {
+      new ColumnInfo( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Routing.Label" ), //$NON-NLS-1$
+          ColumnInfo.COLUMN_TYPE_TEXT, false ),
+      new ColumnInfo( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Routing.MinConfidence" ), //$NON-NLS-1$
+          ColumnInfo.COLUMN_TYPE_TEXT, false ),
+      new ColumnInfo( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Routing.TargetStep" ), //$NON-NLS-1$
+          ColumnInfo.COLUMN_TYPE_CCOMBO, nextSteps, false ) };
+    routeCols[0].setUsingVariables( true );
+    routeCols[1].setUsingVariables( true );
+
+    m_routesView =
+        new TableView( transMeta, wRoutingComp, SWT.FULL_SELECTION | SWT.MULTI, routeCols, 1, lsMod, props );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_defaultTargetStepCombo, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    fdd.bottom = new FormAttachment( 100, 0 );
+    m_routesView.setLayoutData( fdd );
+
+    FormData fdRoutingComp = new FormData();
+    fdRoutingComp.left = new FormAttachment( 0, 0 );
+    fdRoutingComp.top = new FormAttachment( 0, 0 );
+    fdRoutingComp.right = new FormAttachment( 100, 0 );
+    fdRoutingComp.bottom = new FormAttachment( 100, 0 );
+    wRoutingComp.setLayoutData( fdRoutingComp );
+
+    wRoutingComp.layout();
+    m_wRoutingTab.setControl( wRoutingComp );
+
     m_fdTabFolder = new FormData();
     m_fdTabFolder.left = new FormAttachment( 0, 0 );
     m_fdTabFolder.top = new FormAttachment( m_wStepname, margin );
@@ -992,6 +1368,10 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
       m_wAcceptFileNameFromFieldText.setEnabled( true );
 
       m_wCacheModelsCheckBox.setSelection( m_currentMeta.getCacheLoadedModels() );
+      m_wModelDirectoryText.setEnabled( true );
+      if ( !Const.isEmpty( m_currentMeta.getModelDirectory() ) ) {
+        m_wModelDirectoryText.setText( m_currentMeta.getModelDirectory() );
+      }
       m_wlFilename
           .setText( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoringDialog.Default.Label" ) ); //$NON-NLS-1$
     }
@@ -1016,8 +1396,46 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
       m_batchScoringBatchSizeText.setText( m_currentMeta.getBatchScoringSize() );
     }
 
+    if ( !Const.isEmpty( m_currentMeta.getWarmUpIterations() ) ) {
+      m_warmUpIterationsText.setText( m_currentMeta.getWarmUpIterations() );
+    }
+
+    if ( !Const.isEmpty( m_currentMeta.getProfileSampleInterval() ) ) {
+      m_profileSampleIntervalText.setText( m_currentMeta.getProfileSampleInterval() );
+    }
+    if ( !Const.isEmpty( m_currentMeta.getCascadeModelFileName() ) ) {
+      m_cascadeModelFileText.setText( m_currentMeta.getCascadeModelFileName() );
+    }
+    if ( !Const.isEmpty( m_currentMeta.getCascadeThreshold() ) ) {
+      m_cascadeThresholdText.setText( m_currentMeta.getCascadeThreshold() );
+    }
+    m_deduplicateBatchesCheckBox.setSelection( m_currentMeta.getDeduplicateBatches() );
+
     m_storeModelInStepMetaData.setSelection( m_currentMeta.getStoreModelInStepMetaData() );
 
+    m_scoreChallengersInParallel.setSelection( m_currentMeta.getScoreChallengersInParallel() );
+    String[] challengerNames = m_currentMeta.getChallengerNames();
+    String[] challengerFiles = m_currentMeta.getChallengerModelFileNames();
+    m_challengersView.clearAll( false );
+    for ( int i = 0; i < Math.min( challengerNames.length, challengerFiles.length ); i++ ) {
+      m_challengersView.add( new String[] { Const.NVL( challengerNames[i], "" ), //$NON-NLS-1$
+        Const.NVL( challengerFiles[i], "" ) } ); //$NON-NLS-1$
+    }
+    m_challengersView.removeEmptyRows();
+    m_challengersView.setRowNums();
+    m_challengersView.optWidth( true );
+
+    m_defaultTargetStepCombo.setText( Const.NVL( m_currentMeta.getDefaultTargetStepName(), "" ) ); //$NON-NLS-1$
+    m_routesView.clearAll( false );
+    for ( int i = 0; i < m_currentMeta.getNumRoutes(); i++ ) {
+      m_routesView.add( new String[] { Const.NVL( m_currentMeta.getRouteLabels()[i], "" ), //$NON-NLS-1$
+        Const.NVL( m_currentMeta.getRouteMinConfidences()[i], "" ), //$NON-NLS-1$
+        Const.NVL( m_currentMeta.getRouteTargetStepNames()[i], "" ) } ); //$NON-NLS-1$
+    }
+    m_routesView.removeEmptyRows();
+    m_routesView.setRowNums();
+    m_routesView.optWidth( true );
+
     // Grab model if it is available (and we are not reading model file
     // names from a field in the incoming data
     WekaScoringModel
@@ -1152,6 +1570,7 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
       m_currentMeta.setFieldNameToLoadModelFrom( m_wAcceptFileNameFromFieldText.getText() );
     }
     m_currentMeta.setCacheLoadedModels( m_wCacheModelsCheckBox.getSelection() );
+    m_currentMeta.setModelDirectory( m_wModelDirectoryText.getText() );
 
     m_currentMeta.setOutputProbabilities( m_wOutputProbs.getSelection() );
     m_currentMeta.setUpdateIncrementalModel( m_wUpdateModel.getSelection() );
@@ -1168,6 +1587,43 @@ public class WekaScoringDialog extends BaseStepDialog implements StepDialogInter
     if ( !Const.isEmpty( m_batchScoringBatchSizeText.getText() ) ) {
       m_currentMeta.setBatchScoringSize( m_batchScoringBatchSizeText.getText() );
     }
+    m_currentMeta.setWarmUpIterations( m_warmUpIterationsText.getText() );
+    m_currentMeta.setProfileSampleInterval( m_profileSampleIntervalText.getText() );
+    m_currentMeta.setCascadeModelFileName( m_cascadeModelFileText.getText() );
+    m_currentMeta.setCascadeThreshold( m_cascadeThresholdText.getText() );
+    m_currentMeta.setDeduplicateBatches( m_deduplicateBatchesCheckBox.getSelection() );
+    m_currentMeta.setScoreCondition( m_scoreCondition );
+
+    m_currentMeta.setScoreChallengersInParallel( m_scoreChallengersInParallel.getSelection() );
+    int numChallengers = m_challengersView.nrNonEmpty();
+    String[] challengerNames = new String[numChallengers];
+    String[] challengerFiles = new String[numChallengers];
+    for ( int i = 0; i < numChallengers; i++ ) {
+      challengerNames[i] = m_challengersView.getNonEmpty( i ).getText( 1 );
+      challengerFiles[i] = m_challengersView.getNonEmpty( i ).getText( 2 );
+    }
+    m_currentMeta.setChallengerNames( challengerNames );
+    m_currentMeta.setChallengerModelFileNames( challengerFiles );
+
+    // rules without a target step are dropped
+    List<String[]> routes = new ArrayList<String[]>();
+    for ( int i = 0; i < m_routesView.nrNonEmpty(); i++ ) {
+      TableItem item = m_routesView.getNonEmpty( i );
+      if ( !Const.isEmpty( item.getText( 3 ) ) ) {
+        routes.add( new String[] { item.getText( 1 ), item.getText( 2 ), item.getText( 3 ) } );
+      }
+    }
+    String[] routeLabels = new String[routes.size()];
+    String[] routeMinConfidences = new String[routes.size()];
+    String[] routeTargets = new String[routes.size()];
+    for ( int i = 0; i < routes.size(); i++ ) {
+      routeLabels[i] = routes.get( i )[0];
+      routeMinConfidences[i] = routes.get( i )[1];
+      routeTargets[i] = routes.get( i )[2];
+    }
+    m_currentMeta.setRoutes( routeLabels, routeMinConfidences, routeTargets );
+    m_currentMeta.setDefaultTargetStepName( m_defaultTargetStepCombo.getText() );
+    m_currentMeta.searchInfoAndTargetSteps( transMeta.getSteps() );
 
     if ( !m_originalMeta.equals( m_currentMeta ) ) {
       m_currentMeta.setChanged();
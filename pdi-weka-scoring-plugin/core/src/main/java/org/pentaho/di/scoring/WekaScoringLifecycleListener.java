@@ -22,7 +22,9 @@ public class WekaScoringLifecycleListener implements KettleLifecycleListener {
 
   @Override public void onEnvironmentInit() throws LifecycleException {
     System.setProperty( "weka.core.logging.Logger", "weka.core.logging.ConsoleLogger" );
-    weka.core.WekaPackageManager.loadPackages( false );
+
+    // installed Weka packages are no longer loaded here. WekaPackageLoader
+    // loads them when (and if) a model needs them
   }
 
   @Override public void onEnvironmentShutdown() {
@@ -13,17 +13,18 @@
 
 package org.pentaho.di.scoring;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.pentaho.di.core.CheckResult;
 import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.Counter;
 import org.pentaho.di.core.annotations.Step;
@@ -31,6 +32,7 @@ import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
@@ -40,14 +42,19 @@ import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
-import org.pentaho.di.repository.kdr.KettleDatabaseRepository;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepIOMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface.StreamType;
 import org.w3c.dom.Node;
 
 import weka.core.Instances;
@@ -65,6 +72,22 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
   public static final String XML_TAG = "weka_scoring"; //$NON-NLS-1$
 
+  /**
+   * Tag for a model embedded in the step meta data. Its content has always
+   * been GZIP compressed, Base64 encoded Java serialization (see
+   * XMLHandler.addTagValue(String, byte[])), so models written by this
+   * version can still be read by earlier ones
+   */
+  public static final String MODEL_TAG = "weka_scoring_model"; //$NON-NLS-1$
+
+  /**
+   * Repository attributes holding the number of chunks that a model has been
+   * split into (the chunks themselves are stored under MODEL_TAG) and the hash
+   * of its content
+   */
+  public static final String MODEL_CHUNKS_ATT = "weka_scoring_model_chunks"; //$NON-NLS-1$
+  public static final String MODEL_HASH_ATT = "weka_scoring_model_hash"; //$NON-NLS-1$
+
   /**
    * Use a model file specified in an incoming field
    */
@@ -81,6 +104,13 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   private String m_fieldNameToLoadModelFrom;
 
+  /**
+   * Directory (or zip file) of models to load up front when model names are
+   * sourced from a field. The field then holds the key of the model (its file
+   * name without extension) rather than a path
+   */
+  private String m_modelDirectory;
+
   /**
    * File name of the serialized Weka model to load/import
    */
@@ -119,12 +149,136 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
   // can determine the full output structure.
   private WekaScoringModel m_defaultModel;
 
+  /**
+   * Encoded form of the model embedded in the step meta data (XML or
+   * repository). De-serialization is deferred until the model is actually
+   * needed, so that opening/listing a transformation with a large embedded
+   * model stays cheap. The encoded form is kept after de-serialization (until
+   * the model is replaced) so that an unchanged model does not have to be
+   * serialized again every time the step is saved.
+   */
+  private EncodedModel m_encodedModel;
+
+  /**
+   * True if the encoded model is the default model (i.e. model file names were
+   * being sourced from a field when the model was embedded)
+   */
+  private boolean m_encodedModelIsDefault;
+
   /**
    * Batch scoring size
    */
   public static final int DEFAULT_BATCH_SCORING_SIZE = 100;
   private String m_batchScoringSize = ""; //$NON-NLS-1$
 
+  /**
+   * Number of synthetic rows to score (to warm up the JIT) before the first
+   * real row. Empty or zero means no warm-up
+   */
+  private String m_warmUpIterations = ""; //$NON-NLS-1$
+
+  /**
+   * Time roughly one in this many rows (split into instance construction,
+   * model evaluation and output building) and log a latency profile when the
+   * step finishes. Empty or zero means no profiling
+   */
+  private String m_profileSampleInterval = ""; //$NON-NLS-1$
+
+  /**
+   * Score each distinct row of a batch only once, sharing the prediction
+   * between identical rows. Has no effect on models with string attributes
+   */
+  private boolean m_deduplicateBatches;
+
+  /**
+   * Challenger models (names and model files) that are scored alongside the
+   * main (champion) model. Challengers must have been trained on data with the
+   * same format as the champion, since each row is converted into an Instance
+   * only once. Their predictions are output in fields prefixed with their name
+   */
+  private String[] m_challengerNames = new String[0];
+  private String[] m_challengerModelFileNames = new String[0];
+
+  /**
+   * Whether to score the challengers in parallel with the champion
+   */
+  private boolean m_scoreChallengersInParallel;
+
+  /**
+   * Name of the field that records which stage of a cascade made the
+   * prediction (1 for the first-stage model, 2 for the main model)
+   */
+  public static final String CASCADE_STAGE_FIELD = "cascade_stage"; //$NON-NLS-1$
+
+  /**
+   * Default probability below which the first stage of a cascade passes rows
+   * on to the main model
+   */
+  public static final double DEFAULT_CASCADE_THRESHOLD = 0.9;
+
+  /**
+   * Model file for a fast first-stage model that scores every row before the
+   * main model (empty for no cascade), and the probability (may contain
+   * variables) below which its predictions are passed on to the main model
+   */
+  private String m_cascadeModelFileName = ""; //$NON-NLS-1$
+  private String m_cascadeThreshold = ""; //$NON-NLS-1$
+
+  /**
+   * Only rows that satisfy this condition are scored (an empty condition
+   * scores every row). Other rows pass through with empty prediction fields
+   */
+  private Condition m_scoreCondition = new Condition();
+
+  /**
+   * Routing rules. A scored row is sent to the target step of the first rule
+   * whose predicted label (empty matches any label) and minimum confidence
+   * (empty for no minimum, may contain variables) it satisfies. Rows that
+   * match no rule go to the default target step. Routing is off if there are
+   * no rules and no default target step
+   */
+  private String[] m_routeLabels = new String[0];
+  private String[] m_routeMinConfidences = new String[0];
+  private String[] m_routeTargetStepNames = new String[0];
+  private String m_defaultTargetStepName = ""; //$NON-NLS-1$
+
+  /**
+   * The maximum number of model headers held in the header cache
+   */
+  public static final int MAX_CACHED_MODEL_HEADERS = 64;
+
+  /**
+   * Cache of model headers, keyed by resolved model file path. Used by
+   * getFields() so that the output fields can be determined without having to
+   * deserialize the full model every time the step is asked (which happens
+   * frequently in Spoon and when preparing a transformation for execution).
+   * Shared between all instances since Spoon clones step meta data liberally.
+   * Holds at most MAX_CACHED_MODEL_HEADERS entries; the least recently used
+   * one is dropped to make room for a new one.
+   */
+  private static final Map<String, CachedModelHeader> s_modelHeaderCache =
+      Collections.synchronizedMap( new LinkedHashMap<String, CachedModelHeader>( 16, 0.75f, true ) {
+        private static final long serialVersionUID = 5387924401826386347L;
+
+        @Override protected boolean removeEldestEntry( Map.Entry<String, CachedModelHeader> eldest ) {
+          return size() > MAX_CACHED_MODEL_HEADERS;
+        }
+      } );
+
+  /**
+   * A cached model header along with the modification time of the file that
+   * it was read from
+   */
+  private static class CachedModelHeader {
+    private final long m_lastModified;
+    private final WekaScoringModelHeader m_header;
+
+    CachedModelHeader( long lastModified, WekaScoringModelHeader header ) {
+      m_lastModified = lastModified;
+      m_header = header;
+    }
+  }
+
   public void setStoreModelInStepMetaData( boolean b ) {
     m_storeModelInStepMetaData = b;
   }
@@ -151,6 +305,279 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     return m_batchScoringSize;
   }
 
+  /**
+   * Set the number of synthetic rows to score before the first real row in
+   * order to warm up the scoring code path
+   *
+   * @param iterations the number of synthetic rows (may contain variables)
+   */
+  public void setWarmUpIterations( String iterations ) {
+    m_warmUpIterations = iterations;
+  }
+
+  /**
+   * Get the number of synthetic rows to score before the first real row in
+   * order to warm up the scoring code path
+   *
+   * @return the number of synthetic rows (may contain variables)
+   */
+  public String getWarmUpIterations() {
+    return m_warmUpIterations;
+  }
+
+  /**
+   * Set the interval (in rows) at which rows are sampled for latency
+   * profiling
+   *
+   * @param interval the sampling interval (may contain variables)
+   */
+  public void setProfileSampleInterval( String interval ) {
+    m_profileSampleInterval = interval;
+  }
+
+  /**
+   * Get the interval (in rows) at which rows are sampled for latency
+   * profiling
+   *
+   * @return the sampling interval (may contain variables)
+   */
+  public String getProfileSampleInterval() {
+    return m_profileSampleInterval;
+  }
+
+  /**
+   * Set whether to score identical rows in a batch only once
+   *
+   * @param dedup true to score identical rows only once
+   */
+  public void setDeduplicateBatches( boolean dedup ) {
+    m_deduplicateBatches = dedup;
+  }
+
+  /**
+   * Get whether to score identical rows in a batch only once
+   *
+   * @return true if identical rows are scored only once
+   */
+  public boolean getDeduplicateBatches() {
+    return m_deduplicateBatches;
+  }
+
+  /**
+   * Set the names of the challenger models. Predictions from a challenger are
+   * output in fields prefixed with its name
+   *
+   * @param names the names of the challengers
+   */
+  public void setChallengerNames( String[] names ) {
+    m_challengerNames = ( names == null ) ? new String[0] : names;
+  }
+
+  /**
+   * Get the names of the challenger models
+   *
+   * @return the names of the challengers
+   */
+  public String[] getChallengerNames() {
+    return m_challengerNames;
+  }
+
+  /**
+   * Set the model files (may contain variables) for the challenger models, in
+   * the same order as their names
+   *
+   * @param files the model files of the challengers
+   */
+  public void setChallengerModelFileNames( String[] files ) {
+    m_challengerModelFileNames = ( files == null ) ? new String[0] : files;
+  }
+
+  /**
+   * Get the model files for the challenger models
+   *
+   * @return the model files of the challengers
+   */
+  public String[] getChallengerModelFileNames() {
+    return m_challengerModelFileNames;
+  }
+
+  /**
+   * Get the number of challenger models. Challengers are not used when model
+   * file names are sourced from a field
+   *
+   * @return the number of challengers in use
+   */
+  public int getNumChallengers() {
+    return ( m_fileNameFromField ) ? 0 : Math.min( m_challengerNames.length, m_challengerModelFileNames.length );
+  }
+
+  /**
+   * Set the model file for the first stage of a cascade
+   *
+   * @param file the model file (may contain variables), empty for no cascade
+   */
+  public void setCascadeModelFileName( String file ) {
+    m_cascadeModelFileName = file;
+  }
+
+  /**
+   * Get the model file for the first stage of a cascade
+   *
+   * @return the model file (may contain variables), empty for no cascade
+   */
+  public String getCascadeModelFileName() {
+    return m_cascadeModelFileName;
+  }
+
+  /**
+   * Set the probability below which the first stage of a cascade passes rows
+   * on to the main model
+   *
+   * @param threshold the threshold (may contain variables)
+   */
+  public void setCascadeThreshold( String threshold ) {
+    m_cascadeThreshold = threshold;
+  }
+
+  /**
+   * Get the probability below which the first stage of a cascade passes rows
+   * on to the main model
+   *
+   * @return the threshold (may contain variables)
+   */
+  public String getCascadeThreshold() {
+    return m_cascadeThreshold;
+  }
+
+  /**
+   * Returns true if rows are scored by a cascade. Cascades are not used when
+   * model file names are sourced from a field
+   *
+   * @return true if there is a first-stage model
+   */
+  public boolean isCascade() {
+    return !m_fileNameFromField && !Const.isEmpty( m_cascadeModelFileName );
+  }
+
+  /**
+   * Set the condition that rows must satisfy in order to be scored
+   *
+   * @param condition the condition (empty to score every row)
+   */
+  public void setScoreCondition( Condition condition ) {
+    m_scoreCondition = condition;
+  }
+
+  /**
+   * Get the condition that rows must satisfy in order to be scored
+   *
+   * @return the condition (empty to score every row)
+   */
+  public Condition getScoreCondition() {
+    return m_scoreCondition;
+  }
+
+  /**
+   * Set the routing rules. The arrays are in rule order and must have the same
+   * length
+   *
+   * @param labels          the predicted label for each rule (empty for any)
+   * @param minConfidences  the minimum confidence for each rule (empty for no
+   *                        minimum)
+   * @param targetStepNames the step that rows matching each rule are sent to
+   */
+  public void setRoutes( String[] labels, String[] minConfidences, String[] targetStepNames ) {
+    m_routeLabels = ( labels == null ) ? new String[0] : labels;
+    m_routeMinConfidences = ( minConfidences == null ) ? new String[0] : minConfidences;
+    m_routeTargetStepNames = ( targetStepNames == null ) ? new String[0] : targetStepNames;
+
+    // the target streams are rebuilt from the new rules when next needed
+    setStepIOMeta( null );
+  }
+
+  /**
+   * Get the predicted label for each routing rule
+   *
+   * @return the labels (empty for any label)
+   */
+  public String[] getRouteLabels() {
+    return m_routeLabels;
+  }
+
+  /**
+   * Get the minimum confidence for each routing rule
+   *
+   * @return the minimum confidences (empty for no minimum)
+   */
+  public String[] getRouteMinConfidences() {
+    return m_routeMinConfidences;
+  }
+
+  /**
+   * Get the target step for each routing rule
+   *
+   * @return the names of the target steps
+   */
+  public String[] getRouteTargetStepNames() {
+    return m_routeTargetStepNames;
+  }
+
+  /**
+   * Get the number of routing rules
+   *
+   * @return the number of rules
+   */
+  public int getNumRoutes() {
+    return Math.min( m_routeLabels.length, Math.min( m_routeMinConfidences.length, m_routeTargetStepNames.length ) );
+  }
+
+  /**
+   * Set the step that rows matching no routing rule are sent to
+   *
+   * @param stepName the name of the step (empty for none)
+   */
+  public void setDefaultTargetStepName( String stepName ) {
+    m_defaultTargetStepName = ( stepName == null ) ? "" : stepName; //$NON-NLS-1$
+    setStepIOMeta( null );
+  }
+
+  /**
+   * Get the step that rows matching no routing rule are sent to
+   *
+   * @return the name of the step (empty for none)
+   */
+  public String getDefaultTargetStepName() {
+    return m_defaultTargetStepName;
+  }
+
+  /**
+   * Returns true if scored rows are routed to target steps rather than sent
+   * to every following step
+   *
+   * @return true if routing is configured
+   */
+  public boolean isRouting() {
+    return getNumRoutes() > 0 || !Const.isEmpty( m_defaultTargetStepName );
+  }
+
+  /**
+   * Set whether to score the challengers in parallel with the champion
+   *
+   * @param parallel true to score the challengers in parallel
+   */
+  public void setScoreChallengersInParallel( boolean parallel ) {
+    m_scoreChallengersInParallel = parallel;
+  }
+
+  /**
+   * Get whether to score the challengers in parallel with the champion
+   *
+   * @return true if the challengers are scored in parallel
+   */
+  public boolean getScoreChallengersInParallel() {
+    return m_scoreChallengersInParallel;
+  }
+
   /**
    * Creates a new <code>WekaScoringMeta</code> instance.
    */
@@ -214,6 +641,36 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     return m_fieldNameToLoadModelFrom;
   }
 
+  /**
+   * Set the directory (or zip file) of models to load up front when model
+   * names are sourced from a field
+   *
+   * @param dir the directory or zip file (may contain variables)
+   */
+  public void setModelDirectory( String dir ) {
+    m_modelDirectory = dir;
+  }
+
+  /**
+   * Get the directory (or zip file) of models to load up front when model
+   * names are sourced from a field
+   *
+   * @return the directory or zip file (may contain variables)
+   */
+  public String getModelDirectory() {
+    return m_modelDirectory;
+  }
+
+  /**
+   * Returns true if the field that model names are sourced from holds the
+   * keys of models loaded up front from a model directory
+   *
+   * @return true if models are looked up by key
+   */
+  public boolean isKeyedModels() {
+    return m_fileNameFromField && !Const.isEmpty( m_modelDirectory );
+  }
+
   /**
    * Set the file name of the serialized Weka model to load/import from
    *
@@ -259,6 +716,7 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
    *              Weka model (Classifier or Clusterer)
    */
   public void setModel( WekaScoringModel model ) {
+    clearEncodedModel( false );
     m_model = model;
   }
 
@@ -269,6 +727,7 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
    * model (Classifier or Clusterer)
    */
   public WekaScoringModel getModel() {
+    decodeModel( false );
     return m_model;
   }
 
@@ -280,6 +739,7 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
    * incoming data row.
    */
   public WekaScoringModel getDefaultModel() {
+    decodeModel( true );
     return m_defaultModel;
   }
 
@@ -290,9 +750,115 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
    * @param defaultM the default model to use.
    */
   public void setDefaultModel( WekaScoringModel defaultM ) {
+    clearEncodedModel( true );
     m_defaultModel = defaultM;
   }
 
+  /**
+   * De-serializes the embedded model (if there is one still pending). Step
+   * copies share the same meta data, so this is synchronized.
+   *
+   * @param isDefault true if it is the default model that is required
+   */
+  private synchronized void decodeModel( boolean isDefault ) {
+    if ( m_encodedModel == null || m_encodedModelIsDefault != isDefault
+        || ( isDefault ? m_defaultModel : m_model ) != null ) {
+      return;
+    }
+
+    try {
+      WekaScoringModel model = m_encodedModel.decode();
+      model.setLog( getLog() );
+
+      if ( isDefault ) {
+        m_defaultModel = model;
+      } else {
+        m_model = model;
+      }
+      logDetailed( BaseMessages.getString( PKG, "WekaScoringMeta.Log.DeserializationSuccess" ) ); //$NON-NLS-1$
+    } catch ( Exception ex ) {
+      logError( BaseMessages.getString( PKG, "WekaScoringMeta.Log.DeserializationProblem" ), ex ); //$NON-NLS-1$
+      clearEncodedModel( isDefault );
+    }
+  }
+
+  /**
+   * Discards the encoded form of a model that is being replaced
+   *
+   * @param isDefault true if it is the default model that is being replaced
+   */
+  private synchronized void clearEncodedModel( boolean isDefault ) {
+    if ( m_encodedModel == null || m_encodedModelIsDefault != isDefault ) {
+      return;
+    }
+    m_encodedModel = null;
+    m_encodedModelIsDefault = false;
+  }
+
+  /**
+   * Set an encoded model read from XML or a repository. The model itself will
+   * be de-serialized when first asked for.
+   *
+   * @param encoded   the encoded model
+   * @param isDefault true if it is the default model
+   */
+  private synchronized void setEncodedModel( EncodedModel encoded, boolean isDefault ) {
+    if ( isDefault ) {
+      m_defaultModel = null;
+    } else {
+      m_model = null;
+    }
+    m_encodedModel = encoded;
+    m_encodedModelIsDefault = isDefault;
+  }
+
+  /**
+   * Get the encoded form of the model or default model, encoding it (and
+   * keeping the result for next time) if necessary.
+   *
+   * @param isDefault      true if it is the default model that is required
+   * @param compressedOnly true if the legacy encoding is not acceptable
+   * @return the encoded model or null if there is no model
+   * @throws Exception if the model can't be encoded
+   */
+  private EncodedModel getEncodedModel( boolean isDefault, boolean compressedOnly ) throws Exception {
+    synchronized ( this ) {
+      if ( m_encodedModel != null && m_encodedModelIsDefault == isDefault
+          && ( m_encodedModel.isCompressed() || !compressedOnly ) ) {
+        return m_encodedModel;
+      }
+    }
+
+    WekaScoringModel model = ( isDefault ) ? getDefaultModel() : getModel();
+    if ( model == null ) {
+      return null;
+    }
+
+    String modType = ( isDefault ) ? "default" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+    logDebug( "Serializing " + modType + " model." ); //$NON-NLS-1$ //$NON-NLS-2$
+    EncodedModel encoded = EncodedModel.encode( model, EncodedModel.DEFAULT_CHUNK_SIZE );
+
+    synchronized ( this ) {
+      // only keep it if the model hasn't been replaced in the meantime
+      if ( model == ( ( isDefault ) ? m_defaultModel : m_model ) ) {
+        m_encodedModel = encoded;
+        m_encodedModelIsDefault = isDefault;
+      }
+    }
+
+    return encoded;
+  }
+
+  /**
+   * Returns true if the model embedded in the step meta data has not been
+   * de-serialized yet.
+   *
+   * @return true if there is an embedded model pending de-serialization
+   */
+  public synchronized boolean hasEncodedModel() {
+    return m_encodedModel != null && ( ( m_encodedModelIsDefault ) ? m_defaultModel : m_model ) == null;
+  }
+
   /**
    * Set whether to predict probabilities
    *
@@ -363,6 +929,9 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
             + " " //$NON-NLS-1$
             + m_fieldNameToLoadModelFrom );
       }
+      if ( !Const.isEmpty( m_modelDirectory ) ) {
+        retval.append( XMLHandler.addTagValue( "model_directory", m_modelDirectory ) ); //$NON-NLS-1$
+      }
     }
 
     if ( !Const.isEmpty( m_batchScoringSize ) ) {
@@ -370,34 +939,84 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
           m_batchScoringSize ) );
     }
 
-    retval.append( XMLHandler.addTagValue( "cache_loaded_models", //$NON-NLS-1$
-        m_cacheLoadedModels ) );
+    if ( !Const.isEmpty( m_warmUpIterations ) ) {
+      retval.append( XMLHandler.addTagValue( "warm_up_iterations", //$NON-NLS-1$
+          m_warmUpIterations ) );
+    }
+
+    if ( !Const.isEmpty( m_profileSampleInterval ) ) {
+      retval.append( XMLHandler.addTagValue( "profile_sample_interval", //$NON-NLS-1$
+          m_profileSampleInterval ) );
+    }
+
+    if ( m_deduplicateBatches ) {
+      retval.append( XMLHandler.addTagValue( "deduplicate_batches", m_deduplicateBatches ) ); //$NON-NLS-1$
+    }
+
+    if ( !Const.isEmpty( m_cascadeModelFileName ) ) {
+      retval.append( XMLHandler.addTagValue( "cascade_model_file_name", //$NON-NLS-1$
+          m_cascadeModelFileName ) );
+      retval.append( XMLHandler.addTagValue( "cascade_threshold", //$NON-NLS-1$
+          m_cascadeThreshold ) );
+    }
+
+    if ( m_scoreCondition != null && !m_scoreCondition.isEmpty() ) {
+      try {
+        retval.append( "<score_condition>" ).append( m_scoreCondition.getXML() ) //$NON-NLS-1$
+            .append( "</score_condition>" ); //$NON-NLS-1$
+      } catch ( Exception ex ) {
+        logError( BaseMessages.getString( PKG, "WekaScoringMeta.Log.ConditionXMLError" ), ex ); //$NON-NLS-1$
+      }
+    }
+
+    if ( isRouting() ) {
+      retval.append( "<routes>" ); //$NON-NLS-1$
+      for ( int i = 0; i < getNumRoutes(); i++ ) {
+        retval.append( "<route>" ); //$NON-NLS-1$
+        retval.append( XMLHandler.addTagValue( "label", m_routeLabels[i] ) ); //$NON-NLS-1$
+        retval.append( XMLHandler.addTagValue( "min_confidence", m_routeMinConfidences[i] ) ); //$NON-NLS-1$
+        retval.append( XMLHandler.addTagValue( "target_step", m_routeTargetStepNames[i] ) ); //$NON-NLS-1$
+        retval.append( "</route>" ); //$NON-NLS-1$
+      }
+      retval.append( "</routes>" ); //$NON-NLS-1$
+      retval.append( XMLHandler.addTagValue( "default_target_step", m_defaultTargetStepName ) ); //$NON-NLS-1$
+    }
 
-    WekaScoringModel temp = ( m_fileNameFromField ) ? m_defaultModel : m_model;
+    int numChallengers = Math.min( m_challengerNames.length, m_challengerModelFileNames.length );
+    if ( numChallengers > 0 ) {
+      retval.append( XMLHandler.addTagValue( "score_challengers_in_parallel", //$NON-NLS-1$
+          m_scoreChallengersInParallel ) );
+      retval.append( "<challengers>" ); //$NON-NLS-1$
+      for ( int i = 0; i < numChallengers; i++ ) {
+        retval.append( "<challenger>" ); //$NON-NLS-1$
+        retval.append( XMLHandler.addTagValue( "name", m_challengerNames[i] ) ); //$NON-NLS-1$
+        retval.append( XMLHandler.addTagValue( "model_file_name", m_challengerModelFileNames[i] ) ); //$NON-NLS-1$
+        retval.append( "</challenger>" ); //$NON-NLS-1$
+      }
+      retval.append( "</challengers>" ); //$NON-NLS-1$
+    }
 
-    // can we save the model as XML?
-    if ( temp != null && Const.isEmpty( m_modelFileName ) ) {
+    retval.append( XMLHandler.addTagValue( "cache_loaded_models", //$NON-NLS-1$
+        m_cacheLoadedModels ) );
 
+    // can we save the model as XML? If the embedded model is unchanged since
+    // it was read then it gets written straight back out again
+    EncodedModel encoded = null;
+    if ( Const.isEmpty( m_modelFileName ) ) {
       try {
-        // Convert model to base64 encoding
-        ByteArrayOutputStream bao = new ByteArrayOutputStream();
-        BufferedOutputStream bos = new BufferedOutputStream( bao );
-        ObjectOutputStream oo = new ObjectOutputStream( bos );
-        oo.writeObject( temp );
-        oo.flush();
-        byte[] model = bao.toByteArray();
-        String base64model = XMLHandler.addTagValue( "weka_scoring_model", model ); //$NON-NLS-1$
-        String modType = ( m_fileNameFromField ) ? "default" : ""; //$NON-NLS-1$ //$NON-NLS-2$
-        System.out.println( "Serializing " + modType + " model." ); //$NON-NLS-1$ //$NON-NLS-2$
-        System.out.println( BaseMessages.getString( PKG, "WekaScoringMeta.Log.SizeOfModel" ) + " " + base64model
-            .length() ); //$NON-NLS-1$ //$NON-NLS-2$
-
-        retval.append( base64model );
-        oo.close();
+        encoded = getEncodedModel( m_fileNameFromField, false );
       } catch ( Exception ex ) {
         System.out
             .println( BaseMessages.getString( PKG, "WekaScoringMeta.Log.Base64SerializationProblem" ) ); //$NON-NLS-1$
       }
+    }
+
+    if ( encoded != null ) {
+      String base64model = XMLHandler.addTagValue( MODEL_TAG, encoded.asString() );
+      System.out.println( BaseMessages.getString( PKG, "WekaScoringMeta.Log.SizeOfModel" ) + " " + base64model
+          .length() ); //$NON-NLS-1$ //$NON-NLS-2$
+
+      retval.append( base64model );
     } else {
       if ( !Const.isEmpty( m_modelFileName ) ) {
 
@@ -459,7 +1078,7 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     if ( m_model != null ) {
       try {
         SerializedObject so = new SerializedObject( m_model );
-        WekaScoringModel copy = (WekaScoringModel) so.getObject();
+        WekaScoringModel copy = WekaPackageLoader.deserialize( so );
         copy.setLog( getLog() );
         retval.setModel( copy );
       } catch ( Exception ex ) {
@@ -471,7 +1090,7 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     if ( m_defaultModel != null ) {
       try {
         SerializedObject so = new SerializedObject( m_defaultModel );
-        WekaScoringModel copy = (WekaScoringModel) so.getObject();
+        WekaScoringModel copy = WekaPackageLoader.deserialize( so );
         copy.setLog( getLog() );
         retval.setDefaultModel( copy );
       } catch ( Exception ex ) {
@@ -479,6 +1098,13 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
       }
     }
 
+    retval.setChallengerNames( m_challengerNames.clone() );
+    retval.setChallengerModelFileNames( m_challengerModelFileNames.clone() );
+    if ( m_scoreCondition != null ) {
+      retval.setScoreCondition( (Condition) m_scoreCondition.clone() );
+    }
+    retval.setRoutes( m_routeLabels.clone(), m_routeMinConfidences.clone(), m_routeTargetStepNames.clone() );
+
     return retval;
   }
 
@@ -509,9 +1135,47 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
       if ( m_fileNameFromField ) {
         m_fieldNameToLoadModelFrom = XMLHandler.getTagValue( wekanode, "field_name_to_load_from" ); //$NON-NLS-1$
+        m_modelDirectory = XMLHandler.getTagValue( wekanode, "model_directory" ); //$NON-NLS-1$
       }
 
       m_batchScoringSize = XMLHandler.getTagValue( wekanode, "batch_scoring_size" ); //$NON-NLS-1$
+      m_warmUpIterations = XMLHandler.getTagValue( wekanode, "warm_up_iterations" ); //$NON-NLS-1$
+      m_profileSampleInterval = XMLHandler.getTagValue( wekanode, "profile_sample_interval" ); //$NON-NLS-1$
+      m_deduplicateBatches =
+          "Y".equalsIgnoreCase( XMLHandler.getTagValue( wekanode, "deduplicate_batches" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+
+      m_cascadeModelFileName = XMLHandler.getTagValue( wekanode, "cascade_model_file_name" ); //$NON-NLS-1$
+      m_cascadeThreshold = XMLHandler.getTagValue( wekanode, "cascade_threshold" ); //$NON-NLS-1$
+
+      Node conditionNode = XMLHandler.getSubNode( XMLHandler.getSubNode( wekanode, "score_condition" ), //$NON-NLS-1$
+          Condition.XML_TAG );
+      m_scoreCondition = ( conditionNode == null ) ? new Condition() : new Condition( conditionNode );
+
+      Node routes = XMLHandler.getSubNode( wekanode, "routes" ); //$NON-NLS-1$
+      int numRoutes = ( routes == null ) ? 0 : XMLHandler.countNodes( routes, "route" ); //$NON-NLS-1$
+      String[] labels = new String[numRoutes];
+      String[] minConfidences = new String[numRoutes];
+      String[] targets = new String[numRoutes];
+      for ( int i = 0; i < numRoutes; i++ ) {
+        Node route = XMLHandler.getSubNodeByNr( routes, "route", i ); //$NON-NLS-1$
+        labels[i] = Const.NVL( XMLHandler.getTagValue( route, "label" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+        minConfidences[i] = Const.NVL( XMLHandler.getTagValue( route, "min_confidence" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+        targets[i] = XMLHandler.getTagValue( route, "target_step" ); //$NON-NLS-1$
+      }
+      setRoutes( labels, minConfidences, targets );
+      setDefaultTargetStepName( XMLHandler.getTagValue( wekanode, "default_target_step" ) ); //$NON-NLS-1$
+
+      m_scoreChallengersInParallel =
+          "Y".equalsIgnoreCase( XMLHandler.getTagValue( wekanode, "score_challengers_in_parallel" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+      Node challengers = XMLHandler.getSubNode( wekanode, "challengers" ); //$NON-NLS-1$
+      int numChallengers = ( challengers == null ) ? 0 : XMLHandler.countNodes( challengers, "challenger" ); //$NON-NLS-1$
+      m_challengerNames = new String[numChallengers];
+      m_challengerModelFileNames = new String[numChallengers];
+      for ( int i = 0; i < numChallengers; i++ ) {
+        Node challenger = XMLHandler.getSubNodeByNr( challengers, "challenger", i ); //$NON-NLS-1$
+        m_challengerNames[i] = XMLHandler.getTagValue( challenger, "name" ); //$NON-NLS-1$
+        m_challengerModelFileNames[i] = XMLHandler.getTagValue( challenger, "model_file_name" ); //$NON-NLS-1$
+      }
 
       String store = XMLHandler.getTagValue( wekanode, "store_model_in_meta" ); //$NON-NLS-1$
       if ( store != null ) {
@@ -525,20 +1189,15 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
         m_cacheLoadedModels = true;
       }
 
-      // try and get the XML-based model
+      // try and get the XML-based model. De-serialization is deferred until
+      // the model is actually needed
       boolean success = false;
-      try {
-        String base64modelXML = XMLHandler.getTagValue( wekanode, "weka_scoring_model" ); //$NON-NLS-1$
+      String base64modelXML = XMLHandler.getTagValue( wekanode, MODEL_TAG );
 
-        deSerializeBase64Model( base64modelXML );
+      if ( !Const.isEmpty( base64modelXML ) ) {
+        setEncodedModel( new EncodedModel( Collections.singletonList( base64modelXML ), true ),
+            m_fileNameFromField );
         success = true;
-
-        String modType = ( m_fileNameFromField ) ? "default" : ""; //$NON-NLS-1$ //$NON-NLS-2$
-        logBasic( "Deserializing " + modType + " model." ); //$NON-NLS-1$ //$NON-NLS-2$
-
-        logDetailed( BaseMessages.getString( PKG, "WekaScoringMeta.Log.DeserializationSuccess" ) ); //$NON-NLS-1$
-      } catch ( Exception ex ) {
-        success = false;
       }
 
       if ( !success ) {
@@ -596,19 +1255,75 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     }
   }
 
-  protected void deSerializeBase64Model( String base64modelXML ) throws Exception {
+  /**
+   * Get the header information for a model file. Returns a cached header if
+   * the file has not been modified since it was last read, otherwise loads the
+   * header and caches it.
+   *
+   * @param modelFile the path to the model file
+   * @param log       the log to use
+   * @param space     variables to use for substitution in the path
+   * @return a <code>WekaScoringModelHeader</code> describing the model
+   * @throws Exception if there is a problem loading the model
+   */
+  protected static WekaScoringModelHeader getModelHeader( String modelFile, LogChannelInterface log,
+      VariableSpace space ) throws Exception {
+    String resolvedName = space.environmentSubstitute( modelFile );
+    long lastModified = WekaScoringData.modelFileLastModified( resolvedName, space );
+    if ( lastModified < 0 ) {
+      // can't tell if the file has changed, so don't cache
+      return WekaScoringData.loadModelHeader( resolvedName, log, space );
+    }
+
+    CachedModelHeader cached = s_modelHeaderCache.get( resolvedName );
+    if ( cached != null && cached.m_lastModified == lastModified ) {
+      return cached.m_header;
+    }
+    if ( cached != null ) {
+      // stale - don't hang on to it if the file can no longer be loaded
+      s_modelHeaderCache.remove( resolvedName );
+    }
+
+    WekaScoringModelHeader header = WekaScoringData.loadModelHeader( resolvedName, log, space );
+    s_modelHeaderCache.put( resolvedName, new CachedModelHeader( lastModified, header ) );
+
+    return header;
+  }
+
+  /**
+   * Seed the header cache with a model that has already been loaded from the
+   * supplied file, so that a subsequent call to getFields() does not have to
+   * read the file again.
+   *
+   * @param modelFile the path that the model was loaded from
+   * @param space     variables to use for substitution in the path
+   * @param model     the loaded model
+   * @throws Exception if a problem occurs
+   */
+  protected static void cacheModelHeader( String modelFile, VariableSpace space, WekaScoringModel model )
+      throws Exception {
+    String resolvedName = space.environmentSubstitute( modelFile );
+    long lastModified = WekaScoringData.modelFileLastModified( resolvedName, space );
+    if ( lastModified < 0 ) {
+      return;
+    }
+
+    s_modelHeaderCache.put( resolvedName,
+        new CachedModelHeader( lastModified, WekaScoringModelHeader.createHeader( model ) ) );
+  }
+
+  protected static WekaScoringModel deSerializeBase64Model( String base64modelXML ) throws Exception {
     byte[] model = XMLHandler.stringToBinary( base64modelXML );
 
     // now de-serialize
     ByteArrayInputStream bis = new ByteArrayInputStream( model );
     ObjectInputStream ois = new ObjectInputStream( bis );
 
-    if ( m_fileNameFromField ) {
-      m_defaultModel = (WekaScoringModel) ois.readObject();
-    } else {
-      m_model = (WekaScoringModel) ois.readObject();
+    try {
+      return (WekaScoringModel) ois.readObject();
+    } finally {
+      ois.close();
     }
-    ois.close();
   }
 
   /**
@@ -623,9 +1338,43 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     m_fileNameFromField = rep.getStepAttributeBoolean( id_step, 0, "file_name_from_field" ); //$NON-NLS-1$
 
     m_batchScoringSize = rep.getStepAttributeString( id_step, 0, "batch_scoring_size" ); //$NON-NLS-1$
+    m_warmUpIterations = rep.getStepAttributeString( id_step, 0, "warm_up_iterations" ); //$NON-NLS-1$
+    m_profileSampleInterval = rep.getStepAttributeString( id_step, 0, "profile_sample_interval" ); //$NON-NLS-1$
+    m_deduplicateBatches = rep.getStepAttributeBoolean( id_step, 0, "deduplicate_batches" ); //$NON-NLS-1$
+
+    m_cascadeModelFileName = rep.getStepAttributeString( id_step, 0, "cascade_model_file_name" ); //$NON-NLS-1$
+    m_cascadeThreshold = rep.getStepAttributeString( id_step, 0, "cascade_threshold" ); //$NON-NLS-1$
+
+    m_scoreCondition = rep.loadConditionFromStepAttribute( id_step, "id_score_condition" ); //$NON-NLS-1$
+    if ( m_scoreCondition == null ) {
+      m_scoreCondition = new Condition();
+    }
+
+    int numRoutes = rep.countNrStepAttributes( id_step, "route_target_step" ); //$NON-NLS-1$
+    String[] labels = new String[numRoutes];
+    String[] minConfidences = new String[numRoutes];
+    String[] targets = new String[numRoutes];
+    for ( int i = 0; i < numRoutes; i++ ) {
+      labels[i] = Const.NVL( rep.getStepAttributeString( id_step, i, "route_label" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      minConfidences[i] =
+          Const.NVL( rep.getStepAttributeString( id_step, i, "route_min_confidence" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      targets[i] = rep.getStepAttributeString( id_step, i, "route_target_step" ); //$NON-NLS-1$
+    }
+    setRoutes( labels, minConfidences, targets );
+    setDefaultTargetStepName( rep.getStepAttributeString( id_step, 0, "default_target_step" ) ); //$NON-NLS-1$
+
+    m_scoreChallengersInParallel = rep.getStepAttributeBoolean( id_step, 0, "score_challengers_in_parallel" ); //$NON-NLS-1$
+    int numChallengers = rep.countNrStepAttributes( id_step, "challenger_name" ); //$NON-NLS-1$
+    m_challengerNames = new String[numChallengers];
+    m_challengerModelFileNames = new String[numChallengers];
+    for ( int i = 0; i < numChallengers; i++ ) {
+      m_challengerNames[i] = rep.getStepAttributeString( id_step, i, "challenger_name" ); //$NON-NLS-1$
+      m_challengerModelFileNames[i] = rep.getStepAttributeString( id_step, i, "challenger_model_file_name" ); //$NON-NLS-1$
+    }
 
     if ( m_fileNameFromField ) {
       m_fieldNameToLoadModelFrom = rep.getStepAttributeString( id_step, 0, "field_name_to_load_from" ); //$NON-NLS-1$
+      m_modelDirectory = rep.getStepAttributeString( id_step, 0, "model_directory" ); //$NON-NLS-1$
     }
 
     m_cacheLoadedModels = rep.getStepAttributeBoolean( id_step, 0, "cache_loaded_models" ); //$NON-NLS-1$
@@ -646,22 +1395,15 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     }
 
     if ( !success ) {
-      // try and get the model itself...
+      // try and get the model itself (de-serialization is deferred until
+      // the model is actually needed)
       try {
-        String base64XMLModel = rep.getStepAttributeString( id_step, 0, "weka_scoring_model" ); //$NON-NLS-1$
-        logDebug( BaseMessages.getString( PKG, "WekaScoringMeta.Log.SizeOfModel" ) //$NON-NLS-1$
-            + " " + base64XMLModel.length() ); //$NON-NLS-1$
-
-        if ( base64XMLModel != null && base64XMLModel.length() > 0 ) {
-          // try to de-serialize
-          deSerializeBase64Model( base64XMLModel );
-          success = true;
-        } else {
-          success = false;
+        EncodedModel encoded = readEncodedModel( rep, id_step );
+        if ( encoded != null ) {
+          setEncodedModel( encoded, m_fileNameFromField );
         }
       } catch ( Exception ex ) {
-        ex.printStackTrace();
-        success = false;
+        logError( BaseMessages.getString( PKG, "WekaScoringMeta.Log.DeserializationProblem" ), ex ); //$NON-NLS-1$
       }
     }
 
@@ -688,6 +1430,52 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
      */
   }
 
+  /**
+   * Read an embedded model from a repository. Models are stored as a number of
+   * chunks, which are checked against the stored content hash. The chunks are
+   * kept in memory in their encoded (compressed) form until the model is
+   * needed. Models saved by earlier versions of the step are stored as a
+   * single attribute without a chunk count.
+   *
+   * @param rep     the repository to access
+   * @param id_step the id for this step
+   * @return the encoded model or null if there is no model stored
+   * @throws KettleException if an error occurs
+   */
+  protected EncodedModel readEncodedModel( Repository rep, ObjectId id_step ) throws KettleException {
+    long nrChunks = 0;
+    try {
+      nrChunks = rep.getStepAttributeInteger( id_step, 0, MODEL_CHUNKS_ATT );
+    } catch ( Exception ex ) {
+      // not there - must be a model saved by an earlier version
+    }
+
+    if ( nrChunks > 0 ) {
+      List<String> chunks = new ArrayList<String>( (int) nrChunks );
+      for ( int i = 0; i < nrChunks; i++ ) {
+        chunks.add( rep.getStepAttributeString( id_step, i, MODEL_TAG ) );
+      }
+      EncodedModel encoded = new EncodedModel( chunks, true );
+
+      String hash = rep.getStepAttributeString( id_step, 0, MODEL_HASH_ATT );
+      if ( !Const.isEmpty( hash ) && !hash.equals( encoded.getHash() ) ) {
+        throw new KettleException(
+            BaseMessages.getString( PKG, "WekaScoringMeta.Error.ModelHashMismatch" ) ); //$NON-NLS-1$
+      }
+
+      return encoded;
+    }
+
+    String base64XMLModel = rep.getStepAttributeString( id_step, 0, MODEL_TAG );
+    if ( Const.isEmpty( base64XMLModel ) ) {
+      return null;
+    }
+    logDebug( BaseMessages.getString( PKG, "WekaScoringMeta.Log.SizeOfModel" ) //$NON-NLS-1$
+        + " " + base64XMLModel.length() ); //$NON-NLS-1$
+
+    return new EncodedModel( Collections.singletonList( base64XMLModel ), false );
+  }
+
   /**
    * Save this step's meta data to a repository
    *
@@ -715,6 +1503,7 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     if ( m_fileNameFromField ) {
       rep.saveStepAttribute( id_transformation, id_step, 0, "field_name_to_load_from",
           m_fieldNameToLoadModelFrom ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, 0, "model_directory", m_modelDirectory ); //$NON-NLS-1$
     }
 
     rep.saveStepAttribute( id_transformation, id_step, 0, "cache_loaded_models", //$NON-NLS-1$
@@ -727,27 +1516,76 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
       rep.saveStepAttribute( id_transformation, id_step, 0, "batch_scoring_size", m_batchScoringSize ); //$NON-NLS-1$
     }
 
-    WekaScoringModel temp = ( m_fileNameFromField ) ? m_defaultModel : m_model;
+    if ( !Const.isEmpty( m_warmUpIterations ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "warm_up_iterations", m_warmUpIterations ); //$NON-NLS-1$
+    }
+
+    if ( !Const.isEmpty( m_profileSampleInterval ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "profile_sample_interval", //$NON-NLS-1$
+          m_profileSampleInterval );
+    }
+
+    if ( m_deduplicateBatches ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "deduplicate_batches", //$NON-NLS-1$
+          m_deduplicateBatches );
+    }
+
+    if ( !Const.isEmpty( m_cascadeModelFileName ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "cascade_model_file_name", //$NON-NLS-1$
+          m_cascadeModelFileName );
+      rep.saveStepAttribute( id_transformation, id_step, 0, "cascade_threshold", m_cascadeThreshold ); //$NON-NLS-1$
+    }
+
+    if ( m_scoreCondition != null && !m_scoreCondition.isEmpty() ) {
+      rep.saveConditionStepAttribute( id_transformation, id_step, "id_score_condition", //$NON-NLS-1$
+          m_scoreCondition );
+    }
+
+    for ( int i = 0; i < getNumRoutes(); i++ ) {
+      rep.saveStepAttribute( id_transformation, id_step, i, "route_label", m_routeLabels[i] ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, i, "route_min_confidence", //$NON-NLS-1$
+          m_routeMinConfidences[i] );
+      rep.saveStepAttribute( id_transformation, id_step, i, "route_target_step", //$NON-NLS-1$
+          m_routeTargetStepNames[i] );
+    }
+    if ( !Const.isEmpty( m_defaultTargetStepName ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "default_target_step", //$NON-NLS-1$
+          m_defaultTargetStepName );
+    }
+
+    int numChallengers = Math.min( m_challengerNames.length, m_challengerModelFileNames.length );
+    if ( numChallengers > 0 ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "score_challengers_in_parallel", //$NON-NLS-1$
+          m_scoreChallengersInParallel );
+      for ( int i = 0; i < numChallengers; i++ ) {
+        rep.saveStepAttribute( id_transformation, id_step, i, "challenger_name", m_challengerNames[i] ); //$NON-NLS-1$
+        rep.saveStepAttribute( id_transformation, id_step, i, "challenger_model_file_name", //$NON-NLS-1$
+            m_challengerModelFileNames[i] );
+      }
+    }
 
-    if ( temp != null && Const.isEmpty( m_modelFileName ) ) {
+    // an unchanged model is written back out from its encoded form without
+    // having to serialize it again. Every chunk is still written, because a
+    // repository replaces all of a step's attributes when it is saved. The
+    // first chunk is the weka_scoring_model attribute that earlier versions
+    // read, so a model that fits in one chunk can still be read by them
+    EncodedModel encoded = null;
+    if ( Const.isEmpty( m_modelFileName ) ) {
       try {
-        // Convert model to base64 encoding
-        ByteArrayOutputStream bao = new ByteArrayOutputStream();
-        BufferedOutputStream bos = new BufferedOutputStream( bao );
-        ObjectOutputStream oo = new ObjectOutputStream( bos );
-        oo.writeObject( temp );
-        oo.flush();
-        byte[] model = bao.toByteArray();
-        String base64XMLModel = KettleDatabaseRepository.byteArrayToString( model );
-
-        String modType = ( m_fileNameFromField ) ? "default" : ""; //$NON-NLS-1$ //$NON-NLS-2$
-        logDebug( "Serializing " + modType + " model." ); //$NON-NLS-1$ //$NON-NLS-2$
-
-        rep.saveStepAttribute( id_transformation, id_step, 0, "weka_scoring_model", base64XMLModel ); //$NON-NLS-1$
-        oo.close();
+        encoded = getEncodedModel( m_fileNameFromField, true );
       } catch ( Exception ex ) {
         logError( BaseMessages.getString( PKG, "WekaScoringDialog.Log.Base64SerializationProblem" ), ex ); //$NON-NLS-1$
       }
+    }
+
+    if ( encoded != null ) {
+      List<String> chunks = encoded.getChunks( EncodedModel.DEFAULT_CHUNK_SIZE );
+
+      rep.saveStepAttribute( id_transformation, id_step, 0, MODEL_CHUNKS_ATT, chunks.size() );
+      for ( int i = 0; i < chunks.size(); i++ ) {
+        rep.saveStepAttribute( id_transformation, id_step, i, MODEL_TAG, chunks.get( i ) );
+      }
+      rep.saveStepAttribute( id_transformation, id_step, 0, MODEL_HASH_ATT, encoded.getHash() );
     } else {
       // either XStream is not present or user wants to source from
       // file
@@ -779,72 +1617,108 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
   @Override public void getFields( RowMetaInterface row, String origin, RowMetaInterface[] info, StepMeta nextStep,
       VariableSpace space ) throws KettleStepException {
 
-    if ( m_model == null && !Const.isEmpty( getSerializedModelFileName() ) ) {
-      // see if we can load from a file.
+    WekaScoringModelHeader modelHeader = null;
+    WekaScoringModel model = getModel();
+    if ( model != null ) {
+      try {
+        modelHeader = WekaScoringModelHeader.createHeader( model );
+      } catch ( Exception ex ) {
+        throw new KettleStepException(
+            BaseMessages.getString( PKG, "WekaScoringMeta.Error.UnableToGetNumberOfClusters" ), ex ); //$NON-NLS-1$
+      }
+    } else if ( !Const.isEmpty( getSerializedModelFileName() ) ) {
+      // see if we can get the model header from a file (we don't need
+      // the model itself in order to determine the output fields)
 
       String modName = getSerializedModelFileName();
 
-      // if (!modelFile.exists()) {
       try {
         if ( !WekaScoringData.modelFileExists( modName, space ) ) {
           throw new KettleStepException(
               BaseMessages.getString( PKG, "WekaScoring.Error.NonExistentModelFile" ) ); //$NON-NLS-1$
         }
 
-        WekaScoringModel model = WekaScoringData.loadSerializedModel( m_modelFileName, getLog(), space );
-        setModel( model );
+        modelHeader = getModelHeader( modName, getLog(), space );
       } catch ( Exception ex ) {
         throw new KettleStepException( BaseMessages.getString( PKG, "WekaScoring.Error.ProblemDeserializingModel" ),
             ex ); //$NON-NLS-1$
       }
     }
 
-    if ( m_model != null ) {
-      Instances header = m_model.getHeader();
-      String classAttName = null;
-      boolean supervised = m_model.isSupervisedLearningModel();
+    if ( modelHeader != null ) {
+      addPredictionFields( row, modelHeader, "", origin ); //$NON-NLS-1$
 
-      if ( supervised ) {
-        classAttName = header.classAttribute().name();
+      if ( isCascade() ) {
+        ValueMetaInterface stageVM = new ValueMeta( CASCADE_STAGE_FIELD, ValueMetaInterface.TYPE_INTEGER );
+        stageVM.setOrigin( origin );
+        row.addValueMeta( stageVM );
+      }
 
-        if ( header.classAttribute().isNumeric() || !m_outputProbabilities ) {
-          int
-              valueType =
-              ( header.classAttribute().isNumeric() ) ? ValueMetaInterface.TYPE_NUMBER : ValueMetaInterface.TYPE_STRING;
+      // challengers (if any) follow the champion, prefixed with their names
+      for ( int i = 0; i < getNumChallengers(); i++ ) {
+        try {
+          addPredictionFields( row, getModelHeader( m_challengerModelFileNames[i], getLog(), space ),
+              m_challengerNames[i] + "_", origin ); //$NON-NLS-1$
+        } catch ( KettleStepException ex ) {
+          throw ex;
+        } catch ( Exception ex ) {
+          throw new KettleStepException( BaseMessages.getString( PKG,
+              "WekaScoringMeta.Error.ProblemReadingChallenger", m_challengerNames[i] ), ex ); //$NON-NLS-1$
+        }
+      }
+    }
+  }
 
-          ValueMetaInterface newVM = new ValueMeta( classAttName + "_predicted", //$NON-NLS-1$
-              valueType );
+  /**
+   * Add the fields holding the predictions of a model
+   *
+   * @param row         the meta data for the output produced
+   * @param modelHeader the header of the model
+   * @param prefix      prefix for the names of the fields
+   * @param origin      the name of the step to be used as the origin
+   * @throws KettleStepException if an error occurs
+   */
+  private void addPredictionFields( RowMetaInterface row, WekaScoringModelHeader modelHeader, String prefix,
+      String origin ) throws KettleStepException {
+    Instances header = modelHeader.getHeader();
+    String classAttName = null;
+    boolean supervised = modelHeader.isSupervisedLearningModel();
+
+    if ( supervised ) {
+      classAttName = header.classAttribute().name();
+
+      if ( header.classAttribute().isNumeric() || !m_outputProbabilities ) {
+        int
+            valueType =
+            ( header.classAttribute().isNumeric() ) ? ValueMetaInterface.TYPE_NUMBER : ValueMetaInterface.TYPE_STRING;
+
+        ValueMetaInterface newVM = new ValueMeta( prefix + classAttName + "_predicted", //$NON-NLS-1$
+            valueType );
+        newVM.setOrigin( origin );
+        row.addValueMeta( newVM );
+      } else {
+        for ( int i = 0; i < header.classAttribute().numValues(); i++ ) {
+          String classVal = header.classAttribute().value( i );
+          ValueMetaInterface newVM = new ValueMeta( prefix + classAttName + ":" //$NON-NLS-1$
+              + classVal + "_predicted_prob", ValueMetaInterface.TYPE_NUMBER ); //$NON-NLS-1$
           newVM.setOrigin( origin );
           row.addValueMeta( newVM );
-        } else {
-          for ( int i = 0; i < header.classAttribute().numValues(); i++ ) {
-            String classVal = header.classAttribute().value( i );
-            ValueMetaInterface newVM = new ValueMeta( classAttName + ":" //$NON-NLS-1$
-                + classVal + "_predicted_prob", ValueMetaInterface.TYPE_NUMBER ); //$NON-NLS-1$
-            newVM.setOrigin( origin );
-            row.addValueMeta( newVM );
-          }
         }
-      } else {
-        if ( m_outputProbabilities ) {
-          try {
-            int numClusters = ( (WekaScoringClusterer) m_model ).numberOfClusters();
-            for ( int i = 0; i < numClusters; i++ ) {
-              ValueMetaInterface newVM = new ValueMeta( "cluster_" + i //$NON-NLS-1$
-                  + "_predicted_prob", ValueMetaInterface.TYPE_NUMBER ); //$NON-NLS-1$
-              newVM.setOrigin( origin );
-              row.addValueMeta( newVM );
-            }
-          } catch ( Exception ex ) {
-            throw new KettleStepException(
-                BaseMessages.getString( PKG, "WekaScoringMeta.Error.UnableToGetNumberOfClusters" ), ex ); //$NON-NLS-1$
-          }
-        } else {
-          ValueMetaInterface newVM = new ValueMeta( "cluster#_predicted", //$NON-NLS-1$
-              ValueMetaInterface.TYPE_NUMBER );
+      }
+    } else {
+      if ( m_outputProbabilities ) {
+        int numClusters = modelHeader.numberOfClusters();
+        for ( int i = 0; i < numClusters; i++ ) {
+          ValueMetaInterface newVM = new ValueMeta( prefix + "cluster_" + i //$NON-NLS-1$
+              + "_predicted_prob", ValueMetaInterface.TYPE_NUMBER ); //$NON-NLS-1$
           newVM.setOrigin( origin );
           row.addValueMeta( newVM );
         }
+      } else {
+        ValueMetaInterface newVM = new ValueMeta( prefix + "cluster#_predicted", //$NON-NLS-1$
+            ValueMetaInterface.TYPE_NUMBER );
+        newVM.setOrigin( origin );
+        row.addValueMeta( newVM );
       }
     }
   }
@@ -903,6 +1777,124 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
         }
       }
     }
+
+    if ( isCascade() ) {
+      try {
+        if ( !WekaScoringData.modelFileExists( m_cascadeModelFileName, transmeta ) ) {
+          cr =
+              new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+                  "WekaScoringMeta.Check.CascadeModelFileMissing" ), stepMeta ); //$NON-NLS-1$
+          remarks.add( cr );
+        }
+      } catch ( Exception ex ) {
+        cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, ex.getMessage(), stepMeta );
+        remarks.add( cr );
+      }
+    }
+
+    if ( m_fileNameFromField && m_challengerNames.length > 0 ) {
+      cr =
+          new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+              "WekaScoringMeta.Check.ChallengersIgnoredWhenModelFromField" ), stepMeta ); //$NON-NLS-1$
+      remarks.add( cr );
+    }
+    if ( isRouting() ) {
+      List<String> targets = new ArrayList<String>();
+      for ( int i = 0; i < getNumRoutes(); i++ ) {
+        targets.add( m_routeTargetStepNames[i] );
+      }
+      if ( Const.isEmpty( m_defaultTargetStepName ) ) {
+        cr =
+            new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+                "WekaScoringMeta.Check.NoDefaultTargetStep" ), stepMeta ); //$NON-NLS-1$
+        remarks.add( cr );
+      } else {
+        targets.add( m_defaultTargetStepName );
+      }
+      for ( String target : targets ) {
+        if ( output == null || Const.indexOfString( target, output ) < 0 ) {
+          cr =
+              new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+                  "WekaScoringMeta.Check.TargetStepNotFollowing", target ), stepMeta ); //$NON-NLS-1$
+          remarks.add( cr );
+        }
+      }
+    }
+
+    for ( int i = 0; i < getNumChallengers(); i++ ) {
+      try {
+        if ( !WekaScoringData.modelFileExists( m_challengerModelFileNames[i], transmeta ) ) {
+          cr =
+              new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+                  "WekaScoringMeta.Check.ChallengerModelFileMissing", m_challengerNames[i] ), stepMeta ); //$NON-NLS-1$
+          remarks.add( cr );
+        }
+      } catch ( Exception ex ) {
+        cr = new CheckResult( CheckResult.TYPE_RESULT_ERROR, ex.getMessage(), stepMeta );
+        remarks.add( cr );
+      }
+    }
+  }
+
+  /**
+   * Returns the step's IO meta data. When rows are routed there is a target
+   * stream for each distinct target step.
+   *
+   * @return the IO meta data
+   */
+  @Override public StepIOMetaInterface getStepIOMeta() {
+    StepIOMetaInterface ioMeta = super.getStepIOMeta( false );
+    if ( ioMeta == null ) {
+      if ( !isRouting() ) {
+        return super.getStepIOMeta();
+      }
+
+      ioMeta = new StepIOMeta( true, false, false, false, false, true );
+      List<String> targets = new ArrayList<String>();
+      for ( int i = 0; i < getNumRoutes(); i++ ) {
+        if ( !targets.contains( m_routeTargetStepNames[i] ) ) {
+          targets.add( m_routeTargetStepNames[i] );
+          String label = Const.isEmpty( m_routeLabels[i] ) ? "*" : m_routeLabels[i]; //$NON-NLS-1$
+          ioMeta.addStream( new Stream( StreamType.TARGET, null, BaseMessages.getString( PKG,
+              "WekaScoringMeta.TargetStream.Route", label ), StreamIcon.TARGET, m_routeTargetStepNames[i] ) ); //$NON-NLS-1$
+        }
+      }
+      if ( !Const.isEmpty( m_defaultTargetStepName ) && !targets.contains( m_defaultTargetStepName ) ) {
+        ioMeta.addStream( new Stream( StreamType.TARGET, null, BaseMessages.getString( PKG,
+            "WekaScoringMeta.TargetStream.Default" ), StreamIcon.TARGET, m_defaultTargetStepName ) ); //$NON-NLS-1$
+      }
+      setStepIOMeta( ioMeta );
+    }
+    return ioMeta;
+  }
+
+  /**
+   * Looks up the target steps of the routing rules
+   *
+   * @param steps the steps of the transformation
+   */
+  @Override public void searchInfoAndTargetSteps( List<StepMeta> steps ) {
+    for ( StreamInterface stream : getStepIOMeta().getTargetStreams() ) {
+      stream.setStepMeta( StepMeta.findStep( steps, (String) stream.getSubject() ) );
+    }
+  }
+
+  /**
+   * The target streams only change with the routing rules, so there is
+   * nothing to reset
+   */
+  @Override public void resetStepIoMeta() {
+    // nothing to do
+  }
+
+  /**
+   * Rows are sent to specific target steps when routing, so the usual
+   * copy/distribute choice doesn't apply
+   *
+   * @return true if routing is configured
+   */
+  @Override public boolean excludeFromCopyDistributeVerification() {
+    return isRouting();
   }
 
   /*
@@ -0,0 +1,356 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Runtime metrics for a copy of the Weka scoring step, exposed as an MBean
+ * named
+ * <code>org.pentaho.di.scoring:type=WekaScoring,transformation=...,step=...,copy=...</code>
+ * so that they can be scraped while the transformation runs. Counters are
+ * cheap to update from the step's thread.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class WekaScoringMetrics implements WekaScoringMetricsMBean {
+
+  public static final String DOMAIN = "org.pentaho.di.scoring"; //$NON-NLS-1$
+
+  private final LongAdder m_rowsScored = new LongAdder();
+  private final LongAdder m_batchesFlushed = new LongAdder();
+  private final LongAdder m_modelLoads = new LongAdder();
+  private final LongAdder m_modelLoadNanos = new LongAdder();
+  private final LongAdder m_cacheHits = new LongAdder();
+  private final LongAdder m_cacheMisses = new LongAdder();
+  private final LongAdder m_updates = new LongAdder();
+  private final LongAdder m_secondStageRows = new LongAdder();
+  private final LongAdder m_rowsSkipped = new LongAdder();
+  private final LongAdder m_rowsDropped = new LongAdder();
+  private final LongAdder m_dedupRows = new LongAdder();
+  private final LongAdder m_dedupDistinctRows = new LongAdder();
+  private final LongAdder m_ensembleMembersEvaluated = new LongAdder();
+  private final LongAdder m_ensembleMembers = new LongAdder();
+
+  private final ScoringHistogram m_batchSizes = new ScoringHistogram();
+  private final ScoringHistogram m_scoringLatencyNanos = new ScoringHistogram();
+
+  /**
+   * sampling latency profiler (null if profiling is off)
+   */
+  private volatile ScoringProfiler m_profiler;
+
+  /**
+   * the log to write the latency profile to
+   */
+  private volatile LogChannelInterface m_log;
+
+  /**
+   * the name this is registered under (null if not registered)
+   */
+  private ObjectName m_name;
+
+  /**
+   * Set the latency profiler to report on
+   *
+   * @param profiler the profiler (null if profiling is off)
+   * @param log      the log to write the latency profile to
+   */
+  void setProfiler( ScoringProfiler profiler, LogChannelInterface log ) {
+    m_profiler = profiler;
+    m_log = log;
+  }
+
+  /**
+   * Record that a single row was scored
+   *
+   * @param nanos the time taken
+   */
+  public void rowScored( long nanos ) {
+    m_rowsScored.increment();
+    m_scoringLatencyNanos.record( nanos );
+  }
+
+  /**
+   * Record that a batch of rows was scored
+   *
+   * @param size  the number of rows in the batch
+   * @param nanos the time taken
+   */
+  public void batchScored( int size, long nanos ) {
+    m_rowsScored.add( size );
+    m_batchesFlushed.increment();
+    m_batchSizes.record( size );
+    m_scoringLatencyNanos.record( nanos );
+  }
+
+  /**
+   * Record that a model was loaded
+   *
+   * @param nanos the time taken
+   */
+  public void modelLoaded( long nanos ) {
+    m_modelLoads.increment();
+    m_modelLoadNanos.add( nanos );
+  }
+
+  /**
+   * Record a hit in the cache of models loaded from file names in a field
+   */
+  public void modelCacheHit() {
+    m_cacheHits.increment();
+  }
+
+  /**
+   * Record a miss in the cache of models loaded from file names in a field
+   */
+  public void modelCacheMiss() {
+    m_cacheMisses.increment();
+  }
+
+  /**
+   * Record an update of an incremental model
+   */
+  public void modelUpdated() {
+    m_updates.increment();
+  }
+
+  /**
+   * Record that rows were passed on to the second stage of a cascade
+   *
+   * @param rows the number of rows
+   */
+  public void cascadeEscalated( int rows ) {
+    m_secondStageRows.add( rows );
+  }
+
+  /**
+   * Record rows that were passed through without scoring because they did
+   * not satisfy the score condition
+   *
+   * @param rows the number of rows
+   */
+  public void rowsSkipped( int rows ) {
+    m_rowsSkipped.add( rows );
+  }
+
+  /**
+   * Record rows that matched no routing rule and were dropped because there
+   * is no default target step
+   *
+   * @param rows the number of rows
+   */
+  public void rowsDropped( int rows ) {
+    m_rowsDropped.add( rows );
+  }
+
+  /**
+   * Record the deduplication of a batch
+   *
+   * @param rows     the number of rows in the batch
+   * @param distinct the number of distinct rows that were scored
+   */
+  public void batchDeduplicated( int rows, int distinct ) {
+    m_dedupRows.add( rows );
+    m_dedupDistinctRows.add( distinct );
+  }
+
+  /**
+   * Record an early-exit vote by an ensemble
+   *
+   * @param evaluated the number of members evaluated
+   * @param members   the number of members in the ensemble
+   */
+  public void ensembleVoted( int evaluated, int members ) {
+    m_ensembleMembersEvaluated.add( evaluated );
+    m_ensembleMembers.add( members );
+  }
+
+  @Override public long getRowsScored() {
+    return m_rowsScored.sum();
+  }
+
+  @Override public long getBatchesFlushed() {
+    return m_batchesFlushed.sum();
+  }
+
+  @Override public double getBatchSizeMean() {
+    return m_batchSizes.getMean();
+  }
+
+  @Override public long getBatchSizeP50() {
+    return m_batchSizes.getValueAtPercentile( 50 );
+  }
+
+  @Override public long getBatchSizeP99() {
+    return m_batchSizes.getValueAtPercentile( 99 );
+  }
+
+  @Override public long getBatchSizeMax() {
+    return m_batchSizes.getMax();
+  }
+
+  @Override public double getScoringLatencyMeanMicros() {
+    return m_scoringLatencyNanos.getMean() / 1000.0;
+  }
+
+  @Override public double getScoringLatencyP50Micros() {
+    return m_scoringLatencyNanos.getValueAtPercentile( 50 ) / 1000.0;
+  }
+
+  @Override public double getScoringLatencyP90Micros() {
+    return m_scoringLatencyNanos.getValueAtPercentile( 90 ) / 1000.0;
+  }
+
+  @Override public double getScoringLatencyP99Micros() {
+    return m_scoringLatencyNanos.getValueAtPercentile( 99 ) / 1000.0;
+  }
+
+  @Override public double getScoringLatencyMaxMicros() {
+    return m_scoringLatencyNanos.getMax() / 1000.0;
+  }
+
+  @Override public long getModelLoads() {
+    return m_modelLoads.sum();
+  }
+
+  @Override public long getModelLoadTimeMillis() {
+    return m_modelLoadNanos.sum() / 1000000L;
+  }
+
+  @Override public long getModelCacheHits() {
+    return m_cacheHits.sum();
+  }
+
+  @Override public long getModelCacheMisses() {
+    return m_cacheMisses.sum();
+  }
+
+  @Override public long getModelUpdates() {
+    return m_updates.sum();
+  }
+
+  @Override public long getSecondStageRows() {
+    return m_secondStageRows.sum();
+  }
+
+  @Override public long getRowsSkipped() {
+    return m_rowsSkipped.sum();
+  }
+
+  @Override public long getRowsDropped() {
+    return m_rowsDropped.sum();
+  }
+
+  @Override public double getDeduplicationRatio() {
+    long rows = m_dedupRows.sum();
+    return ( rows == 0 ) ? 0 : 1.0 - m_dedupDistinctRows.sum() / (double) rows;
+  }
+
+  @Override public double getEnsembleFractionEvaluated() {
+    long members = m_ensembleMembers.sum();
+    return ( members == 0 ) ? 0 : m_ensembleMembersEvaluated.sum() / (double) members;
+  }
+
+  @Override public String getLatencyProfile() {
+    ScoringProfiler profiler = m_profiler;
+    return ( profiler == null ) ? "" : profiler.summary(); //$NON-NLS-1$
+  }
+
+  @Override public void logLatencyProfile() {
+    ScoringProfiler profiler = m_profiler;
+    LogChannelInterface log = m_log;
+    if ( profiler != null && log != null ) {
+      log.logBasic( BaseMessages.getString( WekaScoringMeta.PKG, "WekaScoring.Message.LatencyProfile", //$NON-NLS-1$
+          profiler.summary() ) );
+    }
+  }
+
+  @Override public void reset() {
+    ScoringProfiler profiler = m_profiler;
+    if ( profiler != null ) {
+      profiler.reset();
+    }
+    m_rowsScored.reset();
+    m_batchesFlushed.reset();
+    m_modelLoads.reset();
+    m_modelLoadNanos.reset();
+    m_cacheHits.reset();
+    m_cacheMisses.reset();
+    m_updates.reset();
+    m_secondStageRows.reset();
+    m_rowsSkipped.reset();
+    m_rowsDropped.reset();
+    m_dedupRows.reset();
+    m_dedupDistinctRows.reset();
+    m_ensembleMembersEvaluated.reset();
+    m_ensembleMembers.reset();
+    m_batchSizes.reset();
+    m_scoringLatencyNanos.reset();
+  }
+
+  /**
+   * Register with the platform MBean server
+   *
+   * @param transName   the name of the transformation
+   * @param executionId the id of this execution of the transformation (may be
+   *                    null). Distinguishes concurrent runs of the same
+   *                    transformation
+   * @param stepName    the name of the step
+   * @param copy        the copy number of the step
+   * @throws Exception if registration fails
+   */
+  public synchronized void register( String transName, String executionId, String stepName, int copy )
+      throws Exception {
+    Hashtable<String, String> props = new Hashtable<String, String>();
+    props.put( "type", "WekaScoring" ); //$NON-NLS-1$ //$NON-NLS-2$
+    props.put( "transformation", ObjectName.quote( transName == null ? "" : transName ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    if ( executionId != null ) {
+      props.put( "id", ObjectName.quote( executionId ) ); //$NON-NLS-1$
+    }
+    props.put( "step", ObjectName.quote( stepName ) ); //$NON-NLS-1$
+    props.put( "copy", Integer.toString( copy ) ); //$NON-NLS-1$
+
+    ObjectName name = new ObjectName( DOMAIN, props );
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if ( server.isRegistered( name ) ) {
+      // left over from a run that didn't clean up
+      server.unregisterMBean( name );
+    }
+    server.registerMBean( this, name );
+    m_name = name;
+  }
+
+  /**
+   * Unregister from the platform MBean server (if registered)
+   */
+  public synchronized void unregister() {
+    if ( m_name != null ) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean( m_name );
+      } catch ( Exception ex ) {
+        // already gone
+      }
+      m_name = null;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+/**
+ * Management interface for the runtime metrics of a copy of the Weka scoring
+ * step. Latencies are per row when rows are scored one at a time and per batch
+ * for batch predictors.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public interface WekaScoringMetricsMBean {
+
+  long getRowsScored();
+
+  long getBatchesFlushed();
+
+  double getBatchSizeMean();
+
+  long getBatchSizeP50();
+
+  long getBatchSizeP99();
+
+  long getBatchSizeMax();
+
+  double getScoringLatencyMeanMicros();
+
+  double getScoringLatencyP50Micros();
+
+  double getScoringLatencyP90Micros();
+
+  double getScoringLatencyP99Micros();
+
+  double getScoringLatencyMaxMicros();
+
+  long getModelLoads();
+
+  long getModelLoadTimeMillis();
+
+  long getModelCacheHits();
+
+  long getModelCacheMisses();
+
+  long getModelUpdates();
+
+  /**
+   * Get the number of rows that the first-stage model of a cascade was not
+   * confident about and passed on to the main model
+   *
+   * @return the number of rows (0 if not cascading)
+   */
+  long getSecondStageRows();
+
+  /**
+   * Get the number of rows passed through without scoring because they did
+   * not satisfy the score condition
+   *
+   * @return the number of rows
+   */
+  long getRowsSkipped();
+
+  /**
+   * Get the number of rows that matched no routing rule and were dropped
+   * because there is no default target step
+   *
+   * @return the number of rows
+   */
+  long getRowsDropped();
+
+  /**
+   * Get the fraction of deduplicated batch rows that were identical to an
+   * earlier row in their batch, and so were not scored separately
+   *
+   * @return the fraction (0 if batches are not deduplicated)
+   */
+  double getDeduplicationRatio();
+
+  /**
+   * Get the average fraction of ensemble members that were evaluated when
+   * predicting labels with early-exit voting
+   *
+   * @return the fraction (0 if no ensemble has voted)
+   */
+  double getEnsembleFractionEvaluated();
+
+  /**
+   * Get a summary of the sampled per-row latencies, split into instance
+   * construction, model evaluation and output building
+   *
+   * @return the summary (empty if latency profiling is off)
+   */
+  String getLatencyProfile();
+
+  /**
+   * Write the latency profile to the step's log
+   */
+  void logLatencyProfile();
+
+  /**
+   * Clear all the metrics
+   */
+  void reset();
+}
@@ -22,6 +22,7 @@ import weka.classifiers.Classifier;
 import weka.clusterers.Clusterer;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Utils;
 import weka.core.pmml.PMMLModel;
 
 /**
@@ -37,6 +38,9 @@ public abstract class WekaScoringModel implements Serializable {
   // The header of the Instances used to build the model
   private Instances m_header;
 
+  // The fingerprint of the header (computed when first asked for)
+  private transient String m_headerFingerprint;
+
   /**
    * Creates a new <code>WekaScoringModel</code> instance.
    *
@@ -65,6 +69,7 @@ public abstract class WekaScoringModel implements Serializable {
    */
   public void setHeader( Instances header ) {
     m_header = header;
+    m_headerFingerprint = null;
   }
 
   /**
@@ -76,6 +81,19 @@ public abstract class WekaScoringModel implements Serializable {
     return m_header;
   }
 
+  /**
+   * Get the fingerprint of the header. Models whose headers have the same
+   * fingerprint can share a mapping from the incoming fields.
+   *
+   * @return the fingerprint (see ScoringMapping.fingerprint())
+   */
+  String getHeaderFingerprint() {
+    if ( m_headerFingerprint == null ) {
+      m_headerFingerprint = ScoringMapping.fingerprint( m_header );
+    }
+    return m_headerFingerprint;
+  }
+
   /**
    * Tell the model that this scoring run is finished.
    */
@@ -118,6 +136,57 @@ public abstract class WekaScoringModel implements Serializable {
    */
   public abstract double[] distributionForInstance( Instance inst ) throws Exception;
 
+  /**
+   * Return a distribution that is only needed for its largest value, i.e.
+   * when only the predicted label is output. Sub-classes may override this to
+   * do less work than distributionForInstance().
+   *
+   * @param inst    the Instance to be predicted
+   * @param metrics metrics to record the work done in (may be null)
+   * @return scores whose largest value is at the predicted class (or cluster)
+   * @throws Exception if an error occurs
+   */
+  public double[] labelDistributionForInstance( Instance inst, WekaScoringMetrics metrics ) throws Exception {
+    return distributionForInstance( inst );
+  }
+
+  /**
+   * Batch version of labelDistributionForInstance(). By default the labels
+   * are predicted with classifyInstances().
+   *
+   * @param insts   the instances to score
+   * @param metrics metrics to record the work done in (may be null)
+   * @return scores whose largest value is at the predicted class (or cluster),
+   * one array for each instance
+   * @throws Exception if a problem occurs
+   */
+  public double[][] labelDistributionsForInstances( Instances insts, WekaScoringMetrics metrics ) throws Exception {
+    double[] labels = classifyInstances( insts );
+    int numLabels = insts.numClasses();
+    double[][] preds = new double[labels.length][];
+    for ( int i = 0; i < labels.length; i++ ) {
+      preds[i] = labelDistribution( labels[i], numLabels );
+    }
+    return preds;
+  }
+
+  /**
+   * Turns a predicted label into scores whose largest value is at that label
+   *
+   * @param label     the index of the predicted label (missing if no
+   *                  prediction could be made)
+   * @param numLabels the number of labels
+   * @return 1 for the predicted label and 0 elsewhere (all 0 if the label is
+   * missing)
+   */
+  static double[] labelDistribution( double label, int numLabels ) {
+    double[] scores = new double[numLabels];
+    if ( !Utils.isMissingValue( label ) ) {
+      scores[(int) label] = 1;
+    }
+    return scores;
+  }
+
   /**
    * Batch scoring method. Call isBatchPredictor() first in order to determine
    * if the underlying model can handle batch scoring.
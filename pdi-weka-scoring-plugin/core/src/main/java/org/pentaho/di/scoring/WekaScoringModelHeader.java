@@ -0,0 +1,107 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.scoring;
+
+import java.io.Serializable;
+
+import weka.core.Instances;
+
+/**
+ * Lightweight description of a Weka model. Holds just enough information
+ * (the training header, whether the model is supervised and the number of
+ * clusters for clusterers) to determine the output fields of the step without
+ * having to hang on to the model itself.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}org)
+ */
+public class WekaScoringModelHeader implements Serializable {
+
+  /**
+   * For serialization
+   */
+  private static final long serialVersionUID = -2402837437611873554L;
+
+  /**
+   * the (empty) header of the Instances used to build the model
+   */
+  private final Instances m_header;
+
+  /**
+   * true if the model is a classifier/regressor
+   */
+  private final boolean m_supervised;
+
+  /**
+   * number of clusters learned (clusterers only, otherwise -1)
+   */
+  private final int m_numClusters;
+
+  /**
+   * Creates a new <code>WekaScoringModelHeader</code> instance.
+   *
+   * @param header      the header of the Instances used to build the model
+   * @param supervised  true if the model is a supervised model
+   * @param numClusters the number of clusters (clusterers only)
+   */
+  public WekaScoringModelHeader( Instances header, boolean supervised, int numClusters ) {
+    m_header = header;
+    m_supervised = supervised;
+    m_numClusters = numClusters;
+  }
+
+  /**
+   * Static factory method to extract the header information from a loaded
+   * model.
+   *
+   * @param model the model to describe
+   * @return a <code>WekaScoringModelHeader</code> for the model
+   * @throws Exception if the number of clusters can't be determined
+   */
+  public static WekaScoringModelHeader createHeader( WekaScoringModel model ) throws Exception {
+    int numClusters = -1;
+    if ( !model.isSupervisedLearningModel() ) {
+      numClusters = ( (WekaScoringClusterer) model ).numberOfClusters();
+    }
+
+    return new WekaScoringModelHeader( new Instances( model.getHeader(), 0 ), model.isSupervisedLearningModel(),
+        numClusters );
+  }
+
+  /**
+   * Get the header of the Instances that was used build the model
+   *
+   * @return an <code>Instances</code> value
+   */
+  public Instances getHeader() {
+    return m_header;
+  }
+
+  /**
+   * Returns true if the described model is a supervised model
+   *
+   * @return true if the described model is a supervised model
+   */
+  public boolean isSupervisedLearningModel() {
+    return m_supervised;
+  }
+
+  /**
+   * Returns the number of clusters that the described clusterer has learned.
+   *
+   * @return the number of clusters or -1 if the model is not a clusterer
+   */
+  public int numberOfClusters() {
+    return m_numClusters;
+  }
+}
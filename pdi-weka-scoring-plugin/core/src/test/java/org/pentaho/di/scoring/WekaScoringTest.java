@@ -14,14 +14,60 @@
 package org.pentaho.di.scoring;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
 import org.junit.Test;
+import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaAndData;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.w3c.dom.Document;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.RandomForest;
+import weka.clusterers.FilteredClusterer;
+import weka.clusterers.SimpleKMeans;
+import weka.core.Attribute;
+import weka.core.BatchPredictor;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.pmml.PMMLFactory;
+import weka.core.pmml.PMMLModel;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+import weka.filters.unsupervised.attribute.StringToWordVector;
 
 /**
  * Unit tests for WekaScoring
@@ -99,6 +145,145 @@ public class WekaScoringTest {
         "class:Iris-virginica_predicted_prob");
   }
 
+  @Test
+  public void testGetFieldsFromModelFileDoesNotRetainModel() throws Exception {
+    WekaScoringMeta meta = new WekaScoringMeta();
+
+    meta.setSerializedModelFileName(CLASSIFICATION_MODEL);
+    meta.setOutputProbabilities(true);
+    RowMetaInterface rmi = new RowMeta();
+
+    meta.getFields(rmi, null, null, null, new Variables());
+
+    assertTrue(rmi.size() == 3);
+    assertEquals(rmi.getValueMeta(0).getName(),
+        "class:Iris-setosa_predicted_prob");
+    assertNull(meta.getModel());
+
+    // second call is served from the header cache
+    rmi = new RowMeta();
+    meta.getFields(rmi, null, null, null, new Variables());
+    assertTrue(rmi.size() == 3);
+  }
+
+  @Test
+  public void testEmbeddedModelIsCompressedAndLoadedLazily() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+    String xml = meta.getXML();
+    assertTrue(xml.contains("<" + WekaScoringMeta.MODEL_TAG + ">"));
+
+    Document doc = XMLHandler.loadXMLString("<step>" + xml + "</step>");
+    WekaScoringMeta loaded = new WekaScoringMeta();
+    loaded.loadXML(XMLHandler.getSubNode(doc, "step"), null, null);
+    assertTrue(loaded.hasEncodedModel());
+
+    // writing the step back out does not need the model
+    assertEquals(xml, loaded.getXML());
+    assertTrue(loaded.hasEncodedModel());
+
+    RowMetaInterface rmi = new RowMeta();
+    loaded.getFields(rmi, null, null, null, new Variables());
+    assertFalse(loaded.hasEncodedModel());
+    assertTrue(rmi.size() == 1);
+    assertEquals(rmi.getValueMeta(0).getName(), "class_predicted");
+  }
+
+  @Test
+  public void testEncodedModelChunksRoundTrip() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    EncodedModel encoded = EncodedModel.encode(model, 64);
+    List<String> chunks = encoded.getChunks(64);
+    assertTrue(chunks.size() > 1);
+    for (String chunk : chunks) {
+      assertTrue(chunk.length() <= 64);
+    }
+
+    // re-assembled chunks hash the same and decode to the same model
+    EncodedModel read = new EncodedModel(chunks, true);
+    assertEquals(encoded.getHash(), read.getHash());
+    assertEquals(model.toString(), read.decode().toString());
+
+    // and can be re-chunked for storage with a different chunk size
+    EncodedModel single = new EncodedModel(
+        Collections.singletonList(encoded.asString()), true);
+    assertEquals(chunks, single.getChunks(64));
+  }
+
+  @Test
+  public void testEncodedModelMatchesLegacyXMLEncoding() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    // what earlier versions do to read an embedded model
+    EncodedModel encoded = EncodedModel.encode(model, EncodedModel.DEFAULT_CHUNK_SIZE);
+    assertEquals(model.toString(),
+        WekaScoringMeta.deSerializeBase64Model(encoded.asString()).toString());
+
+    // and what they wrote
+    ByteArrayOutputStream bao = new ByteArrayOutputStream();
+    ObjectOutputStream oo = new ObjectOutputStream(bao);
+    oo.writeObject(model);
+    oo.close();
+    Document doc = XMLHandler.loadXMLString(
+        XMLHandler.addTagValue(WekaScoringMeta.MODEL_TAG, bao.toByteArray()));
+    String legacy = XMLHandler.getTagValue(doc, WekaScoringMeta.MODEL_TAG);
+    EncodedModel read = new EncodedModel(Collections.singletonList(legacy), true);
+    assertEquals(model.toString(), read.decode().toString());
+  }
+
+  @Test
+  public void testScoringHistogramPercentiles() {
+    ScoringHistogram h = new ScoringHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      h.record(i * 1000L);
+    }
+
+    assertEquals(1000, h.getCount());
+    assertEquals(1000L, h.getMin());
+    assertEquals(1000000L, h.getMax());
+    assertEquals(500500.0, h.getMean(), 0.001);
+
+    // within the histogram's precision (about 6%)
+    assertEquals(500000.0, h.getValueAtPercentile(50), 500000.0 * 0.07);
+    assertEquals(990000.0, h.getValueAtPercentile(99), 990000.0 * 0.07);
+
+    h.reset();
+    assertEquals(0, h.getCount());
+    assertEquals(0L, h.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void testScoringProfilerSamplesOneInN() {
+    ScoringProfiler profiler = new ScoringProfiler(10);
+    int sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      if (profiler.sample(1)) {
+        sampled++;
+        profiler.record(1, 1000L, 2000L, 3000L);
+      }
+    }
+    assertEquals(10, sampled);
+    assertEquals(10, profiler.getSamples());
+
+    // a batch is sampled if it takes the row count past a multiple of N and
+    // per-row averages are recorded
+    assertFalse(profiler.sample(5));
+    assertTrue(profiler.sample(5));
+    assertTrue(profiler.sample(25));
+    profiler.record(25, 25000L, 50000L, 75000L);
+    assertEquals(11, profiler.getSamples());
+    assertTrue(profiler.summary().contains("total:"));
+
+    profiler.reset();
+    assertEquals(0, profiler.getSamples());
+  }
+
   @Test
   public void testGetFieldsNoProbsClustering() throws Exception {
     WekaScoringModel model = WekaScoringData.loadSerializedModel(
@@ -176,6 +361,817 @@ public class WekaScoringTest {
     }
   }
 
+  @Test
+  public void testWarmUpDoesNotChangePredictions() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+
+    WekaScoringData data = new WekaScoringData();
+    data.setModel(model);
+    data.setOutputRowMeta(outRowMeta);
+    data.mapIncomingRowMetaData(model.getHeader(), rmi, false, null);
+
+    data.warmUp(rmi, outRowMeta, meta, 1000, 100, 1L);
+
+    assertEquals(data.generatePrediction(rmi, outRowMeta, ROWS[0], meta)[4]
+        .toString(), "Iris-setosa");
+    assertEquals(data.generatePrediction(rmi, outRowMeta, ROWS[4], meta)[4]
+        .toString(), "Iris-virginica");
+  }
+
+  @Test
+  public void testChallengersScoredFromSameInstances() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    WekaScoringModel challenger = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+    meta.setChallengerNames(new String[] { "nb2" });
+    meta.setChallengerModelFileNames(new String[] { CLASSIFICATION_MODEL });
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+    assertEquals(6, outRowMeta.size());
+    assertEquals("class_predicted", outRowMeta.getValueMeta(4).getName());
+    assertEquals("nb2_class_predicted", outRowMeta.getValueMeta(5).getName());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      WekaScoringData data = new WekaScoringData();
+      data.setModel(model);
+      data.setChallengers(new WekaScoringModel[] { challenger }, executor);
+      data.setOutputRowMeta(outRowMeta);
+      data.mapIncomingRowMetaData(model.getHeader(), rmi, false, null);
+
+      for (Object[] row : ROWS) {
+        Object[] rowPlusPreds = data.generatePrediction(rmi, outRowMeta, row,
+            meta);
+        assertEquals(row[4], rowPlusPreds[4]);
+        assertEquals(row[4], rowPlusPreds[5]);
+      }
+
+      Object[][] batch = data.generatePredictions(rmi, outRowMeta,
+          Arrays.asList(ROWS), meta);
+      for (int i = 0; i < ROWS.length; i++) {
+        assertEquals(ROWS[i][4], batch[i][4]);
+        assertEquals(ROWS[i][4], batch[i][5]);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCascadeRecordsStage() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    WekaScoringModel firstStage = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+    meta.setCascadeModelFileName(CLASSIFICATION_MODEL);
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+    assertEquals(6, outRowMeta.size());
+    assertEquals("class_predicted", outRowMeta.getValueMeta(4).getName());
+    assertEquals(WekaScoringMeta.CASCADE_STAGE_FIELD, outRowMeta
+        .getValueMeta(5).getName());
+
+    WekaScoringData data = new WekaScoringData();
+    data.setModel(model);
+    data.setOutputRowMeta(outRowMeta);
+    data.mapIncomingRowMetaData(model.getHeader(), rmi, false, null);
+
+    // every first-stage prediction is accepted
+    data.setCascade(firstStage, 0.0);
+    Object[][] batch = data.generatePredictions(rmi, outRowMeta,
+        Arrays.asList(ROWS), meta);
+    for (int i = 0; i < ROWS.length; i++) {
+      assertEquals(ROWS[i][4], batch[i][4]);
+      assertEquals(new Long(1), batch[i][5]);
+    }
+
+    // every row is passed on to the main model
+    data.setCascade(firstStage, 1.1);
+    batch = data.generatePredictions(rmi, outRowMeta, Arrays.asList(ROWS),
+        meta);
+    for (int i = 0; i < ROWS.length; i++) {
+      assertEquals(ROWS[i][4], batch[i][4]);
+      assertEquals(new Long(2), batch[i][5]);
+    }
+    for (Object[] row : ROWS) {
+      Object[] rowPlusPreds = data.generatePrediction(rmi, outRowMeta, row,
+          meta);
+      assertEquals(row[4], rowPlusPreds[4]);
+      assertEquals(new Long(2), rowPlusPreds[5]);
+    }
+  }
+
+  @Test
+  public void testEarlyExitEnsembleVotingMatchesEnsemble() throws Exception {
+    WekaScoringModel nb = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    Instances train = rowsAsInstances(nb.getHeader());
+
+    RandomForest forest = new RandomForest();
+    forest.buildClassifier(train);
+    WekaScoringModel model = WekaScoringModel.createScorer(forest);
+    model.setHeader(new Instances(train, 0));
+
+    WekaScoringMetrics metrics = new WekaScoringMetrics();
+    for (int i = 0; i < train.numInstances(); i++) {
+      Instance inst = train.instance(i);
+      double[] scores = model.labelDistributionForInstance(inst, metrics);
+      assertEquals(Utils.maxIndex(forest.distributionForInstance(inst)),
+          Utils.maxIndex(scores));
+    }
+    assertTrue(metrics.getEnsembleFractionEvaluated() > 0);
+    assertTrue(metrics.getEnsembleFractionEvaluated() < 1);
+  }
+
+  @Test
+  public void testBatchLabelScoringStopsEnsembleVotingEarly() throws Exception {
+    WekaScoringModel nb = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    Instances train = rowsAsInstances(nb.getHeader());
+
+    RandomForest forest = new RandomForest();
+    forest.buildClassifier(train);
+    WekaScoringModel model = WekaScoringModel.createScorer(forest);
+    model.setHeader(new Instances(train, 0));
+
+    WekaScoringMetrics metrics = new WekaScoringMetrics();
+    double[][] scores = model.labelDistributionsForInstances(train, metrics);
+    assertEquals(train.numInstances(), scores.length);
+    for (int i = 0; i < scores.length; i++) {
+      assertEquals(Utils.maxIndex(forest.distributionForInstance(train.instance(i))),
+          Utils.maxIndex(scores[i]));
+    }
+    assertTrue(metrics.getEnsembleFractionEvaluated() < 1);
+  }
+
+  @Test
+  public void testScoreConditionSkipsRows() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+    meta.setScoreCondition(new Condition("sepallength", Condition.FUNC_LARGER,
+        null, new ValueMetaAndData("constant", 6.0)));
+
+    // the condition survives a round trip through XML
+    Document doc = XMLHandler.loadXMLString("<step>" + meta.getXML()
+        + "</step>");
+    WekaScoringMeta loaded = new WekaScoringMeta();
+    loaded.loadXML(XMLHandler.getSubNode(doc, "step"), null, null);
+    assertFalse(loaded.getScoreCondition().isEmpty());
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+
+    WekaScoringData data = new WekaScoringData();
+    data.setModel(model);
+    data.setOutputRowMeta(outRowMeta);
+    data.mapIncomingRowMetaData(model.getHeader(), rmi, false, null);
+    data.setScoreCondition(loaded.getScoreCondition());
+
+    Object[][] batch = data.generatePredictions(rmi, outRowMeta,
+        Arrays.asList(ROWS), meta);
+    assertEquals(ROWS.length, batch.length);
+    for (int i = 0; i < ROWS.length; i++) {
+      boolean selected = (Double) ROWS[i][0] > 6.0;
+      assertEquals(selected, data.isSelected(rmi, ROWS[i]));
+      assertEquals(ROWS[i][0], batch[i][0]);
+      if (selected) {
+        assertEquals(ROWS[i][4], batch[i][4]);
+      } else {
+        assertNull(batch[i][4]);
+      }
+    }
+  }
+
+  @Test
+  public void testRoutesByLabelAndConfidence() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+    meta.setOutputProbabilities(true);
+    meta.setRoutes(new String[] { "Iris-setosa", "" }, new String[] { "",
+        "0.9" }, new String[] { "setosa", "confident" });
+    meta.setDefaultTargetStepName("unsure");
+    assertTrue(meta.isRouting());
+    assertEquals(3, meta.getStepIOMeta().getTargetStreams().size());
+
+    Document doc = XMLHandler.loadXMLString("<step>" + meta.getXML()
+        + "</step>");
+    WekaScoringMeta loaded = new WekaScoringMeta();
+    loaded.loadXML(XMLHandler.getSubNode(doc, "step"), null, null);
+    assertEquals(2, loaded.getNumRoutes());
+    assertEquals("confident", loaded.getRouteTargetStepNames()[1]);
+    assertEquals("unsure", loaded.getDefaultTargetStepName());
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+
+    WekaScoringData data = new WekaScoringData();
+    data.setModel(model);
+    data.setOutputRowMeta(outRowMeta);
+    data.mapIncomingRowMetaData(model.getHeader(), rmi, false, null);
+    data.setRoutes(new String[] { "Iris-setosa", "" }, new double[] {
+        Double.NaN, 0.9 });
+
+    Object[][] batch = data.generatePredictions(rmi, outRowMeta,
+        Arrays.asList(ROWS), meta);
+    for (int i = 0; i < ROWS.length; i++) {
+      double confidence = Math.max((Double) batch[i][4], Math.max(
+          (Double) batch[i][5], (Double) batch[i][6]));
+      int expected = ROWS[i][4].equals("Iris-setosa") ? 0
+          : (confidence >= 0.9 ? 1 : -1);
+      assertEquals(expected, data.getRoute(i));
+
+      data.generatePrediction(rmi, outRowMeta, ROWS[i], meta);
+      assertEquals(expected, data.getRoute(0));
+    }
+  }
+
+  @Test
+  public void testBatchDeduplicationSharesPredictions() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(model);
+    meta.setOutputProbabilities(true);
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+
+    WekaScoringMetrics metrics = new WekaScoringMetrics();
+    WekaScoringData data = new WekaScoringData();
+    data.setModel(model);
+    data.setMetrics(metrics);
+    data.setOutputRowMeta(outRowMeta);
+    data.mapIncomingRowMetaData(model.getHeader(), rmi, false, null);
+
+    List<Object[]> rows = new ArrayList<Object[]>(Arrays.asList(ROWS));
+    rows.addAll(Arrays.asList(ROWS));
+    Object[][] plain = data.generatePredictions(rmi, outRowMeta, rows, meta);
+
+    data.setDeduplicate(true);
+    Object[][] deduped = data.generatePredictions(rmi, outRowMeta, rows,
+        meta);
+    assertEquals(rows.size(), deduped.length);
+    for (int i = 0; i < rows.size(); i++) {
+      assertEquals(Arrays.asList(plain[i]), Arrays.asList(deduped[i]));
+    }
+    assertEquals(0.5, metrics.getDeduplicationRatio(), 1e-9);
+  }
+
+  @Test
+  public void testClustererIgnoresAttributesLikeRemove() throws Exception {
+    WekaScoringModel nb = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    Instances full = rowsAsInstances(nb.getHeader());
+
+    Remove remove = new Remove();
+    remove.setAttributeIndicesArray(new int[] { 4 });
+    remove.setInputFormat(full);
+    Instances reduced = Filter.useFilter(full, remove);
+
+    SimpleKMeans kMeans = new SimpleKMeans();
+    kMeans.setNumClusters(3);
+    kMeans.buildClusterer(reduced);
+
+    WekaScoringModel model = WekaScoringModel.createScorer(kMeans);
+    model.setHeader(new Instances(full, 0));
+    ((WekaScoringClusterer) model).setAttributesToIgnore(new int[] { 4 });
+
+    for (int i = 0; i < full.numInstances(); i++) {
+      assertEquals(kMeans.clusterInstance(reduced.instance(i)),
+          (int) model.classifyInstance(full.instance(i)));
+      assertTrue(Arrays.equals(
+          kMeans.distributionForInstance(reduced.instance(i)),
+          model.distributionForInstance(full.instance(i))));
+    }
+    if (model.isBatchPredictor()) {
+      double[][] preds = model.distributionsForInstances(full);
+      for (int i = 0; i < full.numInstances(); i++) {
+        assertTrue(Arrays.equals(
+            kMeans.distributionForInstance(reduced.instance(i)), preds[i]));
+      }
+    }
+
+    // string attributes - each row of a batch keeps its own value
+    ArrayList<Attribute> stringAtts = new ArrayList<Attribute>();
+    stringAtts.add(new Attribute("colour", (List<String>) null));
+    stringAtts.add(new Attribute("size"));
+    stringAtts.add(new Attribute("id"));
+    Instances stringFull = new Instances("strings", stringAtts, 6);
+    String[] colours = { "red", "red", "red", "blue", "blue", "blue" };
+    for (int i = 0; i < colours.length; i++) {
+      stringFull.add(new DenseInstance(1.0, new double[] {
+          stringFull.attribute(0).addStringValue(colours[i]), 1.0, i }));
+    }
+
+    Remove stringRemove = new Remove();
+    stringRemove.setAttributeIndicesArray(new int[] { 2 });
+    stringRemove.setInputFormat(stringFull);
+    Instances stringReduced = Filter.useFilter(stringFull, stringRemove);
+
+    BatchFilteredClusterer clusterer = new BatchFilteredClusterer();
+    clusterer.setFilter(new StringToWordVector());
+    SimpleKMeans stringKMeans = new SimpleKMeans();
+    stringKMeans.setNumClusters(2);
+    clusterer.setClusterer(stringKMeans);
+    clusterer.buildClusterer(stringReduced);
+
+    WekaScoringModel stringModel = WekaScoringModel.createScorer(clusterer);
+    stringModel.setHeader(new Instances(stringFull, 0));
+    ((WekaScoringClusterer) stringModel).setAttributesToIgnore(new int[] { 2 });
+
+    for (int i = 0; i < stringFull.numInstances(); i++) {
+      assertEquals(clusterer.clusterInstance(stringReduced.instance(i)),
+          (int) stringModel.classifyInstance(stringFull.instance(i)));
+    }
+    assertTrue(stringModel.isBatchPredictor());
+    double[][] stringPreds = stringModel.distributionsForInstances(stringFull);
+    for (int i = 0; i < stringFull.numInstances(); i++) {
+      assertTrue(Arrays.equals(
+          clusterer.distributionForInstance(stringReduced.instance(i)), stringPreds[i]));
+    }
+    assertFalse(Utils.maxIndex(stringPreds[0]) == Utils.maxIndex(stringPreds[5]));
+  }
+
+  /**
+   * A FilteredClusterer that is a batch predictor, so that the batch path of
+   * WekaScoringClusterer is exercised
+   */
+  private static class BatchFilteredClusterer extends FilteredClusterer
+      implements BatchPredictor {
+    private String m_batchSize = "100";
+
+    public void setBatchSize(String size) {
+      m_batchSize = size;
+    }
+
+    public String getBatchSize() {
+      return m_batchSize;
+    }
+
+    public double[][] distributionsForInstances(Instances insts)
+        throws Exception {
+      double[][] preds = new double[insts.numInstances()][];
+      for (int i = 0; i < preds.length; i++) {
+        preds[i] = distributionForInstance(insts.instance(i));
+      }
+      return preds;
+    }
+
+    public boolean implementsMoreEfficientBatchPrediction() {
+      return false;
+    }
+  }
+
+  @Test
+  public void testLabelOnlyScoringMatchesDistribution() throws Exception {
+    WekaScoringModel nb = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    Instances train = rowsAsInstances(nb.getHeader());
+
+    J48 tree = new J48();
+    tree.buildClassifier(train);
+    WekaScoringModel model = WekaScoringModel.createScorer(tree);
+    model.setHeader(new Instances(train, 0));
+
+    double[] labels = model.classifyInstances(train);
+    for (int i = 0; i < train.numInstances(); i++) {
+      Instance inst = train.instance(i);
+      int expected = Utils.maxIndex(tree.distributionForInstance(inst));
+      double[] scores = model.labelDistributionForInstance(inst, null);
+      assertEquals(expected, Utils.maxIndex(scores));
+      assertEquals(1.0, Utils.sum(scores), 0);
+      assertEquals(expected, (int) labels[i]);
+    }
+  }
+
+  @Test
+  public void testPMMLModelScoredRowByRow() throws Exception {
+    String pmml = "<PMML version=\"4.1\" xmlns=\"http://www.dmg.org/PMML-4_1\">"
+        + "<Header copyright=\"test\" description=\"test\"/>"
+        + "<DataDictionary numberOfFields=\"2\">"
+        + "<DataField name=\"petallength\" optype=\"continuous\" dataType=\"double\"/>"
+        + "<DataField name=\"petalwidth\" optype=\"continuous\" dataType=\"double\"/>"
+        + "</DataDictionary>"
+        + "<RegressionModel functionName=\"regression\" modelName=\"width\">"
+        + "<MiningSchema><MiningField name=\"petallength\"/>"
+        + "<MiningField name=\"petalwidth\" usageType=\"predicted\"/></MiningSchema>"
+        + "<RegressionTable intercept=\"-0.36\">"
+        + "<NumericPredictor name=\"petallength\" coefficient=\"0.42\"/>"
+        + "</RegressionTable></RegressionModel></PMML>";
+    PMMLModel pmmlModel = PMMLFactory.getPMMLModel(new BufferedInputStream(
+        new ByteArrayInputStream(pmml.getBytes(StandardCharsets.UTF_8))), null);
+    WekaScoringModel model = WekaScoringModel.createScorer(pmmlModel);
+    Instances header = pmmlModel.getMiningSchema().getMiningSchemaAsInstances();
+    model.setHeader(header);
+    // PMML models gain nothing from batching, so the step doesn't hold rows
+    // back for them
+    assertFalse(model.isBatchPredictor());
+
+    for (Object[] row : ROWS) {
+      Instance inst = new DenseInstance(1.0, new double[] { (Double) row[2],
+          Utils.missingValue() });
+      inst.setDataset(header);
+      assertEquals(-0.36 + 0.42 * (Double) row[2],
+          model.distributionForInstance(inst)[0], 1e-9);
+    }
+    model.done();
+  }
+
+  @Test
+  public void testModelDirectoryLoadsModelsByKey() throws Exception {
+    File dir = Files.createTempDirectory("models").toFile();
+    File zip = File.createTempFile("models", ".zip");
+    try {
+      byte[] nb = Files.readAllBytes(new File(CLASSIFICATION_MODEL).toPath());
+      byte[] em = Files.readAllBytes(new File(CLUSTERING_MODEL).toPath());
+      ByteArrayOutputStream gz = new ByteArrayOutputStream();
+      OutputStream out = new GZIPOutputStream(gz);
+      out.write(em);
+      out.close();
+      Files.write(new File(dir, "store_1.model").toPath(), nb);
+      Files.write(new File(dir, "store_2.model.gz").toPath(), gz.toByteArray());
+      Files.write(new File(dir, "notes.txt").toPath(),
+          "not a model".getBytes(StandardCharsets.UTF_8));
+
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zip));
+      zipOut.putNextEntry(new ZipEntry("store_1.model"));
+      zipOut.write(nb);
+      zipOut.putNextEntry(new ZipEntry("store_2.model.gz"));
+      zipOut.write(gz.toByteArray());
+      zipOut.close();
+
+      for (String source : new String[] { dir.getAbsolutePath(),
+          zip.getAbsolutePath() }) {
+        Map<String, WekaScoringModel> models = ModelDirectory.load(source,
+            null, new Variables(), 2, null, "loader");
+        assertEquals(source, 2, models.size());
+        assertTrue(models.get("store_1").isSupervisedLearningModel());
+        assertFalse(models.get("store_2").isSupervisedLearningModel());
+      }
+
+      // each model keeps its own mapping when the step switches between them
+      Map<String, WekaScoringModel> models = ModelDirectory.load(
+          dir.getAbsolutePath(), null, new Variables(), 2, null, "loader");
+      RowMetaInterface rmi = new RowMeta();
+      String[] names = { "sepallength", "sepalwidth", "petallength",
+          "petalwidth", "class" };
+      for (int i = 0; i < names.length; i++) {
+        ValueMetaInterface vmi = new ValueMeta();
+        vmi.setName(names[i]);
+        vmi.setType(i < 4 ? ValueMetaInterface.TYPE_NUMBER
+            : ValueMetaInterface.TYPE_STRING);
+        rmi.addValueMeta(vmi);
+      }
+      WekaScoringData data = new WekaScoringData();
+      data.switchModel(models.get("store_1"), rmi);
+      ScoringMapping first = data.getMapping();
+      data.switchModel(models.get("store_2"), rmi);
+      assertEquals(models.get("store_2").getHeader().numAttributes(),
+          data.getMapping().numAttributes());
+      data.switchModel(models.get("store_1"), rmi);
+      assertTrue(first == data.getMapping());
+    } finally {
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+      zip.delete();
+    }
+  }
+
+  @Test
+  public void testSwitchingModelsRemapsByHeaderFingerprint() throws Exception {
+    WekaScoringModel nb1 = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    WekaScoringModel nb2 = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    Instances renamedHeader = new Instances(nb1.getHeader(), 0);
+    renamedHeader.renameAttribute(0, "sepal_length");
+    WekaScoringModel renamed = WekaScoringModel.createScorer(nb1.getModel());
+    renamed.setHeader(renamedHeader);
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "sepallength", "sepalwidth", "petallength",
+        "petalwidth" };
+    for (String name : names) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(name);
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+
+    WekaScoringData data = new WekaScoringData();
+    data.setModel(nb1);
+    data.mapIncomingRowMetaData(nb1.getHeader(), rmi, false, null);
+    ScoringMapping mapping = data.getMapping();
+
+    // a model trained on the same format shares the compiled mapping
+    data.switchModel(nb2, rmi);
+    assertTrue(mapping == data.getMapping());
+
+    // a model with a different format gets its own
+    data.switchModel(renamed, rmi);
+    assertTrue(data.getMapping().getFieldIndex(0) < 0);
+    assertEquals(1, data.getMapping().getFieldIndex(1));
+
+    data.switchModel(nb1, rmi);
+    assertTrue(mapping == data.getMapping());
+    assertEquals(0, data.getMapping().getFieldIndex(0));
+  }
+
+  @Test
+  public void testSharedModelLoadOnlyCopiesForExtraCopies() throws Exception {
+    final WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    Callable<WekaScoringModel> loader = new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() {
+        return model;
+      }
+    };
+    Object owner = new Object();
+
+    // a single copy gets the loaded model itself
+    SharedModelLoad single = SharedModelLoad.getOrStart(owner, "single", 1,
+        loader, true, "loader");
+    assertTrue(model == single.takeCopy(owner, "single"));
+
+    // other copies get copies of it
+    SharedModelLoad two = SharedModelLoad.getOrStart(owner, "two", 2, loader,
+        true, "loader");
+    assertTrue(model == two.takeCopy(owner, "two"));
+    WekaScoringModel copy = two.takeCopy(owner, "two");
+    assertFalse(model == copy);
+    assertEquals(model.getHeader().numAttributes(),
+        copy.getHeader().numAttributes());
+
+    // a model that the load doesn't own is never handed out
+    SharedModelLoad notOwned = SharedModelLoad.getOrStart(owner, "meta", 1,
+        loader, false, "loader");
+    assertFalse(model == notOwned.takeCopy(owner, "meta"));
+  }
+
+  /**
+   * Converts ROWS into instances with the format of the iris data
+   */
+  private static Instances rowsAsInstances(Instances header) {
+    Instances insts = new Instances(header, ROWS.length);
+    for (Object[] row : ROWS) {
+      double[] vals = new double[5];
+      for (int j = 0; j < 4; j++) {
+        vals[j] = (Double) row[j];
+      }
+      vals[4] = insts.classAttribute().indexOfValue((String) row[4]);
+      insts.add(new DenseInstance(1.0, vals));
+    }
+    return insts;
+  }
+
+  @Test
+  public void testScoringEngineWithoutKettle() throws Exception {
+    final ScoringEngine engine = ScoringEngine.load(new File(
+        CLASSIFICATION_MODEL));
+
+    ScoringSchema schema = new ScoringSchema(new String[] { "sepallength",
+        "sepalwidth", "petallength", "petalwidth" }, new int[] {
+        ScoringSchema.TYPE_NUMBER, ScoringSchema.TYPE_NUMBER,
+        ScoringSchema.TYPE_NUMBER, ScoringSchema.TYPE_NUMBER });
+    final ScoringMapping mapping = engine.compile(schema);
+    assertEquals(ScoringMapping.NO_MATCH,
+        mapping.getFieldIndex(engine.getHeader().classIndex()));
+
+    Instances header = engine.getHeader();
+    double[] byRow = engine.score(mapping, new Object[] { 5.1, 3.5, 1.4, 0.2 });
+    assertEquals("Iris-setosa",
+        header.classAttribute().value(Utils.maxIndex(byRow)));
+
+    double[] byNumbers = engine.score(mapping, new double[] { 6.3, 3.3, 6.0,
+        2.5 });
+    assertEquals("Iris-virginica",
+        header.classAttribute().value(Utils.maxIndex(byNumbers)));
+
+    // column batch, including a missing value
+    Object[] columns = { new double[] { 5.1, 7.0, 6.3 },
+        new double[] { 3.5, 3.2, Double.NaN }, new double[] { 1.4, 4.7, 6.0 },
+        new double[] { 0.2, 1.4, 2.5 } };
+    double[][] batch = engine.scoreColumns(mapping, columns, 3);
+    assertEquals("Iris-setosa",
+        header.classAttribute().value(Utils.maxIndex(batch[0])));
+    assertEquals("Iris-versicolor",
+        header.classAttribute().value(Utils.maxIndex(batch[1])));
+    assertEquals("Iris-virginica",
+        header.classAttribute().value(Utils.maxIndex(batch[2])));
+
+    // concurrent scoring gives the same answers as scoring on one thread
+    final double[] expected = engine.score(mapping, ROWS[2]);
+    Thread[] threads = new Thread[4];
+    final boolean[] ok = new boolean[threads.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int index = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            boolean same = true;
+            for (int i = 0; i < 1000; i++) {
+              same &= Arrays.equals(expected,
+                  engine.score(mapping, ROWS[2]));
+            }
+            ok[index] = same;
+          } catch (Exception ex) {
+            ok[index] = false;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+      assertTrue(ok[t]);
+    }
+  }
+
+  @Test
+  public void testScoringServerOnLocalhost() throws Exception {
+    ScoringServer server = new ScoringServer(0, 16, 5000, null);
+    server.addModel("nb", CLASSIFICATION_MODEL);
+    server.start();
+    try {
+      final String url = "http://localhost:" + server.getPort() + "/score/nb";
+
+      // concurrent requests get coalesced, but each gets its own answers
+      Thread[] threads = new Thread[8];
+      final String[] responses = new String[threads.length];
+      for (int t = 0; t < threads.length; t++) {
+        final int index = t;
+        threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              responses[index] = post(url, index % 2 == 0 ? "5.1,3.5,1.4,0.2\n"
+                  : "6.3,3.3,6.0,2.5,?\n7.0,3.2,4.7,1.4\n");
+            } catch (Exception ex) {
+              responses[index] = ex.toString();
+            }
+          }
+        };
+        threads[t].start();
+      }
+      for (int t = 0; t < threads.length; t++) {
+        threads[t].join();
+        String[] lines = responses[t].split("\n");
+        if (t % 2 == 0) {
+          assertEquals(1, lines.length);
+          assertTrue(lines[0], lines[0].startsWith("Iris-setosa,"));
+        } else {
+          assertEquals(2, lines.length);
+          assertTrue(lines[0], lines[0].startsWith("Iris-virginica,"));
+          assertTrue(lines[1], lines[1].startsWith("Iris-versicolor,"));
+        }
+      }
+
+      assertTrue(server.getStats().contains("nb: requests=8 rows=12"));
+      assertEquals(404, ((HttpURLConnection) new URL("http://localhost:"
+          + server.getPort() + "/score/missing").openConnection())
+          .getResponseCode());
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static String post(String url, String body) throws Exception {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    OutputStream out = conn.getOutputStream();
+    out.write(body.getBytes(StandardCharsets.UTF_8));
+    out.close();
+
+    InputStream in = conn.getInputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      bytes.write(buffer, 0, n);
+    }
+    in.close();
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testBulkScorerKeepsInputOrder() throws Exception {
+    File input = File.createTempFile("iris", ".csv");
+    File output = File.createTempFile("iris", ".scored.csv");
+    try {
+      StringBuilder csv = new StringBuilder(
+          "petalwidth,petallength,sepalwidth,sepallength,class\n");
+      int copies = 200;
+      for (int c = 0; c < copies; c++) {
+        for (Object[] row : ROWS) {
+          csv.append(row[3]).append(',').append(row[2]).append(',')
+              .append(row[1]).append(',').append(row[0]).append(",\"")
+              .append(row[4]).append("\"\n");
+        }
+      }
+      Files.write(input.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+
+      // small chunks so that the file is split across many tasks
+      ScoringEngine engine = ScoringEngine.load(new File(CLASSIFICATION_MODEL));
+      long rows = new BulkScorer(engine, 3, 256, true).score(input, output);
+      assertEquals(copies * ROWS.length, rows);
+
+      List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+      assertEquals(copies * ROWS.length + 1, lines.size());
+      assertTrue(lines.get(0), lines.get(0).endsWith(
+          ",class_predicted,class:Iris-setosa_predicted_prob,"
+              + "class:Iris-versicolor_predicted_prob,class:Iris-virginica_predicted_prob"));
+      for (int i = 1; i < lines.size(); i++) {
+        String[] values = lines.get(i).split(",");
+        assertEquals(lines.get(i), 9, values.length);
+        assertEquals(lines.get(i), "\"" + values[5] + "\"", values[4]);
+      }
+    } finally {
+      input.delete();
+      output.delete();
+    }
+  }
+
   @Test
   public void testGenerateClassProbsWithClassificationModel() throws Exception {
     WekaScoringModel model = WekaScoringData.loadSerializedModel(